@@ -0,0 +1,170 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class AggregateTest {
+    private static final String EXPECTED_STATS = "SELECT list_id, COUNT(*), COALESCE(SUM(points), 0), MAX(create_date) FROM todos WHERE finished IS NULL AND list_id IS NOT NULL GROUP BY list_id ORDER BY list_id";
+    private static final String ACTUAL_STATS = "SELECT list_id, unfinished, points, latest FROM todo_stats ORDER BY list_id";
+
+    private Database db;
+    private TodosTable table;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        table = new TodosTable();
+        table.aggregates = new Aggregate[] {
+                new Aggregate("todo_stats", "list_id")
+                        .where("finished IS NULL")
+                        .count("unfinished")
+                        .sum("points", "points")
+                        .max("latest", "create_date"),
+                new Aggregate("todo_total").count("total")
+        };
+        db.addTable(table);
+        db.prepare();
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE todos");
+        db.update("DROP TABLE IF EXISTS todo_stats");
+        db.update("DROP TABLE IF EXISTS todo_total");
+        db.update("DROP TABLE IF EXISTS todo_points");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void maintained_by_writes() {
+        insert(1, null, 3, 100);
+        insert(1, null, 2, 200);
+        insert(1, 1, 5, 300);
+        insert(2, null, 1, 400);
+        insert(null, null, 7, 500);
+        assertMatches(EXPECTED_STATS, ACTUAL_STATS);
+        assertThat(total()).isEqualTo(5);
+
+        // finishing the latest unfinished todo of list 1.
+        db.update("UPDATE todos SET finished = 1 WHERE create_date = 200");
+        assertMatches(EXPECTED_STATS, ACTUAL_STATS);
+
+        // moving list 2's only todo empties the group.
+        db.update("UPDATE todos SET list_id = 1 WHERE list_id = 2");
+        assertMatches(EXPECTED_STATS, ACTUAL_STATS);
+        assertThat(rows("SELECT * FROM todo_stats WHERE list_id = 2")).isEqualTo(0);
+
+        db.update("DELETE FROM todos WHERE create_date = 400");
+        assertMatches(EXPECTED_STATS, ACTUAL_STATS);
+        assertThat(total()).isEqualTo(4);
+    }
+
+    @Test
+    public void existing_rows_are_aggregated() {
+        insert(1, null, 3, 100);
+        db.close();
+
+        table.aggregates = new Aggregate[] {
+                new Aggregate("todo_points", "list_id").sum("points", "points")
+        };
+        db.addTable(table);
+        db.prepare();
+
+        assertMatches("SELECT list_id, SUM(points) FROM todos GROUP BY list_id", "SELECT list_id, points FROM todo_points");
+        // no longer declared.
+        assertThat(rows("SELECT * FROM sqlite_master WHERE name IN ('todo_stats', 'todo_total')")).isEqualTo(0);
+        assertThat(rows("SELECT * FROM versions WHERE table_name IN ('todo_stats', 'todo_total')")).isEqualTo(0);
+    }
+
+    @Test
+    public void rebuild_repairs_aggregates() {
+        insert(1, null, 3, 100);
+        insert(1, null, 2, 200);
+        db.update("UPDATE todo_stats SET unfinished = 42");
+
+        db.rebuildAggregates("todos");
+
+        assertMatches(EXPECTED_STATS, ACTUAL_STATS);
+    }
+
+    private void insert(Integer listId, Integer finished, int points, long createDate) {
+        db.insert("INSERT INTO todos (list_id, finished, points, create_date) VALUES (?, ?, ?, ?)", listId, finished, points, createDate);
+    }
+
+    private int total() {
+        Cursor c = db.query("SELECT total FROM todo_total");
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private int rows(String query) {
+        Cursor c = db.query(query);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertMatches(String expectedQuery, String actualQuery) {
+        Cursor expected = db.query(expectedQuery);
+        Cursor actual = db.query(actualQuery);
+        try {
+            assertThat(actual.getCount()).isEqualTo(expected.getCount());
+            while (expected.moveToNext()) {
+                assertThat(actual.moveToNext()).isTrue();
+                for (int i = 0; i < expected.getColumnCount(); i++) {
+                    assertThat(actual.getString(i)).isEqualTo(expected.getString(i));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    private static class TodosTable extends Table {
+        Aggregate[] aggregates;
+
+        @Override
+        public String getName() {
+            return "todos";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE todos (list_id INTEGER, finished INTEGER, points INTEGER, create_date INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+
+        @Override
+        public Aggregate[] getAggregates() {
+            return aggregates;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ColumnarResultTest {
+    private static final int ROWS = 5000;
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+
+        String[] stmts = new String[ROWS];
+        Object[][] args = new Object[ROWS][];
+        for (int i = 0; i < ROWS; i++) {
+            stmts[i] = "INSERT INTO measurements (count, amount, category) VALUES (?, ?, ?)";
+            args[i] = new Object[] {i, i + 0.5, "category_"+(i % 3)};
+        }
+        db.updateBatch(stmts, args, false);
+        db.update("INSERT INTO measurements (count, amount, category) VALUES (NULL, 7, NULL)");
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE measurements");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void reads_every_row_across_windows() {
+        ColumnarResult result = db.queryColumns("SELECT count, amount, category FROM measurements ORDER BY rowid");
+
+        assertThat(result.getRowCount()).isEqualTo(ROWS + 1);
+        assertThat(result.getColumnCount()).isEqualTo(3);
+        assertThat(result.getColumnIndex("amount")).isEqualTo(1);
+        assertThat(result.getColumnType(0)).isEqualTo(ColumnarResult.TYPE_LONG);
+        assertThat(result.getColumnType(1)).isEqualTo(ColumnarResult.TYPE_DOUBLE);
+        assertThat(result.getColumnType(2)).isEqualTo(ColumnarResult.TYPE_STRING);
+
+        long[] counts = result.getLongs(0);
+        double[] amounts = result.getDoubles(1);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(counts[i]).isEqualTo(i);
+            assertThat(amounts[i]).isEqualTo(i + 0.5);
+            assertThat(result.getString(i, 2)).isEqualTo("category_"+(i % 3));
+        }
+    }
+
+    @Test
+    public void reads_windows_through_cursor_wrappers() {
+        // a resource tracker wraps every cursor the database returns.
+        db.setResourceTracker(new ResourceTracker());
+        try {
+            ColumnarResult result = db.queryColumns("SELECT count FROM measurements ORDER BY rowid");
+            assertThat(result.getRowCount()).isEqualTo(ROWS + 1);
+            assertThat(result.getLongs(0)[ROWS - 1]).isEqualTo(ROWS - 1);
+        } finally {
+            db.setResourceTracker(null);
+        }
+
+        Cursor c = db.query("SELECT count FROM measurements ORDER BY rowid");
+        try {
+            ColumnarResult result = ColumnarResult.read(new CursorWrapper(c) {
+                @Override
+                public int getType(int columnIndex) {
+                    throw new AssertionError("read cell by cell");
+                }
+            });
+            assertThat(result.getRowCount()).isEqualTo(ROWS + 1);
+            assertThat(result.isNull(ROWS, 0)).isTrue();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void tracks_nulls() {
+        ColumnarResult result = db.queryColumns("SELECT count, amount, category FROM measurements ORDER BY rowid");
+
+        assertThat(result.isNull(0, 0)).isFalse();
+        assertThat(result.isNull(ROWS, 0)).isTrue();
+        assertThat(result.isNull(ROWS, 1)).isFalse();
+        assertThat(result.isNull(ROWS, 2)).isTrue();
+        assertThat(result.getStringCodes(2)[ROWS]).isEqualTo(-1);
+        assertThat(result.getString(ROWS, 2)).isNull();
+    }
+
+    @Test
+    public void dictionary_encodes_strings() {
+        ColumnarResult result = db.queryColumns("SELECT category FROM measurements WHERE category IS NOT NULL ORDER BY rowid");
+
+        assertThat(result.getStringDictionary(0)).containsExactly("category_0", "category_1", "category_2");
+        int[] codes = result.getStringCodes(0);
+        for (int i = 0; i < ROWS; i++) {
+            assertThat(codes[i]).isEqualTo(i % 3);
+        }
+    }
+
+    @Test
+    public void promotes_mixed_numeric_columns() {
+        ColumnarResult result = db.queryColumns("SELECT CASE WHEN rowid = 1 THEN 7 ELSE amount END, CASE WHEN rowid = 2 THEN 'x' ELSE count END FROM measurements ORDER BY rowid LIMIT 3");
+
+        assertThat(result.getColumnType(0)).isEqualTo(ColumnarResult.TYPE_DOUBLE);
+        assertThat(result.getDoubles(0)).containsExactly(7.0, 1.5, 2.5);
+        assertThat(result.getColumnType(1)).isEqualTo(ColumnarResult.TYPE_STRING);
+        assertThat(result.getString(0, 1)).isEqualTo("0");
+        assertThat(result.getString(1, 1)).isEqualTo("x");
+        assertThat(result.getString(2, 1)).isEqualTo("2");
+    }
+
+    @Test
+    public void reads_non_windowed_cursors() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"id", "name"});
+        cursor.addRow(new Object[] {1L, "a"});
+        cursor.addRow(new Object[] {2L, null});
+        cursor.addRow(new Object[] {3L, "a"});
+
+        ColumnarResult result = ColumnarResult.read(cursor);
+
+        assertThat(result.getRowCount()).isEqualTo(3);
+        assertThat(result.getLongs(0)).containsExactly(1L, 2L, 3L);
+        assertThat(result.getStringDictionary(1)).containsExactly("a");
+        assertThat(result.getStringCodes(1)).containsExactly(0, -1, 0);
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "measurements";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE measurements (count INTEGER, amount REAL, category TEXT)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ContentionProfilerTest {
+    private Database db;
+    private ContentionProfiler profiler;
+
+    @Before
+    public void setUp() {
+        // this test calls the library from inside its package, like an app would from outside.
+        ContentionProfiler.addCallerClass(getClass());
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        profiler = new ContentionProfiler(20);
+        db.setContentionProfiler(profiler);
+    }
+
+    @After
+    public void tearDown() {
+        db.setContentionProfiler(null);
+        db.update("DROP TABLE profiled");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void records_statements_and_call_sites() {
+        db.insert("INSERT INTO profiled (value) VALUES (?)", 1);
+        db.insert("INSERT INTO profiled (value) VALUES (?)", 2);
+        Cursor c = db.query("SELECT * FROM profiled");
+        c.close();
+
+        List<ContentionProfiler.Entry> statements = profiler.getTopStatements(10);
+        assertThat(statements).hasSize(2);
+        for (ContentionProfiler.Entry entry : statements) {
+            if (entry.getKey().startsWith("INSERT")) {
+                assertThat(entry.getCount()).isEqualTo(2);
+            } else {
+                assertThat(entry.getKey()).isEqualTo("SELECT * FROM profiled");
+                assertThat(entry.getCount()).isEqualTo(1);
+            }
+        }
+
+        List<ContentionProfiler.Entry> callSites = profiler.getTopCallSites(10);
+        assertThat(callSites).isNotEmpty();
+        for (ContentionProfiler.Entry entry : callSites) {
+            assertThat(entry.getKey()).contains(getClass().getName());
+        }
+    }
+
+    @Test
+    public void groups_statements_by_shape() {
+        for (int i = 0; i < 5; i++) {
+            db.insert("INSERT INTO profiled (value) VALUES ("+i+")");
+        }
+
+        List<ContentionProfiler.Entry> statements = profiler.getTopStatements(10);
+        assertThat(statements).hasSize(1);
+        assertThat(statements.get(0).getKey()).isEqualTo("INSERT INTO profiled (value) VALUES (?)");
+        assertThat(statements.get(0).getCount()).isEqualTo(5);
+    }
+
+    @Test
+    public void attributes_work_done_by_library_helpers_to_their_caller() {
+        for (int i = 0; i < 10; i++) {
+            db.insert("INSERT INTO profiled (value) VALUES (?)", i);
+        }
+        profiler.reset();
+
+        assertThat(db.purge("profiled", "value < ?", new Object[] {5}, 2)).isEqualTo(5);
+
+        List<ContentionProfiler.Entry> callSites = profiler.getTopCallSites(10);
+        assertThat(callSites).isNotEmpty();
+        for (ContentionProfiler.Entry entry : callSites) {
+            assertThat(entry.getKey()).contains(getClass().getName());
+        }
+    }
+
+    @Test
+    public void captures_holder_of_slow_waits() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.getLock().lock("long running work");
+                try {
+                    locked.countDown();
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    db.getLock().unlock();
+                }
+            }
+        }, "contention-holder");
+        holder.start();
+        locked.await();
+
+        Cursor c = db.query("SELECT * FROM profiled");
+        c.close();
+        holder.join();
+
+        List<ContentionProfiler.SlowWait> waits = profiler.getSlowWaits();
+        assertThat(waits).hasSize(1);
+        ContentionProfiler.SlowWait wait = waits.get(0);
+        assertThat(wait.getStatement()).isEqualTo("SELECT * FROM profiled");
+        assertThat(wait.getWaitMillis()).isGreaterThan(20.0);
+        assertThat(wait.getHolderThread()).isEqualTo("contention-holder");
+        assertThat(wait.getHolderStatement()).isEqualTo("long running work");
+        assertThat(wait.getHolderStack()).isNotEmpty();
+
+        assertThat(profiler.getTopStatements(1).get(0).getKey()).isEqualTo("SELECT * FROM profiled");
+        assertThat(profiler.getTopStatements(1).get(0).getMaxWaitMillis()).isGreaterThan(20.0);
+    }
+
+    @Test
+    public void reset_discards_everything() {
+        db.insert("INSERT INTO profiled (value) VALUES (?)", 1);
+        profiler.reset();
+
+        assertThat(profiler.getTopStatements(10)).isEmpty();
+        assertThat(profiler.getTopCallSites(10)).isEmpty();
+        assertThat(profiler.getSlowWaits()).isEmpty();
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "profiled";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE profiled (value INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class EntityCacheTest {
+    private Database db;
+    private EntityCache<Todo> cache;
+    private long first;
+    private long second;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        first = db.insert("INSERT INTO todos (name, completed) VALUES (?, 0)", "first");
+        second = db.insert("INSERT INTO todos (name, completed) VALUES (?, 0)", "second");
+        cache = db.entityCache("todos", "name, completed", new RowMapper<Todo>() {
+            @Override
+            public Todo map(Cursor cursor) {
+                return new Todo(cursor.getString(0), cursor.getInt(1) != 0);
+            }
+        }, 4096);
+    }
+
+    @After
+    public void tearDown() {
+        db.removeEntityCache("todos");
+        db.update("DROP TABLE todos");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void repeated_lookups_are_hits() {
+        Todo todo = cache.get(first);
+        assertThat(todo.name).isEqualTo("first");
+        assertThat(cache.get(first)).isSameAs(todo);
+        assertThat(cache.getMissCount()).isEqualTo(1);
+        assertThat(cache.getHitCount()).isEqualTo(1);
+        assertThat(cache.getSizeBytes()).isGreaterThan(0);
+
+        assertThat(cache.get(12345)).isNull();
+    }
+
+    @Test
+    public void point_updates_refresh_the_row() {
+        Todo secondTodo = cache.get(second);
+        cache.get(first);
+
+        db.update("UPDATE todos SET completed = ? WHERE rowid = ?", 1, first);
+
+        assertThat(cache.get(first).completed).isTrue();
+        assertThat(cache.get(second)).isSameAs(secondTodo);
+        assertThat(cache.getMissCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void point_deletes_evict_the_row() {
+        cache.get(first);
+        Todo secondTodo = cache.get(second);
+
+        db.update("DELETE FROM todos WHERE rowid = ?", first);
+
+        assertThat(cache.get(first)).isNull();
+        assertThat(cache.get(second)).isSameAs(secondTodo);
+    }
+
+    @Test
+    public void other_writes_evict_everything() {
+        Todo todo = cache.get(first);
+        long size = cache.getSizeBytes();
+
+        db.update("UPDATE todos SET completed = 1 WHERE name LIKE ?", "f%");
+        assertThat(cache.getSizeBytes()).isEqualTo(0);
+        assertThat(cache.get(first).completed).isTrue();
+        assertThat(cache.get(first)).isNotSameAs(todo);
+        assertThat(cache.getSizeBytes()).isEqualTo(size);
+
+        // plain inserts can't affect cached rows.
+        db.insert("INSERT INTO todos (name, completed) VALUES (?, 0)", "third");
+        assertThat(cache.getSizeBytes()).isEqualTo(size);
+    }
+
+    @Test
+    public void rolled_back_writes_are_not_cached() {
+        cache.get(first);
+        try {
+            db.updateBatch(new String[] {
+                    "UPDATE todos SET name = 'renamed' WHERE rowid = ?",
+                    "INSERT INTO todos (rowid, name, completed) VALUES (?, 'dupe', 0)"
+            }, new Object[][] {{first}, {second}}, true);
+        } catch (Exception e) {
+            // expected, the rowid is taken.
+        }
+
+        assertThat(cache.get(first).name).isEqualTo("first");
+    }
+
+    @Test
+    public void rows_read_inside_transactions_are_not_cached() {
+        cache.get(first);
+        db.getLock().lock("transaction");
+        try {
+            db.getWritableDB().beginTransaction();
+            try {
+                db.update("UPDATE todos SET name = ? WHERE rowid = ?", "renamed", first);
+                assertThat(cache.get(first).name).isEqualTo("renamed");
+            } finally {
+                // rolled back.
+                db.getWritableDB().endTransaction();
+            }
+        } finally {
+            db.getLock().unlock();
+        }
+
+        assertThat(cache.get(first).name).isEqualTo("first");
+    }
+
+    @Test
+    public void upserts_refresh_the_row() {
+        cache.get(first);
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", "first");
+        values.put("completed", 1);
+
+        assertThat(db.upsert("todos", new String[] {"name"}, values)).isEqualTo(first);
+
+        assertThat(cache.get(first).completed).isTrue();
+    }
+
+    private static class Todo {
+        final String name;
+        final boolean completed;
+
+        Todo(String name, boolean completed) {
+            this.name = name;
+            this.completed = completed;
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "todos";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE todos (name TEXT NOT NULL UNIQUE, completed INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package co.jasonwyatt.squeaky;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class FtsTableTest {
+    private Database db;
+    private NotesSearchTable search;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new NotesTable());
+        search = new NotesSearchTable();
+        db.addTable(search);
+        db.prepare();
+
+        db.updateBatch(new String[] {
+                "INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)",
+                "INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)",
+                "INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)"
+        }, new Object[][] {
+                {"Groceries", "eggs, milk and some more milk"},
+                {"Milk", "remember the milk"},
+                {"Chores", "walk the dog"}
+        }, false);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE notes_fts");
+        db.update("DROP TABLE notes");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void ranks_results() {
+        List<FtsTable.Match> matches = search.search(db, "milk", 10);
+
+        assertThat(matches).hasSize(2);
+        // the title is weighted more heavily than the body.
+        assertThat(matches.get(0).getRowId()).isEqualTo(2);
+        assertThat(matches.get(1).getRowId()).isEqualTo(1);
+        assertThat(matches.get(0).getScore()).isGreaterThan(matches.get(1).getScore());
+
+        assertThat(search.search(db, "milk", 1)).hasSize(1);
+        assertThat(search.search(db, "cats", 10)).isEmpty();
+    }
+
+    @Test
+    public void returns_snippets() {
+        List<FtsTable.Match> matches = search.search(db, "dog", 10, new FtsTable.Snippet().column(1).markers("[", "]"));
+
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0).getSnippet()).isEqualTo("walk the [dog]");
+    }
+
+    @Test
+    public void keeps_index_in_sync() {
+        db.insert("INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)", "Pets", "feed the cats");
+        assertThat(search.search(db, "cats", 10)).hasSize(1);
+
+        db.update("UPDATE notes SET body = ? WHERE title = ?", "feed the dog", "Pets");
+        assertThat(search.search(db, "cats", 10)).isEmpty();
+        assertThat(search.search(db, "dog", 10)).hasSize(2);
+
+        // columns which aren't indexed don't affect it.
+        db.update("UPDATE notes SET pinned = 1");
+        assertThat(search.search(db, "dog", 10)).hasSize(2);
+
+        db.update("DELETE FROM notes WHERE title = ?", "Chores");
+        assertThat(search.search(db, "dog", 10)).hasSize(1);
+    }
+
+    @Test
+    public void bulk_updates_rebuild_the_index() {
+        String[] stmts = new String[100];
+        Object[][] args = new Object[stmts.length][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)";
+            args[i] = new Object[] {"Imported "+i, "imported note"};
+        }
+
+        assertThat(search.bulkUpdate(db, stmts, args)).isEqualTo(100);
+        assertThat(search.search(db, "imported", 1000)).hasSize(100);
+
+        // the triggers are back.
+        db.insert("INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)", "Later", "imported later");
+        assertThat(search.search(db, "imported", 1000)).hasSize(101);
+    }
+
+    @Test
+    public void optimizes_in_steps() {
+        for (int i = 0; i < 20; i++) {
+            db.insert("INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)", "Note "+i, "more milk");
+        }
+
+        assertThat(search.optimize(db, 50)).isGreaterThan(0);
+        assertThat(search.merge(db, 50)).isFalse();
+        assertThat(search.search(db, "milk", 100)).hasSize(22);
+    }
+
+    @Test
+    public void new_version_recreates_the_virtual_table() {
+        db.close();
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new NotesTable());
+        search = new TitleSearchTable();
+        db.addTable(search);
+        db.prepare();
+
+        // only titles are indexed now, and the existing notes were indexed again.
+        List<FtsTable.Match> matches = search.search(db, "milk", 10);
+        assertThat(matches).hasSize(1);
+        assertThat(matches.get(0).getRowId()).isEqualTo(2);
+        assertThat(search.search(db, "dog", 10)).isEmpty();
+        assertThat(search.search(db, "chores", 10)).hasSize(1);
+
+        db.insert("INSERT INTO notes (title, body, pinned) VALUES (?, ?, 0)", "Dog", "walk the dog again");
+        assertThat(search.search(db, "dog", 10)).hasSize(1);
+    }
+
+    private static class NotesTable extends Table {
+        @Override
+        public String getName() {
+            return "notes";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE notes (title TEXT, body TEXT, pinned INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+
+    private static class NotesSearchTable extends FtsTable {
+        @Override
+        public String getName() {
+            return "notes_fts";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getIndexedColumns() {
+            return new String[] {"title", "body"};
+        }
+
+        @Override
+        public String getContentTable() {
+            return "notes";
+        }
+
+        @Override
+        public double[] getColumnWeights() {
+            return new double[] {10, 1};
+        }
+    }
+
+    private static class TitleSearchTable extends NotesSearchTable {
+        @Override
+        public int getVersion() {
+            return 2;
+        }
+
+        @Override
+        public String[] getIndexedColumns() {
+            return new String[] {"title"};
+        }
+
+        @Override
+        public double[] getColumnWeights() {
+            return null;
+        }
+    }
+}
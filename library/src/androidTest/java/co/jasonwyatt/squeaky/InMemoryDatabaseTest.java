@@ -0,0 +1,110 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class InMemoryDatabaseTest {
+    private Context context;
+    private Database db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getContext();
+        context.deleteDatabase(getClass().getSimpleName());
+        db = createDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        if (db.isPrepared()) {
+            db.close();
+        }
+        context.deleteDatabase(getClass().getSimpleName());
+    }
+
+    @Test
+    public void contents_survive_close_and_prepare() {
+        db.prepare();
+        assertThat(db.isInMemory()).isTrue();
+        assertThat(context.getDatabasePath(getClass().getSimpleName()).exists()).isFalse();
+
+        db.insert("INSERT INTO memory_table (a) VALUES (?)", "first");
+        long secondId = db.insert("INSERT INTO memory_table (a) VALUES (?)", "second");
+        db.update("DELETE FROM memory_table WHERE a = ?", "first");
+        db.close();
+        assertThat(context.getDatabasePath(getClass().getSimpleName()).exists()).isTrue();
+
+        db = createDatabase();
+        db.prepare();
+        Cursor c = db.query("SELECT rowid, a FROM memory_table");
+        assertThat(c.getCount()).isEqualTo(1);
+        c.moveToNext();
+        assertThat(c.getLong(0)).isEqualTo(secondId);
+        assertThat(c.getString(1)).isEqualTo("second");
+        c.close();
+
+        c = db.query("SELECT name FROM sqlite_master WHERE type = 'index' AND name = 'memory_table_a'");
+        assertThat(c.getCount()).isEqualTo(1);
+        c.close();
+    }
+
+    @Test
+    public void snapshot_only_writes_when_changed() {
+        db.prepare();
+        db.insert("INSERT INTO memory_table (a) VALUES (?)", "value");
+
+        assertThat(db.snapshot()).isTrue();
+        assertThat(db.snapshot()).isFalse();
+
+        db.update("UPDATE memory_table SET a = ?", "changed");
+        assertThat(db.snapshot()).isTrue();
+    }
+
+    private Database createDatabase() {
+        Database result = new Database(context, getClass().getSimpleName());
+        result.setInMemory(0);
+        result.addTable(new MemoryTable());
+        return result;
+    }
+
+    private static class MemoryTable extends Table {
+        @Override
+        public String getName() {
+            return "memory_table";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE memory_table (a TEXT)",
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+
+        @Override
+        public Index[] getIndexes() {
+            return new Index[] {
+                    new Index("memory_table_a", "a")
+            };
+        }
+    }
+}
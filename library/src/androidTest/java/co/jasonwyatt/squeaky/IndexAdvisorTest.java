@@ -0,0 +1,119 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class IndexAdvisorTest {
+    private Database db;
+    private IndexAdvisor advisor;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        for (int i = 0; i < 200; i++) {
+            db.insert("INSERT INTO advised (a, b, c) VALUES (?, ?, ?)", i % 10, i, "row "+i);
+        }
+        advisor = new IndexAdvisor();
+        db.setIndexAdvisor(advisor);
+    }
+
+    @After
+    public void tearDown() {
+        db.setIndexAdvisor(null);
+        db.update("DROP TABLE advised");
+        db.update("DROP TABLE versions");
+    }
+
+    @Test
+    public void normalize_replaces_literals() {
+        assertThat(IndexAdvisor.normalize("SELECT * FROM t WHERE a = 'it''s'  AND b > 12.5 AND c IN (1, 2, 3);"))
+                .isEqualTo("SELECT * FROM t WHERE a = ? AND b > ? AND c IN (?)");
+    }
+
+    @Test
+    public void shapes_are_counted() {
+        query("SELECT * FROM advised WHERE a = 1");
+        query("SELECT * FROM advised WHERE a = 2");
+        query("SELECT * FROM advised WHERE a = ?", 3);
+
+        assertThat(advisor.getShapeFrequencies().get("SELECT * FROM advised WHERE a = ?")).isEqualTo(3);
+    }
+
+    @Test
+    public void analyze_proposes_ranked_candidates() {
+        for (int i = 0; i < 10; i++) {
+            query("SELECT * FROM advised WHERE a = ? AND b > ?", i, 5);
+        }
+        query("SELECT * FROM advised WHERE c = ?", "row 1");
+
+        IndexAdvisor.Report report = advisor.analyze(db);
+        List<IndexAdvisor.Candidate> candidates = report.getCandidates("advised");
+        assertThat(candidates).hasSize(2);
+        assertThat(candidates.get(0).getColumns()).containsExactly("a", "b");
+        assertThat(candidates.get(0).getFrequency()).isEqualTo(10);
+        assertThat(candidates.get(1).getColumns()).containsExactly("c");
+        assertThat(candidates.get(0).getEstimatedBenefit() > candidates.get(1).getEstimatedBenefit()).isTrue();
+
+        assertThat(advisor.validate(db, report)).isEqualTo(2);
+        assertThat(candidates.get(0).isValidated()).isTrue();
+
+        // validation must not leave anything behind in the real database.
+        Cursor c = db.query("SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = 'advised'");
+        assertThat(c.getCount()).isEqualTo(0);
+        c.close();
+    }
+
+    @Test
+    public void explains_statements_recorded_with_null_arguments() {
+        for (int i = 0; i < 10; i++) {
+            db.update("UPDATE advised SET c = ? WHERE b = ?", null, i);
+        }
+
+        IndexAdvisor.Report report = advisor.analyze(db);
+        List<IndexAdvisor.Candidate> candidates = report.getCandidates("advised");
+        assertThat(candidates).hasSize(1);
+        assertThat(candidates.get(0).getColumns()).containsExactly("b");
+        assertThat(advisor.validate(db, report)).isEqualTo(1);
+    }
+
+    private void query(String stmt, Object... args) {
+        db.query(stmt, args).close();
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "advised";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE advised (a INTEGER, b INTEGER, c TEXT)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class IndexTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.setBuildDeferredIndexesInBackground(false);
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            db.update("DROP TABLE indexed_table");
+        } catch (SQLiteException e) {
+            //
+        }
+        db.update("DROP TABLE versions");
+    }
+
+    @Test
+    public void indexes_are_created_with_table() {
+        IndexedTable t = new IndexedTable();
+        t.indexes = new Index[] {
+                new Index("indexed_table_a", "a"),
+                new Index("indexed_table_b_c", "b", "c").unique().deferred()
+        };
+        db.addTable(t);
+        db.prepare();
+
+        assertIndexSql("indexed_table_a", "CREATE INDEX indexed_table_a ON indexed_table (a)");
+        // deferred indexes on brand new tables are built right away.
+        assertIndexSql("indexed_table_b_c", "CREATE UNIQUE INDEX indexed_table_b_c ON indexed_table (b, c)");
+        assertThat(db.buildDeferredIndexes()).isEqualTo(0);
+    }
+
+    @Test
+    public void changed_and_stale_indexes_are_synchronized() {
+        IndexedTable t = new IndexedTable();
+        t.indexes = new Index[] {
+                new Index("indexed_table_a", "a"),
+                new Index("indexed_table_b", "b")
+        };
+        db.addTable(t);
+        db.prepare();
+        db.close();
+
+        t.indexes = new Index[] {
+                new Index("indexed_table_a", "a", "b"),
+                new Index("indexed_table_c", "c").where("c IS NOT NULL").deferred()
+        };
+        db.addTable(t);
+        db.prepare();
+
+        assertIndexSql("indexed_table_a", "CREATE INDEX indexed_table_a ON indexed_table (a, b)");
+        assertIndexSql("indexed_table_b", null);
+        assertIndexSql("indexed_table_c", null);
+
+        assertThat(db.buildDeferredIndexes()).isEqualTo(1);
+        assertIndexSql("indexed_table_c", "CREATE INDEX indexed_table_c ON indexed_table (c) WHERE c IS NOT NULL");
+    }
+
+    @Test
+    public void failed_builds_are_reported_and_skipped() {
+        IndexedTable t = new IndexedTable();
+        db.addTable(t);
+        db.prepare();
+        db.insert("INSERT INTO indexed_table (a, b, c) VALUES (1, 2, 'x')");
+        db.insert("INSERT INTO indexed_table (a, b, c) VALUES (1, 3, 'x')");
+        db.close();
+
+        t.indexes = new Index[] {
+                new Index("indexed_table_c", "c").unique().deferred(),
+                new Index("indexed_table_b", "b").deferred()
+        };
+        db.addTable(t);
+        db.prepare();
+
+        // the duplicate values of c can't have a unique index, but b's index is still built.
+        assertThat(db.buildDeferredIndexes()).isEqualTo(1);
+        assertThat(db.getFailedDeferredIndexes()).containsExactly("indexed_table_c");
+        assertIndexSql("indexed_table_c", null);
+        assertIndexSql("indexed_table_b", "CREATE INDEX indexed_table_b ON indexed_table (b)");
+    }
+
+    @Test
+    public void unmanaged_tables_keep_their_indexes() {
+        IndexedTable t = new IndexedTable();
+        db.addTable(t);
+        db.prepare();
+        db.update("CREATE INDEX indexed_table_manual ON indexed_table (a)");
+        db.close();
+
+        db.addTable(t);
+        db.prepare();
+        assertIndexSql("indexed_table_manual", "CREATE INDEX indexed_table_manual ON indexed_table (a)");
+    }
+
+    private void assertIndexSql(String name, String expectedSql) {
+        Cursor c = db.query("SELECT sql FROM sqlite_master WHERE type = 'index' AND name = ?", name);
+        try {
+            if (expectedSql == null) {
+                assertThat(c.getCount()).isEqualTo(0);
+            } else {
+                assertThat(c.moveToNext()).isTrue();
+                assertThat(c.getString(0)).isEqualTo(expectedSql);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class IndexedTable extends Table {
+        Index[] indexes;
+
+        @Override
+        public String getName() {
+            return "indexed_table";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE indexed_table (a INTEGER, b INTEGER, c TEXT)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+
+        @Override
+        public Index[] getIndexes() {
+            return indexes;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class MaintenanceSchedulerTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getContext();
+        context.deleteDatabase(getClass().getSimpleName());
+        db = new Database(context, getClass().getSimpleName());
+        db.setTuningProfile(new TuningProfile().writeAheadLogging(true).pragma("auto_vacuum", "INCREMENTAL"));
+        db.addTable(new TestTable());
+        db.prepare();
+
+        String[] stmts = new String[2000];
+        Object[][] args = new Object[stmts.length][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO maintained (value) VALUES (?)";
+            args[i] = new Object[] {"value number "+i+" padded out to take up some space in the file"};
+        }
+        db.updateBatch(stmts, args, true);
+    }
+
+    @After
+    public void tearDown() {
+        db.setMaintenanceScheduler(null);
+        db.update("DROP TABLE maintained");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void runs_every_task() {
+        db.update("DELETE FROM maintained");
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(db).timeBudget(10000).ioBudget(Long.MAX_VALUE / 2);
+
+        MaintenanceScheduler.Report report = scheduler.runNow();
+
+        assertThat(report.getTaskMillis())
+                .containsKey(MaintenanceScheduler.TASK_OPTIMIZE)
+                .containsKey(MaintenanceScheduler.TASK_INCREMENTAL_VACUUM)
+                .containsKey(MaintenanceScheduler.TASK_CHECKPOINT);
+        assertThat(report.getSkippedTasks()).isEmpty();
+        assertThat(report.getFreePagesBefore()).isGreaterThan(0);
+        assertThat(report.getFreePagesAfter()).isEqualTo(0);
+        assertThat(report.getWalBytesBefore()).isGreaterThan(0);
+        assertThat(report.getWalBytesAfter()).isLessThan(report.getWalBytesBefore());
+        assertThat(scheduler.getLastReport()).isSameAs(report);
+    }
+
+    @Test
+    public void optimize_resets_analysis_limit() {
+        new MaintenanceScheduler(db).incrementalVacuum(false).checkpoint(false).runNow();
+
+        Cursor c = db.query("PRAGMA analysis_limit");
+        try {
+            // versions before 3.32 don't know the pragma, and return nothing.
+            if (c.moveToFirst()) {
+                assertThat(c.getLong(0)).isEqualTo(0);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void respects_io_budget() {
+        db.update("DELETE FROM maintained");
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(db).optimize(false).ioBudget(0);
+
+        MaintenanceScheduler.Report report = scheduler.runNow();
+
+        assertThat(report.getSkippedTasks())
+                .containsKey(MaintenanceScheduler.TASK_INCREMENTAL_VACUUM)
+                .containsKey(MaintenanceScheduler.TASK_CHECKPOINT);
+        assertThat(report.getFreePagesAfter()).isEqualTo(report.getFreePagesBefore());
+    }
+
+    @Test
+    public void runs_when_triggered() throws Exception {
+        final CountDownLatch ran = new CountDownLatch(1);
+        db.setMaintenanceScheduler(new MaintenanceScheduler(db)
+                .trigger(MaintenanceTriggers.writeVolume(1))
+                .checkInterval(50)
+                .listener(new MaintenanceScheduler.Listener() {
+                    @Override
+                    public void onMaintenanceFinished(MaintenanceScheduler.Report report) {
+                        ran.countDown();
+                    }
+                }));
+
+        // not triggered yet.
+        assertThat(ran.await(200, TimeUnit.MILLISECONDS)).isFalse();
+
+        db.insert("INSERT INTO maintained (value) VALUES (?)", "trigger");
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void combines_triggers() {
+        MaintenanceTrigger.State state = new MaintenanceTrigger.State(db, 10, 1000, 500);
+
+        assertThat(MaintenanceTriggers.writeVolume(10).shouldRun(state)).isTrue();
+        assertThat(MaintenanceTriggers.writeVolume(11).shouldRun(state)).isFalse();
+        assertThat(MaintenanceTriggers.allOf(MaintenanceTriggers.idle(500), MaintenanceTriggers.interval(1001)).shouldRun(state)).isFalse();
+        assertThat(MaintenanceTriggers.anyOf(MaintenanceTriggers.idle(500), MaintenanceTriggers.interval(1001)).shouldRun(state)).isTrue();
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "maintained";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE maintained (value TEXT)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ParallelScanTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.setTuningProfile(new TuningProfile().writeAheadLogging(true));
+        db.addTable(new TestTable());
+        db.prepare();
+
+        String[] stmts = new String[1000];
+        Object[][] args = new Object[1000][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO scanned (value) VALUES (?)";
+            args[i] = new Object[] {i};
+        }
+        db.updateBatch(stmts, args, false);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE scanned");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void scan_visits_every_row_once() {
+        List<Long> rowids = db.parallelScan("scanned", "rowid", null, null, "rowid", 4, new ScanAccumulator<List<Long>>() {
+            @Override
+            public List<Long> create() {
+                return new ArrayList<>();
+            }
+
+            @Override
+            public void accumulate(List<Long> accumulator, Cursor row) {
+                accumulator.add(row.getLong(0));
+            }
+
+            @Override
+            public List<Long> merge(List<Long> left, List<Long> right) {
+                left.addAll(right);
+                return left;
+            }
+        });
+
+        assertThat(rowids).hasSize(1000);
+        for (int i = 1; i < rowids.size(); i++) {
+            // partitions are merged in order.
+            assertThat(rowids.get(i)).isGreaterThan(rowids.get(i - 1));
+        }
+    }
+
+    @Test
+    public void scan_applies_where_clause() {
+        long[] sum = db.parallelScan("scanned", "value", "value % ? = 0", new Object[] {2}, new SumAccumulator());
+        long expected = 0;
+        for (int i = 0; i < 1000; i += 2) {
+            expected += i;
+        }
+        assertThat(sum[0]).isEqualTo(expected);
+    }
+
+    @Test
+    public void empty_scan_returns_empty_accumulator() {
+        long[] sum = db.parallelScan("scanned", "value", "value < 0", null, new SumAccumulator());
+        assertThat(sum[0]).isEqualTo(0L);
+    }
+
+    @Test
+    public void partitions_by_columns_without_integer_affinity() {
+        // expressions have no affinity, so text bounds would never match them.
+        long[] sum = db.parallelScan("scanned", "value", null, null, "value + 0", 4, new SumAccumulator());
+        assertThat(sum[0]).isEqualTo(499500);
+    }
+
+    @Test
+    public void split_covers_range() {
+        assertThat(ParallelScan.split(1, 10, 4)).isEqualTo(new long[] {1, 3, 6, 8, 10});
+        assertThat(ParallelScan.split(1, 2, 4)).isEqualTo(new long[] {1, 2, 2});
+        assertThat(ParallelScan.split(5, 5, 4)).isEqualTo(new long[] {5, 5});
+    }
+
+    private static class SumAccumulator implements ScanAccumulator<long[]> {
+        @Override
+        public long[] create() {
+            return new long[1];
+        }
+
+        @Override
+        public void accumulate(long[] accumulator, Cursor row) {
+            accumulator[0] += row.getLong(0);
+        }
+
+        @Override
+        public long[] merge(long[] left, long[] right) {
+            left[0] += right[0];
+            return left;
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "scanned";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE scanned (value INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
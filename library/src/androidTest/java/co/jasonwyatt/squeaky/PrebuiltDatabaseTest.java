@@ -0,0 +1,181 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class PrebuiltDatabaseTest {
+    private static final String NAME = "PrebuiltDatabaseTest";
+    private static final String SOURCE_NAME = "PrebuiltDatabaseTest_source";
+
+    private Context context;
+    private Database db;
+    private File source;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getContext();
+        context.deleteDatabase(NAME);
+        context.deleteDatabase(SOURCE_NAME);
+        source = context.getDatabasePath(SOURCE_NAME);
+        db = new Database(context, NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (db.isPrepared()) {
+            db.close();
+        }
+        context.deleteDatabase(NAME);
+        context.deleteDatabase(SOURCE_NAME);
+    }
+
+    @Test
+    public void copies_then_runs_remaining_migrations() {
+        buildSource(1);
+        db.addTable(new TestTable(2));
+        db.setPrebuiltDatabase(PrebuiltDatabase.fromFile(source));
+        db.prepare();
+
+        Cursor c = db.query("SELECT name, code FROM cities ORDER BY name");
+        try {
+            assertThat(c.getCount()).isEqualTo(3);
+            c.moveToFirst();
+            assertThat(c.getString(0)).isEqualTo("Berlin");
+            assertThat(c.isNull(1)).isTrue();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void copies_from_a_stream() {
+        buildSource(1);
+        db.addTable(new TestTable(1));
+        db.setPrebuiltDatabase(new PrebuiltDatabase() {
+            @Override
+            public InputStream open(Context context) throws IOException {
+                return new FileInputStream(source);
+            }
+        });
+        db.prepare();
+
+        assertThat(count()).isEqualTo(3);
+    }
+
+    @Test
+    public void restores_in_memory_databases_from_the_copy() {
+        buildSource(1);
+        db.addTable(new TestTable(2));
+        db.setInMemory(0);
+        db.setPrebuiltDatabase(PrebuiltDatabase.fromFile(source));
+        db.prepare();
+
+        assertThat(db.isInMemory()).isTrue();
+        assertThat(count()).isEqualTo(3);
+        db.insert("INSERT INTO cities (name, code) VALUES ('Oslo', 'OSL')");
+        db.close();
+
+        // the copy is the first snapshot; the next one replaces it.
+        db.prepare();
+        assertThat(count()).isEqualTo(4);
+    }
+
+    @Test
+    public void leaves_existing_databases_alone() {
+        db.addTable(new TestTable(1));
+        db.prepare();
+        db.close();
+
+        buildSource(1);
+        db.setPrebuiltDatabase(PrebuiltDatabase.fromFile(source));
+        db.prepare();
+
+        assertThat(count()).isEqualTo(0);
+    }
+
+    @Test
+    public void rejects_newer_versions() {
+        buildSource(2);
+        db.addTable(new TestTable(1));
+        db.setPrebuiltDatabase(PrebuiltDatabase.fromFile(source));
+        try {
+            db.prepare();
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            assertThat(e.getMessage()).contains("cities");
+        }
+        assertThat(context.getDatabasePath(NAME).exists()).isFalse();
+    }
+
+    private void buildSource(int version) {
+        Database sourceDb = new Database(context, SOURCE_NAME);
+        sourceDb.addTable(new TestTable(version));
+        sourceDb.prepare();
+        sourceDb.updateBatch(new String[] {
+                "INSERT INTO cities (name) VALUES ('Berlin')",
+                "INSERT INTO cities (name) VALUES ('Lagos')",
+                "INSERT INTO cities (name) VALUES ('Lima')"
+        }, null, true);
+        sourceDb.close();
+    }
+
+    private int count() {
+        Cursor c = db.query("SELECT COUNT(*) FROM cities");
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestTable extends Table {
+        private final int mVersion;
+
+        TestTable(int version) {
+            mVersion = version;
+        }
+
+        @Override
+        public String getName() {
+            return "cities";
+        }
+
+        @Override
+        public int getVersion() {
+            return mVersion;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            if (mVersion == 1) {
+                return new String[] {"CREATE TABLE cities (name TEXT NOT NULL)"};
+            }
+            return new String[] {"CREATE TABLE cities (name TEXT NOT NULL, code TEXT)"};
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            if (nextVersion == 2) {
+                return new String[] {"ALTER TABLE cities ADD COLUMN code TEXT"};
+            }
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class PurgeTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+
+        String[] stmts = new String[100];
+        Object[][] args = new Object[100][];
+        for (int i = 0; i < 100; i++) {
+            stmts[i] = "INSERT INTO events (created) VALUES (?)";
+            args[i] = new Object[] {i};
+        }
+        db.updateBatch(stmts, args, true);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE events");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void deletes_matching_rows_in_chunks() {
+        final List<Integer> chunks = new ArrayList<>();
+        Purge purge = new Purge("events")
+                .where("created < ?", 45)
+                .chunkSize(10)
+                .listener(new Purge.Listener() {
+                    @Override
+                    public void onChunkDeleted(Purge purge, int deleted) {
+                        chunks.add(deleted);
+                    }
+                });
+
+        assertThat(db.purge(purge)).isEqualTo(45);
+
+        assertThat(chunks).containsExactly(10, 10, 10, 10, 5);
+        assertThat(purge.getChunkCount()).isEqualTo(5);
+        assertThat(count()).isEqualTo(55);
+    }
+
+    @Test
+    public void purges_everything_without_a_condition() {
+        assertThat(db.purge("events", null, null, 30)).isEqualTo(100);
+        assertThat(count()).isEqualTo(0);
+    }
+
+    @Test
+    public void can_be_cancelled() {
+        Purge purge = new Purge("events")
+                .chunkSize(20)
+                .listener(new Purge.Listener() {
+                    @Override
+                    public void onChunkDeleted(Purge purge, int deleted) {
+                        if (purge.getDeletedCount() >= 40) {
+                            purge.cancel();
+                        }
+                    }
+                });
+
+        assertThat(db.purge(purge)).isEqualTo(40);
+        assertThat(purge.isCancelled()).isTrue();
+        assertThat(count()).isEqualTo(60);
+    }
+
+    @Test
+    public void chunk_size_must_be_positive() {
+        try {
+            new Purge("events").chunkSize(0);
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            // expected
+        }
+    }
+
+    private int count() {
+        Cursor c = db.query("SELECT COUNT(*) FROM events");
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "events";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE events (created INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class QueryBatchTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        db.updateBatch(new String[] {
+                "INSERT INTO todos (name, completed) VALUES ('laundry', 1)",
+                "INSERT INTO todos (name, completed) VALUES ('dishes', 0)",
+                "INSERT INTO todos (name, completed) VALUES ('taxes', 0)"
+        }, null, true);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE todos");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void runs_every_query() {
+        Query<Cursor> count = Query.of("SELECT COUNT(*) FROM todos WHERE completed = ?", 0);
+        Query<List<String>> names = Query.mapped("SELECT name FROM todos ORDER BY name", new RowMapper<String>() {
+            @Override
+            public String map(Cursor cursor) {
+                return cursor.getString(0);
+            }
+        });
+        Query<Cursor> rows = Query.of("SELECT rowid, name, completed, NULL AS nothing FROM todos WHERE completed = 1");
+
+        Query.Results results = db.queryBatch(Arrays.<Query<?>>asList(count, names, rows));
+
+        assertThat(results.size()).isEqualTo(3);
+        Cursor c = results.get(count);
+        assertThat(c.moveToFirst()).isTrue();
+        assertThat(c.getInt(0)).isEqualTo(2);
+        c.close();
+
+        assertThat(results.get(names)).containsExactly("dishes", "laundry", "taxes");
+
+        c = results.get(rows);
+        assertThat(c.getCount()).isEqualTo(1);
+        c.moveToFirst();
+        assertThat(c.getString(c.getColumnIndex("name"))).isEqualTo("laundry");
+        assertThat(c.getLong(c.getColumnIndex("completed"))).isEqualTo(1);
+        assertThat(c.isNull(c.getColumnIndex("nothing"))).isTrue();
+        c.close();
+    }
+
+    @Test
+    public void results_are_only_for_the_batch() {
+        Query<Cursor> inBatch = Query.of("SELECT 1");
+        Query.Results results = db.queryBatch(Collections.singletonList(inBatch));
+        try {
+            results.get(Query.of("SELECT 1"));
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void failures_end_the_transaction() {
+        try {
+            db.queryBatch(Arrays.asList(Query.of("SELECT * FROM todos"), Query.of("SELECT * FROM nope")));
+            failBecauseExceptionWasNotThrown(Exception.class);
+        } catch (Exception e) {
+            // expected
+        }
+        assertThat(db.getWritableDB().inTransaction()).isFalse();
+        db.insert("INSERT INTO todos (name, completed) VALUES ('more', 0)");
+    }
+
+    @Test
+    public void does_not_block_writers_on_other_connections() {
+        final SQLiteDatabase writer = SQLiteDatabase.openDatabase(db.getWritableDB().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            Query<List<String>> names = Query.mapped("SELECT name FROM todos ORDER BY name", new RowMapper<String>() {
+                @Override
+                public String map(Cursor cursor) {
+                    // another connection can take the write lock while the batch reads.
+                    writer.beginTransactionNonExclusive();
+                    writer.endTransaction();
+                    return cursor.getString(0);
+                }
+            });
+
+            assertThat(db.queryBatch(Collections.singletonList(names)).get(names)).containsExactly("dishes", "laundry", "taxes");
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void joins_the_threads_transaction() {
+        Query<Cursor> count = Query.of("SELECT COUNT(*) FROM todos");
+        SQLiteDatabase sqlite = db.getWritableDB();
+        sqlite.beginTransaction();
+        try {
+            db.insert("INSERT INTO todos (name, completed) VALUES ('more', 0)");
+            Cursor c = db.queryBatch(Collections.singletonList(count)).get(count);
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getInt(0)).isEqualTo(4);
+            c.close();
+        } finally {
+            sqlite.endTransaction();
+        }
+        assertThat(sqlite.inTransaction()).isFalse();
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "todos";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE todos (name TEXT NOT NULL, completed INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
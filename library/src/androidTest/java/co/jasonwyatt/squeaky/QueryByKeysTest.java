@@ -0,0 +1,168 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class QueryByKeysTest {
+    private static final RowMapper<Long> ID_MAPPER = new RowMapper<Long>() {
+        @Override
+        public Long map(Cursor cursor) {
+            return cursor.getLong(0);
+        }
+    };
+
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        String[] stmts = new String[2000];
+        Object[][] args = new Object[2000][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO items (id, code, parity) VALUES (?, ?, ?)";
+            args[i] = new Object[] {i + 1, "code"+(i + 1), (i + 1) % 2};
+        }
+        db.updateBatch(stmts, args, true);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE items");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void looks_up_short_lists() {
+        List<Long> ids = db.queryByKeys("SELECT id FROM items WHERE id IN :keys", new long[] {5, 7, 7, 9999}, ID_MAPPER);
+
+        Collections.sort(ids);
+        assertThat(ids).containsExactly(5L, 7L);
+    }
+
+    @Test
+    public void looks_up_long_lists() {
+        long[] keys = new long[1500];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i + 1;
+        }
+
+        List<Long> ids = db.queryByKeys("SELECT id FROM items WHERE id IN :keys", keys, ID_MAPPER);
+        assertThat(ids).hasSize(1500);
+
+        // chunked, but below the temporary table threshold.
+        List<Long> some = db.queryByKeys("SELECT id FROM items WHERE id IN :keys", Arrays.copyOf(keys, 250), ID_MAPPER);
+        assertThat(some).hasSize(250);
+    }
+
+    @Test
+    public void binds_other_arguments() {
+        long[] keys = new long[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i + 1;
+        }
+
+        assertThat(db.queryByKeys("SELECT id FROM items WHERE parity = ? AND id IN :keys AND id > ?", keys, ID_MAPPER, 0, 900)).hasSize(50);
+        assertThat(db.queryByKeys("SELECT id FROM items WHERE parity = ? AND id IN :keys AND id > ?", new long[] {901, 902, 904}, ID_MAPPER, 0, 900)).hasSize(2);
+    }
+
+    @Test
+    public void looks_up_text_keys() {
+        List<Long> ids = db.queryByKeys("SELECT id FROM items WHERE code IN :keys", new String[] {"code1", "code2", "nope"}, ID_MAPPER);
+        Collections.sort(ids);
+        assertThat(ids).containsExactly(1L, 2L);
+    }
+
+    @Test
+    public void long_lists_do_not_lock_out_readers() {
+        long[] keys = new long[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i + 1;
+        }
+
+        final SQLiteDatabase reader = SQLiteDatabase.openDatabase(db.getWritableDB().getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            final long[] counted = new long[1];
+            db.queryByKeys("SELECT id FROM items WHERE id IN :keys", keys, new RowMapper<Long>() {
+                @Override
+                public Long map(Cursor cursor) {
+                    // another connection can still read while the temporary table is filled and read.
+                    counted[0] = DatabaseUtils.longForQuery(reader, "SELECT COUNT(*) FROM items", null);
+                    return cursor.getLong(0);
+                }
+            });
+            assertThat(counted[0]).isEqualTo(2000);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void rejects_null_arguments() {
+        long[] longList = new long[1000];
+        for (int i = 0; i < longList.length; i++) {
+            longList[i] = i + 1;
+        }
+
+        for (long[] keys : new long[][] {{1, 2}, longList}) {
+            try {
+                db.queryByKeys("SELECT id FROM items WHERE code IS ? AND id IN :keys", keys, ID_MAPPER, (Object) null);
+                failBecauseExceptionWasNotThrown(DatabaseException.class);
+            } catch (DatabaseException e) {
+                assertThat(e.getMessage()).contains("null");
+            }
+        }
+    }
+
+    @Test
+    public void requires_the_placeholder() {
+        try {
+            db.queryByKeys("SELECT id FROM items WHERE id IN (?)", new long[] {1}, ID_MAPPER);
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            assertThat(e.getMessage()).contains(":keys");
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "items";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE items (id INTEGER PRIMARY KEY, code TEXT NOT NULL, parity INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class QuerySchedulerTest {
+    private Database db;
+    private QueryScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        scheduler = new QueryScheduler(db, 1);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        db.update("DROP TABLE scheduled");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void runs_higher_priority_work_first() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        // occupy the only worker, so everything else queues up.
+        Future<Void> blocking = scheduler.submit(QueryScheduler.PRIORITY_NORMAL, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                blocker.await();
+                return null;
+            }
+        });
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        List<Future<Void>> futures = new ArrayList<>();
+        int[] priorities = {QueryScheduler.PRIORITY_BULK, QueryScheduler.PRIORITY_NORMAL, QueryScheduler.PRIORITY_INTERACTIVE, QueryScheduler.PRIORITY_BULK};
+        for (final int priority : priorities) {
+            futures.add(scheduler.submit(priority, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    order.add(priority);
+                    return null;
+                }
+            }));
+        }
+        blocker.countDown();
+        blocking.get();
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+
+        assertThat(order).containsExactly(QueryScheduler.PRIORITY_INTERACTIVE, QueryScheduler.PRIORITY_NORMAL, QueryScheduler.PRIORITY_BULK, QueryScheduler.PRIORITY_BULK);
+    }
+
+    @Test
+    public void chunked_batch_applies_every_statement() throws Exception {
+        String[] stmts = new String[1050];
+        Object[][] args = new Object[stmts.length][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO scheduled (value) VALUES (?)";
+            args[i] = new Object[] {i};
+        }
+
+        assertThat(scheduler.updateBatch(stmts, args, 100).get()).isEqualTo(1050);
+
+        Cursor c = scheduler.query(QueryScheduler.PRIORITY_INTERACTIVE, "SELECT COUNT(*) FROM scheduled").get();
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getInt(0)).isEqualTo(1050);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void interactive_work_interleaves_with_batch_chunks() throws Exception {
+        String[] stmts = new String[1000];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO scheduled (value) VALUES ("+i+")";
+        }
+        Future<Integer> batch = scheduler.updateBatch(stmts, null, 10);
+        Future<Cursor> query = scheduler.query(QueryScheduler.PRIORITY_INTERACTIVE, "SELECT COUNT(*) FROM scheduled");
+
+        Cursor c = query.get();
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            // the query ran between chunks, not after the whole batch.
+            assertThat(c.getInt(0)).isLessThan(1000);
+            assertThat(c.getInt(0) % 10).isEqualTo(0);
+        } finally {
+            c.close();
+        }
+        assertThat(batch.get()).isEqualTo(1000);
+    }
+
+    @Test
+    public void cancelled_batch_runs_no_more_chunks() throws Exception {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        Future<Void> blocking = scheduler.submit(QueryScheduler.PRIORITY_NORMAL, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                blocker.await();
+                return null;
+            }
+        });
+        String[] stmts = new String[100];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO scheduled (value) VALUES ("+i+")";
+        }
+        Future<Integer> batch = scheduler.updateBatch(stmts, null, 10);
+
+        assertThat(batch.cancel(false)).isTrue();
+        assertThat(batch.isCancelled()).isTrue();
+        assertThat(batch.isDone()).isTrue();
+        blocker.countDown();
+        blocking.get();
+        try {
+            batch.get();
+            failBecauseExceptionWasNotThrown(CancellationException.class);
+        } catch (CancellationException e) {
+            // expected.
+        }
+
+        Cursor c = scheduler.query(QueryScheduler.PRIORITY_INTERACTIVE, "SELECT COUNT(*) FROM scheduled").get();
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getInt(0)).isEqualTo(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void measures_queueing_delay() throws Exception {
+        scheduler.update(QueryScheduler.PRIORITY_NORMAL, "INSERT INTO scheduled (value) VALUES (1)").get();
+        scheduler.update(QueryScheduler.PRIORITY_NORMAL, "INSERT INTO scheduled (value) VALUES (2)").get();
+
+        assertThat(scheduler.getStats(QueryScheduler.PRIORITY_NORMAL).getCount()).isEqualTo(2);
+        assertThat(scheduler.getStats(QueryScheduler.PRIORITY_INTERACTIVE).getCount()).isEqualTo(0);
+
+        scheduler.resetStats();
+        assertThat(scheduler.getStats(QueryScheduler.PRIORITY_NORMAL).getCount()).isEqualTo(0);
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "scheduled";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE scheduled (value INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ReadSessionTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.setTuningProfile(new TuningProfile().writeAheadLogging(true));
+        db.addTable(new TestTable());
+        db.prepare();
+        db.insert("INSERT INTO session_test (a) VALUES (?)", 1);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE session_test");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void session_sees_consistent_snapshot() {
+        ReadSession session = db.readSession();
+        try {
+            assertThat(count(session)).isEqualTo(1);
+
+            // writers aren't blocked by the session...
+            db.insert("INSERT INTO session_test (a) VALUES (?)", 2);
+            Cursor c = db.query("SELECT COUNT(*) FROM session_test");
+            c.moveToFirst();
+            assertThat(c.getInt(0)).isEqualTo(2);
+            c.close();
+
+            // ...but the session doesn't see their changes.
+            assertThat(count(session)).isEqualTo(1);
+        } finally {
+            session.close();
+        }
+        assertThat(session.isOpen()).isFalse();
+
+        session = db.readSession();
+        try {
+            assertThat(count(session)).isEqualTo(2);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void closed_session_rejects_queries() {
+        ReadSession session = db.readSession();
+        session.close();
+        try {
+            session.query("SELECT * FROM session_test");
+            assertThat(false).isTrue();
+        } catch (DatabaseException e) {
+            // expected.
+        }
+    }
+
+    private static int count(ReadSession session) {
+        Cursor c = session.query("SELECT COUNT(*) FROM session_test");
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "session_test";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE session_test (a INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
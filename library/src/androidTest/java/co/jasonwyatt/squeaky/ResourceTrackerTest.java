@@ -0,0 +1,156 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ResourceTrackerTest {
+    private static final String QUERY = "SELECT * FROM things";
+
+    private Database db;
+    private ResourceTracker tracker;
+
+    @Before
+    public void setUp() {
+        // this test calls the library from inside its package, like an app would from outside.
+        ContentionProfiler.addCallerClass(getClass());
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        db.insert("INSERT INTO things (name) VALUES (?)", "thing");
+        tracker = new ResourceTracker();
+        db.setResourceTracker(tracker);
+    }
+
+    @After
+    public void tearDown() {
+        db.setResourceTracker(null);
+        db.update("DROP TABLE things");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void closed_cursors_are_forgotten() {
+        Cursor c = db.query(QUERY);
+        assertThat(c.moveToFirst()).isTrue();
+        assertThat(c.getString(0)).isEqualTo("thing");
+        c.close();
+
+        assertThat(c.isClosed()).isTrue();
+        assertThat(tracker.getOpenResources()).isEmpty();
+    }
+
+    @Test
+    public void lists_open_cursors() {
+        Cursor c = db.query(QUERY);
+        try {
+            List<ResourceTracker.Allocation> open = tracker.getOpenResources();
+            assertThat(open).hasSize(1);
+            assertThat(open.get(0).getKind()).isEqualTo(ResourceTracker.KIND_CURSOR);
+            assertThat(open.get(0).getStatement()).isEqualTo(QUERY);
+            assertThat(open.get(0).getCallSite()).contains(getClass().getSimpleName());
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void attributes_cursors_opened_by_library_helpers_to_their_caller() {
+        final List<String> callSites = new ArrayList<>();
+        final RowStream.Subscription[] subscription = new RowStream.Subscription[1];
+        db.stream(QUERY, null, new RowMapper<String>() {
+            @Override
+            public String map(Cursor cursor) {
+                return cursor.getString(0);
+            }
+        }).subscribe(new RowStream.Subscriber<String>() {
+            @Override
+            public void onSubscribe(RowStream.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(String item) {
+                for (ResourceTracker.Allocation open : tracker.getOpenResources()) {
+                    callSites.add(open.getCallSite());
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                // nothing to do.
+            }
+
+            @Override
+            public void onComplete() {
+                // nothing to do.
+            }
+        });
+
+        // the stream's publisher opens the cursor, on behalf of this test.
+        subscription[0].request(1);
+        subscription[0].cancel();
+        assertThat(callSites).hasSize(1);
+        assertThat(callSites.get(0)).contains(getClass().getSimpleName());
+    }
+
+    @Test
+    public void reports_and_reclaims_leaked_cursors() {
+        leakCursor();
+
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (tracker.getLeakCount() == 0 && SystemClock.elapsedRealtime() < deadline) {
+            System.gc();
+            System.runFinalization();
+            tracker.reap();
+            SystemClock.sleep(10);
+        }
+
+        assertThat(tracker.getLeakCount()).isEqualTo(1);
+        assertThat(tracker.getOpenResources()).isEmpty();
+        assertThat(tracker.getLeaks().get(0).getStatement()).isEqualTo(QUERY);
+        assertThat(tracker.getLeakCounts().keySet().iterator().next()).contains("leakCursor");
+    }
+
+    private void leakCursor() {
+        Cursor c = db.query(QUERY);
+        c.moveToFirst();
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "things";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE things (name TEXT NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class ShardedDatabaseTest {
+    private static final int SHARDS = 4;
+    private Context context;
+    private ShardedDatabase db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getContext();
+        db = new ShardedDatabase(context, getClass().getSimpleName(), SHARDS);
+        db.addTable(new EventsTable());
+        db.prepare();
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        for (int i = 0; i < SHARDS; i++) {
+            context.deleteDatabase(getClass().getSimpleName()+"_shard"+i);
+        }
+    }
+
+    @Test
+    public void writes_are_routed_by_shard_key() {
+        for (long id = 0; id < 100; id++) {
+            db.insert(id, "INSERT INTO events (id, value) VALUES (?, ?)", id, id * 10);
+        }
+
+        int nonEmptyShards = 0;
+        int total = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            Cursor c = db.getShard(i).query("SELECT COUNT(*) FROM events");
+            c.moveToNext();
+            if (c.getInt(0) > 0) {
+                nonEmptyShards++;
+            }
+            total += c.getInt(0);
+            c.close();
+        }
+        assertThat(nonEmptyShards).isEqualTo(SHARDS);
+        assertThat(total).isEqualTo(100);
+
+        Cursor c = db.query(42L, "SELECT value FROM events WHERE id = ?", 42L);
+        assertThat(c.moveToNext()).isTrue();
+        assertThat(c.getLong(0)).isEqualTo(420L);
+        c.close();
+
+        assertThat(db.updateAll("UPDATE events SET value = value + 1")).isEqualTo(100);
+        c = db.queryAll("SELECT * FROM events");
+        assertThat(c.getCount()).isEqualTo(100);
+        c.close();
+    }
+
+    @Test
+    public void ordered_query_merges_shards() {
+        for (long id = 0; id < 50; id++) {
+            db.insert(id, "INSERT INTO events (id, value) VALUES (?, ?)", id, 1000 - id);
+        }
+
+        List<Long> ids = db.queryAll("SELECT id FROM events ORDER BY id DESC LIMIT ?", new Object[] {10}, new RowMapper<Long>() {
+            @Override
+            public Long map(Cursor cursor) {
+                return cursor.getLong(0);
+            }
+        }, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return b.compareTo(a);
+            }
+        }, 10);
+
+        assertThat(ids).containsExactly(49L, 48L, 47L, 46L, 45L, 44L, 43L, 42L, 41L, 40L);
+    }
+
+    @Test
+    public void failed_query_all_closes_other_shards_cursors() {
+        ResourceTracker tracker = new ResourceTracker();
+        for (int i = 0; i < SHARDS; i++) {
+            db.getShard(i).setResourceTracker(tracker);
+        }
+        db.getShard(SHARDS - 1).update("DROP TABLE events");
+
+        try {
+            db.queryAll("SELECT * FROM events");
+            failBecauseExceptionWasNotThrown(SQLiteException.class);
+        } catch (SQLiteException e) {
+            // expected.
+        }
+        assertThat(tracker.getOpenResources()).isEmpty();
+    }
+
+    @Test
+    public void merge_respects_order_and_limit() {
+        List<List<Integer>> sorted = Arrays.asList(
+                Arrays.asList(1, 4, 7),
+                Arrays.<Integer>asList(),
+                Arrays.asList(2, 3, 9));
+        Comparator<Integer> natural = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return a.compareTo(b);
+            }
+        };
+        assertThat(ShardedDatabase.merge(sorted, natural, 4)).containsExactly(1, 2, 3, 4);
+        assertThat(ShardedDatabase.merge(sorted, natural, -1)).containsExactly(1, 2, 3, 4, 7, 9);
+    }
+
+    private static class EventsTable extends Table {
+        @Override
+        public String getName() {
+            return "events";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE events (id INTEGER PRIMARY KEY, value INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
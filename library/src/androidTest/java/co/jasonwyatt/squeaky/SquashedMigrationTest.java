@@ -0,0 +1,166 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class SquashedMigrationTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE squashed_table");
+        db.update("DROP TABLE versions");
+    }
+
+    @Test
+    public void far_behind_table_uses_squashed_migration() {
+        SquashedTable t = new SquashedTable();
+        db.addTable(t);
+        db.prepare();
+        db.insert("INSERT INTO squashed_table (a) VALUES (?)", 5);
+        db.close();
+
+        t.version = 4;
+        db.addTable(t);
+        db.prepare();
+
+        assertThat(t.requestedMigrations).isEmpty();
+        assertVersion(4);
+        Cursor c = db.query("SELECT a, b, c FROM squashed_table");
+        assertThat(c.moveToNext()).isTrue();
+        assertThat(c.getInt(0)).isEqualTo(5);
+        assertThat(c.getInt(1)).isEqualTo(10);
+        assertThat(c.isNull(2)).isTrue();
+        c.close();
+    }
+
+    @Test
+    public void copy_swap_keeps_references_to_the_table() {
+        SquashedTable t = new SquashedTable();
+        db.addTable(t);
+        db.prepare();
+        db.insert("INSERT INTO squashed_table (a) VALUES (?)", 5);
+        db.update("CREATE TABLE squashed_child (a INTEGER REFERENCES squashed_table (a))");
+        db.update("CREATE VIEW squashed_view AS SELECT a FROM squashed_table");
+        db.close();
+
+        t.version = 4;
+        db.addTable(t);
+        db.prepare();
+        try {
+            assertVersion(4);
+            Cursor c = db.query("SELECT sql FROM sqlite_master WHERE name IN ('squashed_child', 'squashed_view') ORDER BY name");
+            assertThat(c.getCount()).isEqualTo(2);
+            while (c.moveToNext()) {
+                assertThat(c.getString(0)).contains("squashed_table").doesNotContain("_squeaky_");
+            }
+            c.close();
+
+            c = db.query("SELECT a FROM squashed_view");
+            assertThat(c.moveToNext()).isTrue();
+            assertThat(c.getInt(0)).isEqualTo(5);
+            c.close();
+        } finally {
+            db.update("DROP VIEW squashed_view");
+            db.update("DROP TABLE squashed_child");
+        }
+    }
+
+    @Test
+    public void single_steps_are_used_when_cheaper() {
+        SquashedTable t = new SquashedTable();
+        t.version = 3;
+        db.addTable(t);
+        db.prepare();
+        db.close();
+
+        t.version = 4;
+        db.addTable(t);
+        db.prepare();
+
+        assertThat(t.requestedMigrations).containsExactly(4);
+        assertVersion(4);
+    }
+
+    @Test
+    public void planner_prefers_squashed_path() {
+        SquashedTable t = new SquashedTable();
+        t.version = 4;
+        List<MigrationPlanner.Step> steps = MigrationPlanner.plan(t, 1);
+        assertThat(steps).hasSize(1);
+        assertThat(steps.get(0).squashed).isTrue();
+        assertThat(steps.get(0).toVersion).isEqualTo(4);
+
+        assertThat(MigrationPlanner.plan(t, 4)).isEmpty();
+    }
+
+    private void assertVersion(int expected) {
+        Cursor c = db.query("SELECT version FROM versions WHERE table_name = ?", "squashed_table");
+        assertThat(c.moveToNext()).isTrue();
+        assertThat(c.getInt(0)).isEqualTo(expected);
+        c.close();
+    }
+
+    private static class SquashedTable extends Table {
+        int version = 1;
+        List<Integer> requestedMigrations = new ArrayList<>();
+
+        @Override
+        public String getName() {
+            return "squashed_table";
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            if (version == 1) {
+                return new String[] {"CREATE TABLE squashed_table (a INTEGER)"};
+            }
+            return new String[] {"CREATE TABLE squashed_table (a INTEGER, b INTEGER, c TEXT)"};
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            requestedMigrations.add(nextVersion);
+            switch (nextVersion) {
+                case 2:
+                    return new String[] {"ALTER TABLE squashed_table ADD COLUMN b INTEGER"};
+                case 3:
+                    return new String[] {"UPDATE squashed_table SET b = a * 2"};
+                case 4:
+                    return new String[] {"ALTER TABLE squashed_table ADD COLUMN c TEXT"};
+            }
+            return new String[0];
+        }
+
+        @Override
+        public SquashedMigration[] getSquashedMigrations() {
+            return new SquashedMigration[] {
+                    SquashedMigration.copySwap(2, 4, getName(),
+                            new String[] {"CREATE TABLE squashed_table (a INTEGER, b INTEGER, c TEXT)"},
+                            "a, b", "a, a * 2")
+            };
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class StreamTest {
+    private static final RowMapper<Long> VALUE = new RowMapper<Long>() {
+        @Override
+        public Long map(Cursor cursor) {
+            return cursor.getLong(0);
+        }
+    };
+
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+
+        String[] stmts = new String[100];
+        Object[][] args = new Object[100][];
+        for (int i = 0; i < stmts.length; i++) {
+            stmts[i] = "INSERT INTO streamed (value) VALUES (?)";
+            args[i] = new Object[] {i};
+        }
+        db.updateBatch(stmts, args, false);
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE streamed");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void emits_nothing_until_requested() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        db.stream("SELECT value FROM streamed ORDER BY value", null, VALUE).subscribe(subscriber);
+
+        assertThat(subscriber.subscription).isNotNull();
+        assertThat(subscriber.items).isEmpty();
+    }
+
+    @Test
+    public void emits_only_requested_rows() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        db.stream("SELECT value FROM streamed ORDER BY value", null, VALUE).subscribe(subscriber);
+
+        subscriber.subscription.request(3);
+        assertThat(subscriber.items).containsExactly(0L, 1L, 2L);
+        assertThat(subscriber.completed).isFalse();
+
+        subscriber.subscription.request(2);
+        assertThat(subscriber.items).containsExactly(0L, 1L, 2L, 3L, 4L);
+    }
+
+    @Test
+    public void completes_after_last_row() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        db.stream("SELECT value FROM streamed WHERE value < ?", new Object[] {10}, VALUE).subscribe(subscriber);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertThat(subscriber.items).hasSize(10);
+        assertThat(subscriber.completed).isTrue();
+        assertThat(subscriber.error).isNull();
+    }
+
+    @Test
+    public void stops_after_cancel() {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Long item) {
+                super.onNext(item);
+                if (items.size() == 5) {
+                    subscription.cancel();
+                }
+            }
+        };
+        db.stream("SELECT value FROM streamed ORDER BY value", null, VALUE).subscribe(subscriber);
+
+        subscriber.subscription.request(50);
+        subscriber.subscription.request(50);
+        assertThat(subscriber.items).hasSize(5);
+        assertThat(subscriber.completed).isFalse();
+    }
+
+    @Test
+    public void supports_requesting_from_on_next() {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Long item) {
+                super.onNext(item);
+                subscription.request(1);
+            }
+        };
+        db.stream("SELECT value FROM streamed ORDER BY value", null, VALUE).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        assertThat(subscriber.items).hasSize(100);
+        assertThat(subscriber.completed).isTrue();
+    }
+
+    @Test
+    public void reports_invalid_requests() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        db.stream("SELECT value FROM streamed ORDER BY value", null, VALUE).subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+        assertThat(subscriber.error).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static class RecordingSubscriber implements RowStream.Subscriber<Long> {
+        RowStream.Subscription subscription;
+        final List<Long> items = new ArrayList<>();
+        boolean completed;
+        Throwable error;
+
+        @Override
+        public void onSubscribe(RowStream.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Long item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "streamed";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE streamed (value INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
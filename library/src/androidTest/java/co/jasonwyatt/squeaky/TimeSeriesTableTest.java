@@ -0,0 +1,234 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class TimeSeriesTableTest {
+    private static final String[] COLUMNS = {"ts", "name"};
+
+    private Database db;
+    private EventsTable events;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        events = new EventsTable();
+        events.now = 10000;
+        db.addTable(events);
+        db.prepare();
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP VIEW IF EXISTS events");
+        for (String partition : events.getPartitionNames()) {
+            db.update("DROP TABLE "+partition);
+        }
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void prepare_creates_current_partition() {
+        assertThat(events.getPartitionNames()).containsExactly("events_p10");
+        assertThat(count("events")).isEqualTo(0);
+    }
+
+    @Test
+    public void writes_go_to_their_partitions() {
+        events.insert(db, COLUMNS, 10500L, "a");
+        events.insert(db, COLUMNS, 11000L, "b");
+        events.insert(db, COLUMNS, 11999L, "c");
+
+        assertThat(events.getPartitionNames()).containsExactly("events_p10", "events_p11");
+        assertThat(count("events_p10")).isEqualTo(1);
+        assertThat(count("events_p11")).isEqualTo(2);
+        assertThat(count("events")).isEqualTo(3);
+        assertThat(events.getPartitionName(11500)).isEqualTo("events_p11");
+    }
+
+    @Test
+    public void batches_span_partitions() {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            rows.add(new Object[] {10000L + i * 100, "event "+i});
+        }
+
+        assertThat(events.insertBatch(db, COLUMNS, rows)).isEqualTo(30);
+
+        assertThat(events.getPartitionNames()).containsExactly("events_p10", "events_p11", "events_p12");
+        assertThat(count("events")).isEqualTo(30);
+    }
+
+    @Test
+    public void expired_partitions_are_dropped() {
+        events.insert(db, COLUMNS, 10000L, "old");
+        events.insert(db, COLUMNS, 12000L, "newer");
+
+        // p10 ends at 11000, which is more than 3000ms ago at 14000.
+        events.now = 14000;
+        assertThat(events.rollover(db)).isEqualTo(1);
+
+        assertThat(events.getPartitionNames()).containsExactly("events_p12", "events_p14");
+        assertThat(count("events")).isEqualTo(1);
+
+        // too old to keep.
+        assertThat(events.insert(db, COLUMNS, 10500L, "late")).isEqualTo(-1);
+        assertThat(count("events")).isEqualTo(1);
+    }
+
+    @Test
+    public void prepare_expires_and_migrates_partitions() {
+        events.insert(db, COLUMNS, 10000L, "old");
+        events.insert(db, COLUMNS, 13000L, "newer");
+        db.close();
+
+        events.now = 14500;
+        events.version = 2;
+        db.addTable(events);
+        db.prepare();
+
+        assertThat(events.getPartitionNames()).containsExactly("events_p13", "events_p14");
+        events.insert(db, new String[] {"ts", "name", "value"}, 14600L, "new", 1.5);
+        Cursor c = db.query("SELECT name, value FROM events ORDER BY ts");
+        try {
+            assertThat(c.getCount()).isEqualTo(2);
+            c.moveToFirst();
+            assertThat(c.getString(0)).isEqualTo("newer");
+            assertThat(c.isNull(1)).isTrue();
+            c.moveToNext();
+            assertThat(c.getDouble(1)).isEqualTo(1.5);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void view_uses_declared_column_order() {
+        events.insert(db, COLUMNS, 10000L, "before");
+        db.close();
+
+        // migrated partitions get the new column last, new partitions have it second.
+        events.now = 11000;
+        events.version = 2;
+        events.valueBeforeName = true;
+        db.addTable(events);
+        db.prepare();
+        events.insert(db, new String[] {"ts", "name", "value"}, 11500L, "after", 2.5);
+
+        Cursor c = db.query("SELECT name, value FROM events ORDER BY ts");
+        try {
+            assertThat(c.getCount()).isEqualTo(2);
+            c.moveToFirst();
+            assertThat(c.getString(0)).isEqualTo("before");
+            assertThat(c.isNull(1)).isTrue();
+            c.moveToNext();
+            assertThat(c.getString(0)).isEqualTo("after");
+            assertThat(c.getDouble(1)).isEqualTo(2.5);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void retention_must_fit_in_the_view() {
+        String name = getClass().getSimpleName()+"_retention";
+        EventsTable forever = new EventsTable();
+        forever.now = 10000;
+        forever.retention = (TimeSeriesTable.MAX_PARTITIONS + 1) * 1000L;
+        Database other = new Database(InstrumentationRegistry.getContext(), name);
+        other.addTable(forever);
+        try {
+            other.prepare();
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            assertThat(e.getMessage()).contains("events");
+        } finally {
+            InstrumentationRegistry.getContext().deleteDatabase(name);
+        }
+    }
+
+    @Test
+    public void rows_need_timestamps() {
+        try {
+            events.insert(db, new String[] {"name"}, "no timestamp");
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            assertThat(e.getMessage()).contains("ts");
+        }
+    }
+
+    private int count(String table) {
+        Cursor c = db.query("SELECT COUNT(*) FROM "+table);
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class EventsTable extends TimeSeriesTable {
+        long now;
+        int version = 1;
+        boolean valueBeforeName;
+        long retention = 3000;
+
+        @Override
+        public String getName() {
+            return "events";
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public String[] getColumnDefinitions() {
+            if (version == 1) {
+                return new String[] {"ts INTEGER NOT NULL", "name TEXT"};
+            }
+            if (valueBeforeName) {
+                return new String[] {"ts INTEGER NOT NULL", "value REAL", "name TEXT"};
+            }
+            return new String[] {"ts INTEGER NOT NULL", "name TEXT", "value REAL"};
+        }
+
+        @Override
+        public String[] getPartitionMigration(int nextVersion, String partition) {
+            if (nextVersion == 2) {
+                return new String[] {"ALTER TABLE "+partition+" ADD COLUMN value REAL"};
+            }
+            return new String[0];
+        }
+
+        @Override
+        public long getPartitionMillis() {
+            return 1000;
+        }
+
+        @Override
+        public long getRetentionMillis() {
+            return retention;
+        }
+
+        @Override
+        long now() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package co.jasonwyatt.squeaky;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class TuningProfileTest {
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE versions");
+        db.close();
+        InstrumentationRegistry.getContext().deleteDatabase(getClass().getSimpleName());
+    }
+
+    @Test
+    public void profile_is_applied_and_reported() {
+        db.setTuningProfile(TuningProfile.readHeavy()
+                .cacheSize(-1024)
+                .pragma("foreign_keys", "ON"));
+        db.prepare();
+
+        Map<String, String> settings = db.getEffectiveSettings();
+        assertThat(settings.get("journal_mode")).isEqualToIgnoringCase("wal");
+        assertThat(settings.get("synchronous")).isEqualTo("1");
+        assertThat(settings.get("cache_size")).isEqualTo("-1024");
+        assertThat(settings.get("temp_store")).isEqualTo("2");
+        assertThat(settings.get("foreign_keys")).isEqualTo("1");
+    }
+
+    @Test
+    public void page_size_is_set_before_write_ahead_logging() {
+        db.setTuningProfile(TuningProfile.writeHeavy().pageSize(8192));
+        db.prepare();
+
+        Map<String, String> settings = db.getEffectiveSettings();
+        assertThat(settings.get("journal_mode")).isEqualToIgnoringCase("wal");
+        assertThat(settings.get("page_size")).isEqualTo("8192");
+    }
+
+    @Test
+    public void defaults_are_reported_without_profile() {
+        db.prepare();
+
+        Map<String, String> settings = db.getEffectiveSettings();
+        assertThat(settings.containsKey("journal_mode")).isTrue();
+        assertThat(settings.containsKey("mmap_size")).isTrue();
+    }
+
+    @Test
+    public void profile_cannot_change_after_prepare() {
+        db.prepare();
+        try {
+            db.setTuningProfile(TuningProfile.lowMemory());
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            // expected.
+        }
+    }
+}
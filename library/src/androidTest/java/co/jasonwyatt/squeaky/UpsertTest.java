@@ -0,0 +1,208 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+@RunWith(AndroidJUnit4.class)
+public class UpsertTest {
+    private static final String[] KEYS = {"server_id"};
+    private Database db;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+    }
+
+    @After
+    public void tearDown() {
+        db.update("DROP TABLE contacts");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void inserts_new_records() {
+        long rowid = db.upsert("contacts", KEYS, contact("a", "Alice", 30));
+
+        assertThat(rowid).isGreaterThan(0);
+        assertThat(nameOf(rowid)).isEqualTo("Alice");
+    }
+
+    @Test
+    public void updates_existing_records() {
+        long inserted = db.upsert("contacts", KEYS, contact("a", "Alice", 30));
+        long updated = db.upsert("contacts", KEYS, contact("a", "Alicia", 31));
+
+        assertThat(updated).isEqualTo(inserted);
+        assertThat(nameOf(updated)).isEqualTo("Alicia");
+        assertThat(count()).isEqualTo(1);
+    }
+
+    @Test
+    public void leaves_unspecified_columns_alone() {
+        long rowid = db.upsert("contacts", KEYS, contact("a", "Alice", 30));
+        Map<String, Object> nameOnly = new LinkedHashMap<>();
+        nameOnly.put("server_id", "a");
+        nameOnly.put("name", "Al");
+        db.upsert("contacts", KEYS, nameOnly);
+
+        Cursor c = db.query("SELECT name, age FROM contacts WHERE rowid = ?", rowid);
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getString(0)).isEqualTo("Al");
+            assertThat(c.getInt(1)).isEqualTo(30);
+        } finally {
+            c.close();
+        }
+    }
+
+    @Test
+    public void batch_upserts_in_order() {
+        long existing = db.upsert("contacts", KEYS, contact("b", "Bob", 40));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(contact("a", "Alice", 30));
+        rows.add(contact("b", "Robert", 41));
+        rows.add(contact("c", "Carol", 50));
+        long[] rowids = db.upsertBatch("contacts", KEYS, rows);
+
+        assertThat(rowids).hasSize(3);
+        assertThat(rowids[1]).isEqualTo(existing);
+        assertThat(nameOf(rowids[0])).isEqualTo("Alice");
+        assertThat(nameOf(rowids[1])).isEqualTo("Robert");
+        assertThat(nameOf(rowids[2])).isEqualTo("Carol");
+        assertThat(count()).isEqualTo(3);
+    }
+
+    @Test
+    public void updates_between_inserts_return_their_own_rowids() {
+        long alice = db.upsert("contacts", KEYS, contact("a", "Alice", 30));
+        long bob = db.upsert("contacts", KEYS, contact("b", "Bob", 40));
+
+        // each update follows an insert, so last_insert_rowid is never the updated row's.
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(contact("a", "Alicia", 31));
+        rows.add(contact("c", "Carol", 50));
+        rows.add(contact("b", "Robert", 41));
+        rows.add(contact("c", "Caroline", 51));
+        rows.add(contact("b", "Rob", 42));
+        long[] rowids = db.upsertBatch("contacts", KEYS, rows);
+
+        assertThat(rowids[0]).isEqualTo(alice);
+        assertThat(rowids[1]).isGreaterThan(bob);
+        assertThat(rowids[2]).isEqualTo(bob);
+        assertThat(rowids[3]).isEqualTo(rowids[1]);
+        assertThat(rowids[4]).isEqualTo(bob);
+        assertThat(nameOf(rowids[1])).isEqualTo("Caroline");
+        assertThat(nameOf(bob)).isEqualTo("Rob");
+        assertThat(count()).isEqualTo(3);
+    }
+
+    @Test
+    public void fallback_matches_native_behavior() {
+        // force the pre-3.24.0 INSERT OR IGNORE + UPDATE path.
+        Upserter upserter = new Upserter("3.7.4");
+        assertThat(upserter.isNative()).isFalse();
+
+        SQLiteDatabase sqlite = db.getWritableDB();
+        sqlite.beginTransaction();
+        try {
+            long inserted = upserter.upsert(sqlite, "contacts", KEYS, Collections.singletonList(contact("a", "Alice", 30)))[0];
+            long updated = upserter.upsert(sqlite, "contacts", KEYS, Collections.singletonList(contact("a", "Alicia", 31)))[0];
+            assertThat(updated).isEqualTo(inserted);
+            sqlite.setTransactionSuccessful();
+        } finally {
+            sqlite.endTransaction();
+        }
+        assertThat(count()).isEqualTo(1);
+        assertThat(nameOf(1)).isEqualTo("Alicia");
+    }
+
+    @Test
+    public void rejects_null_keys() {
+        try {
+            db.upsert("contacts", KEYS, contact(null, "Nobody", 0));
+            failBecauseExceptionWasNotThrown(DatabaseException.class);
+        } catch (DatabaseException e) {
+            assertThat(e.getMessage()).contains("server_id");
+        }
+    }
+
+    @Test
+    public void compares_versions() {
+        int[] required = {3, 24, 0};
+        assertThat(Database.compareVersions("3.24.0", required)).isEqualTo(0);
+        assertThat(Database.compareVersions("3.28.0", required)).isEqualTo(1);
+        assertThat(Database.compareVersions("3.8.10.2", required)).isEqualTo(-1);
+        assertThat(Database.compareVersions("4.0", required)).isEqualTo(1);
+    }
+
+    private static Map<String, Object> contact(String serverId, String name, int age) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("server_id", serverId);
+        values.put("name", name);
+        values.put("age", age);
+        return values;
+    }
+
+    private String nameOf(long rowid) {
+        Cursor c = db.query("SELECT name FROM contacts WHERE rowid = ?", rowid);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int count() {
+        Cursor c = db.query("SELECT COUNT(*) FROM contacts");
+        try {
+            c.moveToFirst();
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "contacts";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE contacts (server_id TEXT NOT NULL UNIQUE, name TEXT, age INTEGER)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
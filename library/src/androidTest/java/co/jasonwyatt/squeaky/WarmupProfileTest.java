@@ -0,0 +1,128 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class WarmupProfileTest {
+    private static final String QUERY = "SELECT name FROM notes WHERE name = ?";
+
+    private Database db;
+    private WarmupProfile profile;
+    private File file;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        file = new File(InstrumentationRegistry.getContext().getDatabasePath(db.getName()).getPath()+"-warmup");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        profile = new WarmupProfile().recordFor(60000);
+        db.addTable(new TestTable());
+        db.setWarmupProfile(profile);
+        db.prepare();
+    }
+
+    @After
+    public void tearDown() {
+        db.setWarmupProfile(null);
+        db.update("DROP TABLE notes");
+        db.update("DROP TABLE versions");
+        db.close();
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void warms_up_recorded_statements_on_next_prepare() {
+        db.insert("INSERT INTO notes (name) VALUES (?)", "hello");
+        query("hello");
+        query("world");
+        db.close();
+        assertThat(file.exists()).isTrue();
+
+        db.prepare();
+        awaitWarmup();
+
+        assertThat(profile.getProfiledStatements()).containsExactly("INSERT INTO notes (name) VALUES (?)", QUERY);
+        assertThat(profile.getWarmedStatementCount()).isEqualTo(2);
+        assertThat(profile.getWarmedObjects()).containsExactly("notes_name");
+    }
+
+    @Test
+    public void only_records_during_window() {
+        db.close();
+        profile.recordFor(0);
+        db.prepare();
+        SystemClock.sleep(10);
+
+        query("hello");
+        db.close();
+        db.prepare();
+
+        assertThat(file.exists()).isFalse();
+    }
+
+    @Test
+    public void skips_statements_which_no_longer_compile() {
+        db.update("CREATE TABLE scratch (x INTEGER)");
+        db.query("SELECT x FROM scratch").close();
+        db.update("DROP TABLE scratch");
+        db.close();
+
+        db.prepare();
+        awaitWarmup();
+
+        assertThat(profile.getProfiledStatements()).containsExactly("SELECT x FROM scratch");
+        assertThat(profile.getWarmedStatementCount()).isEqualTo(0);
+    }
+
+    private void query(String name) {
+        Cursor c = db.query(QUERY, name);
+        c.close();
+    }
+
+    private void awaitWarmup() {
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (profile.getWarmedStatementCount() < 0 && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertThat(profile.getWarmedStatementCount()).isGreaterThanOrEqualTo(0);
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "notes";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE notes (name TEXT NOT NULL)",
+                    "CREATE INDEX notes_name ON notes (name)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
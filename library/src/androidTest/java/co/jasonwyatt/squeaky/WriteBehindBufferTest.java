@@ -0,0 +1,189 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteBehindBufferTest {
+    private Database db;
+    private WriteBehindBuffer buffer;
+
+    @Before
+    public void setUp() {
+        db = new Database(InstrumentationRegistry.getContext(), getClass().getSimpleName());
+        db.addTable(new TestTable());
+        db.prepare();
+        db.updateBatch(new String[] {
+                "INSERT INTO progress (rowid, bytes, seen) VALUES (1, 0, 0)",
+                "INSERT INTO progress (rowid, bytes, seen) VALUES (2, 0, 0)"
+        }, null, false);
+        buffer = db.writeBehind("progress", "rowid").flushInterval(60000);
+    }
+
+    @After
+    public void tearDown() {
+        buffer.close();
+        db.update("DROP TABLE progress");
+        db.update("DROP TABLE versions");
+        db.close();
+    }
+
+    @Test
+    public void coalesces_updates() {
+        long writes = db.getWriteCount();
+        for (int i = 0; i < 100; i++) {
+            buffer.increment(1, "bytes", 10);
+            buffer.put(1L, Collections.singletonMap("seen", i));
+        }
+
+        assertThat(buffer.getPendingCount()).isEqualTo(1);
+        assertThat(db.getWriteCount()).isEqualTo(writes);
+
+        assertThat(buffer.flush()).isEqualTo(1);
+        assertThat(db.getWriteCount()).isEqualTo(writes + 1);
+        assertRow(1, 1000, 99);
+    }
+
+    @Test
+    public void reads_see_buffered_updates() {
+        buffer.increment(1, "bytes", 5);
+        buffer.put(1, Collections.singletonMap("seen", 42));
+
+        Map<String, Object> row = buffer.read(1, "bytes", "seen");
+        assertThat(row.get("bytes")).isEqualTo(5L);
+        assertThat(row.get("seen")).isEqualTo(42);
+        assertThat(buffer.getPendingCount()).isEqualTo(1);
+
+        // queries of the table flush it first.
+        assertRow(1, 5, 42);
+        assertThat(buffer.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void sessions_and_scans_see_buffered_updates() {
+        buffer.increment(1, "bytes", 5);
+        ReadSession session = db.readSession();
+        try {
+            assertThat(buffer.getPendingCount()).isEqualTo(0);
+            Cursor c = session.query("SELECT bytes FROM progress WHERE rowid = 1");
+            try {
+                assertThat(c.moveToFirst()).isTrue();
+                assertThat(c.getLong(0)).isEqualTo(5);
+            } finally {
+                c.close();
+            }
+        } finally {
+            session.close();
+        }
+
+        buffer.increment(2, "bytes", 7);
+        long[] total = db.parallelScan("progress", "bytes", null, null, new ScanAccumulator<long[]>() {
+            @Override
+            public long[] create() {
+                return new long[1];
+            }
+
+            @Override
+            public void accumulate(long[] accumulator, Cursor row) {
+                accumulator[0] += row.getLong(0);
+            }
+
+            @Override
+            public long[] merge(long[] left, long[] right) {
+                left[0] += right[0];
+                return left;
+            }
+        });
+        assertThat(buffer.getPendingCount()).isEqualTo(0);
+        assertThat(total[0]).isEqualTo(12);
+    }
+
+    @Test
+    public void merges_values() {
+        buffer.merger(WriteBehindBuffer.MAX);
+        buffer.put(1, Collections.singletonMap("seen", 30));
+        buffer.put(1, Collections.singletonMap("seen", 10));
+        buffer.flush();
+
+        assertRow(1, 0, 30);
+    }
+
+    @Test
+    public void flushes_when_full() {
+        buffer.maxPendingKeys(2);
+        buffer.increment(1, "bytes", 1);
+        assertThat(buffer.getPendingCount()).isEqualTo(1);
+
+        buffer.increment(2, "bytes", 1);
+        assertThat(buffer.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void flushes_periodically() {
+        buffer.flushInterval(50);
+        buffer.increment(2, "bytes", 7);
+
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (buffer.getPendingCount() > 0 && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(10);
+        }
+        assertThat(buffer.getPendingCount()).isEqualTo(0);
+        assertRow(2, 7, 0);
+    }
+
+    @Test
+    public void flushes_on_close() {
+        buffer.increment(2, "bytes", 3);
+        db.close();
+        db.prepare();
+
+        assertRow(2, 3, 0);
+    }
+
+    private void assertRow(long rowid, long bytes, long seen) {
+        Cursor c = db.query("SELECT bytes, seen FROM progress WHERE rowid = ?", rowid);
+        try {
+            assertThat(c.moveToFirst()).isTrue();
+            assertThat(c.getLong(0)).isEqualTo(bytes);
+            assertThat(c.getLong(1)).isEqualTo(seen);
+        } finally {
+            c.close();
+        }
+    }
+
+    private static class TestTable extends Table {
+        @Override
+        public String getName() {
+            return "progress";
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String[] getCreateTable() {
+            return new String[] {
+                    "CREATE TABLE progress (bytes INTEGER NOT NULL, seen INTEGER NOT NULL)"
+            };
+        }
+
+        @Override
+        public String[] getMigration(int nextVersion) {
+            return new String[0];
+        }
+    }
+}
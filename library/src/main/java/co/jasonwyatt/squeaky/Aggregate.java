@@ -0,0 +1,444 @@
+package co.jasonwyatt.squeaky;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * Declarative definition of a materialized aggregate over a {@link Table}.  Return instances of
+ * {@link Aggregate} from {@link Table#getAggregates()} and Squeaky will keep a side table, named
+ * after the aggregate, up to date using triggers on the table:
+ * </p>
+ *
+ * <pre>
+ *     new Aggregate("todo_counts", "list_id")
+ *             .where("finished_date IS NULL")
+ *             .count("unfinished")
+ *             .max("latest_create_date", "create_date");
+ * </pre>
+ *
+ * <p>
+ * The side table has the group columns, followed by one column per aggregated value, so reading
+ * an aggregate is a primary key lookup instead of a scan:
+ * <code>SELECT unfinished FROM todo_counts WHERE list_id = ?</code>.  Groups without any rows
+ * have no row in the side table.  An aggregate without group columns has exactly one row.
+ * </p>
+ *
+ * <p>
+ * Rows whose group columns are <code>NULL</code> aren't aggregated.  Whenever the definition of
+ * an aggregate changes its side table is rebuilt from scratch while the {@link Database} is being
+ * prepared, see also {@link Database#rebuildAggregates(String)}.
+ * </p>
+ */
+public class Aggregate {
+    static final String TRIGGER_PREFIX = "squeaky_agg_";
+    static final String INSERT_TRIGGER_SUFFIX = "_insert";
+    private static final String[] TRIGGER_SUFFIXES = {INSERT_TRIGGER_SUFFIX, "_delete", "_update_old", "_update_new"};
+    private static final String ROWS_COLUMN = "_rows";
+
+    private static final int COUNT = 0;
+    private static final int SUM = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+
+    private final String mName;
+    private final String[] mGroupBy;
+    private final List<Value> mValues = new ArrayList<>();
+    private String mWhere;
+
+    /**
+     * Creates a new {@link Aggregate} definition.
+     * @param name Name of the aggregate's side table. Must be unique in the database.
+     * @param groupBy Columns to group the table's rows by, or none to aggregate the whole table.
+     */
+    public Aggregate(String name, String... groupBy) {
+        mName = name;
+        mGroupBy = groupBy == null ? new String[0] : groupBy;
+    }
+
+    /**
+     * Only aggregate rows matching the given expression.
+     * @param expression Expression over the table's columns, as in a <code>WHERE</code> clause.
+     * @return This aggregate, for chaining.
+     */
+    public Aggregate where(String expression) {
+        mWhere = expression;
+        return this;
+    }
+
+    /**
+     * Count the rows in each group.
+     * @param as Name of the side table's column holding the count.
+     * @return This aggregate, for chaining.
+     */
+    public Aggregate count(String as) {
+        return add(COUNT, as, null);
+    }
+
+    /**
+     * Sum a column in each group.  Unlike SQL's <code>SUM()</code>, the sum of no values is 0.
+     * @param as Name of the side table's column holding the sum.
+     * @param column Column (of the table) to sum.
+     * @return This aggregate, for chaining.
+     */
+    public Aggregate sum(String as, String column) {
+        return add(SUM, as, column);
+    }
+
+    /**
+     * Track the smallest non-null value of a column in each group.  Deleting (or updating) the
+     * current minimum re-computes it with a query on the table, so an index on the group columns
+     * and {@param column} keeps that cheap.
+     * @param as Name of the side table's column holding the minimum.
+     * @param column Column (of the table) to track.
+     * @return This aggregate, for chaining.
+     */
+    public Aggregate min(String as, String column) {
+        return add(MIN, as, column);
+    }
+
+    /**
+     * Track the largest non-null value of a column in each group.
+     * @param as Name of the side table's column holding the maximum.
+     * @param column Column (of the table) to track.
+     * @return This aggregate, for chaining.
+     * @see #min(String, String)
+     */
+    public Aggregate max(String as, String column) {
+        return add(MAX, as, column);
+    }
+
+    private Aggregate add(int function, String as, String column) {
+        mValues.add(new Value(function, as, column));
+        return this;
+    }
+
+    /**
+     * Get the name of the aggregate's side table.
+     * @return Name of the aggregate.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the columns the table's rows are grouped by.
+     * @return Group columns, possibly empty.
+     */
+    public String[] getGroupBy() {
+        return mGroupBy;
+    }
+
+    /**
+     * Get the expression rows must match to be aggregated.
+     * @return Filter expression, or null if every row is aggregated.
+     */
+    public String getWhere() {
+        return mWhere;
+    }
+
+    /**
+     * Get the SQL statements which create and populate the side table, and create the triggers
+     * maintaining it.
+     * @param tableName Name of the table being aggregated.
+     * @param tableColumns Columns of the table, which {@link #where(String)} may refer to.
+     * @return Statements creating the aggregate.
+     */
+    String[] getCreateStatements(String tableName, String[] tableColumns) {
+        if (mValues.isEmpty()) {
+            throw new DatabaseException("Aggregate "+mName+" must compute at least one value.");
+        }
+        List<String> stmts = new ArrayList<>();
+        stmts.add(getCreateTable());
+        for (String stmt : getRebuildStatements(tableName)) {
+            stmts.add(stmt);
+        }
+
+        String add = getAddStatements();
+        String subtract = getSubtractStatements(tableName);
+        String newCondition = getCondition("new", tableColumns);
+        String oldCondition = getCondition("old", tableColumns);
+        stmts.add("CREATE TRIGGER "+getTriggerName(INSERT_TRIGGER_SUFFIX)+" AFTER INSERT ON "+tableName+newCondition+" BEGIN "+add+" END");
+        stmts.add("CREATE TRIGGER "+getTriggerName("_delete")+" AFTER DELETE ON "+tableName+oldCondition+" BEGIN "+subtract+" END");
+        String updateOf = getUpdateOf();
+        if (updateOf != null) {
+            String update = " AFTER UPDATE"+updateOf+" ON "+tableName;
+            stmts.add("CREATE TRIGGER "+getTriggerName("_update_old")+update+oldCondition+" BEGIN "+subtract+" END");
+            stmts.add("CREATE TRIGGER "+getTriggerName("_update_new")+update+newCondition+" BEGIN "+add+" END");
+        }
+        return stmts.toArray(new String[stmts.size()]);
+    }
+
+    /**
+     * Get the SQL statements which re-compute the side table's contents from the table.
+     * @param tableName Name of the table being aggregated.
+     * @return Statements rebuilding the aggregate.
+     */
+    String[] getRebuildStatements(String tableName) {
+        StringBuilder insert = new StringBuilder("INSERT INTO ").append(mName).append(" (").append(getSideColumns())
+                .append(") SELECT ");
+        for (String group : mGroupBy) {
+            insert.append(group).append(", ");
+        }
+        insert.append("COUNT(*)");
+        for (Value value : mValues) {
+            insert.append(", ");
+            switch (value.mFunction) {
+                case COUNT:
+                    insert.append("COUNT(*)");
+                    break;
+                case SUM:
+                    insert.append("COALESCE(SUM(").append(value.mColumn).append("), 0)");
+                    break;
+                case MIN:
+                    insert.append("MIN(").append(value.mColumn).append(")");
+                    break;
+                default:
+                    insert.append("MAX(").append(value.mColumn).append(")");
+                    break;
+            }
+        }
+        insert.append(" FROM ").append(tableName);
+        List<String> conditions = new ArrayList<>();
+        for (String group : mGroupBy) {
+            conditions.add(group+" IS NOT NULL");
+        }
+        if (mWhere != null) {
+            conditions.add("("+mWhere+")");
+        }
+        if (!conditions.isEmpty()) {
+            insert.append(" WHERE ").append(join(conditions, " AND "));
+        }
+        if (mGroupBy.length > 0) {
+            insert.append(" GROUP BY ").append(join(mGroupBy, ", "));
+        }
+        return new String[] {"DELETE FROM "+mName, insert.toString()};
+    }
+
+    /**
+     * Get the SQL statements which drop the side table and triggers.
+     * @return Statements dropping the aggregate.
+     */
+    String[] getDropStatements() {
+        return getDropStatements(mName);
+    }
+
+    static String[] getDropStatements(String name) {
+        String[] stmts = new String[TRIGGER_SUFFIXES.length + 1];
+        for (int i = 0; i < TRIGGER_SUFFIXES.length; i++) {
+            stmts[i] = "DROP TRIGGER IF EXISTS "+TRIGGER_PREFIX+name+TRIGGER_SUFFIXES[i];
+        }
+        stmts[TRIGGER_SUFFIXES.length] = "DROP TABLE IF EXISTS "+name;
+        return stmts;
+    }
+
+    private String getTriggerName(String suffix) {
+        return TRIGGER_PREFIX+mName+suffix;
+    }
+
+    private String getCreateTable() {
+        List<String> columns = new ArrayList<>();
+        // group and min/max columns are untyped, so they keep the type of the table's values.
+        for (String group : mGroupBy) {
+            columns.add(group);
+        }
+        columns.add(ROWS_COLUMN+" INTEGER NOT NULL");
+        for (Value value : mValues) {
+            switch (value.mFunction) {
+                case COUNT:
+                    columns.add(value.mAs+" INTEGER NOT NULL");
+                    break;
+                case SUM:
+                    columns.add(value.mAs+" NOT NULL");
+                    break;
+                default:
+                    columns.add(value.mAs);
+                    break;
+            }
+        }
+        if (mGroupBy.length > 0) {
+            columns.add("PRIMARY KEY ("+join(mGroupBy, ", ")+")");
+        }
+        return "CREATE TABLE "+mName+" ("+join(columns, ", ")+")";
+    }
+
+    private String getSideColumns() {
+        List<String> columns = new ArrayList<>();
+        for (String group : mGroupBy) {
+            columns.add(group);
+        }
+        columns.add(ROWS_COLUMN);
+        for (Value value : mValues) {
+            columns.add(value.mAs);
+        }
+        return join(columns, ", ");
+    }
+
+    private String getAddStatements() {
+        StringBuilder sb = new StringBuilder();
+        if (mGroupBy.length > 0) {
+            // min and max start out NULL.
+            sb.append("INSERT OR IGNORE INTO ").append(mName).append(" (");
+            List<String> columns = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for (String group : mGroupBy) {
+                columns.add(group);
+                values.add("new."+group);
+            }
+            columns.add(ROWS_COLUMN);
+            values.add("0");
+            for (Value value : mValues) {
+                if (value.mFunction == COUNT || value.mFunction == SUM) {
+                    columns.add(value.mAs);
+                    values.add("0");
+                }
+            }
+            sb.append(join(columns, ", ")).append(") VALUES (").append(join(values, ", ")).append("); ");
+        }
+
+        List<String> sets = new ArrayList<>();
+        sets.add(ROWS_COLUMN+" = "+ROWS_COLUMN+" + 1");
+        for (Value value : mValues) {
+            String v = "new."+value.mColumn;
+            switch (value.mFunction) {
+                case COUNT:
+                    sets.add(value.mAs+" = "+value.mAs+" + 1");
+                    break;
+                case SUM:
+                    sets.add(value.mAs+" = "+value.mAs+" + COALESCE("+v+", 0)");
+                    break;
+                default:
+                    String comparison = value.mFunction == MIN ? " < " : " > ";
+                    sets.add(value.mAs+" = CASE WHEN "+v+" IS NOT NULL AND ("+value.mAs+" IS NULL OR "+v+comparison+value.mAs+") THEN "+v+" ELSE "+value.mAs+" END");
+                    break;
+            }
+        }
+        sb.append("UPDATE ").append(mName).append(" SET ").append(join(sets, ", ")).append(getKeyMatch("new")).append(";");
+        return sb.toString();
+    }
+
+    private String getSubtractStatements(String tableName) {
+        List<String> sets = new ArrayList<>();
+        sets.add(ROWS_COLUMN+" = "+ROWS_COLUMN+" - 1");
+        for (Value value : mValues) {
+            String v = "old."+value.mColumn;
+            switch (value.mFunction) {
+                case COUNT:
+                    sets.add(value.mAs+" = "+value.mAs+" - 1");
+                    break;
+                case SUM:
+                    sets.add(value.mAs+" = "+value.mAs+" - COALESCE("+v+", 0)");
+                    break;
+                default:
+                    // only removing the current min/max requires looking at the rest of the group.
+                    String comparison = value.mFunction == MIN ? " <= " : " >= ";
+                    String function = value.mFunction == MIN ? "MIN(" : "MAX(";
+                    List<String> conditions = new ArrayList<>();
+                    for (String group : mGroupBy) {
+                        conditions.add(group+" = old."+group);
+                    }
+                    if (mWhere != null) {
+                        conditions.add("("+mWhere+")");
+                    }
+                    String recompute = "(SELECT "+function+value.mColumn+") FROM "+tableName
+                            +(conditions.isEmpty() ? "" : " WHERE "+join(conditions, " AND "))+")";
+                    sets.add(value.mAs+" = CASE WHEN "+v+" IS NOT NULL AND "+v+comparison+value.mAs+" THEN "+recompute+" ELSE "+value.mAs+" END");
+                    break;
+            }
+        }
+        StringBuilder sb = new StringBuilder("UPDATE ").append(mName).append(" SET ").append(join(sets, ", "))
+                .append(getKeyMatch("old")).append(";");
+        if (mGroupBy.length > 0) {
+            sb.append(" DELETE FROM ").append(mName).append(getKeyMatch("old")).append(" AND ").append(ROWS_COLUMN).append(" = 0;");
+        }
+        return sb.toString();
+    }
+
+    private String getKeyMatch(String row) {
+        if (mGroupBy.length == 0) {
+            return "";
+        }
+        List<String> conditions = new ArrayList<>();
+        for (String group : mGroupBy) {
+            conditions.add(group+" = "+row+"."+group);
+        }
+        return " WHERE "+join(conditions, " AND ");
+    }
+
+    /**
+     * Get the <code>WHEN</code> clause deciding whether the new or old row is aggregated.  The
+     * filter expression refers to the table's columns by name, so it is evaluated against a
+     * single-row subquery which exposes the trigger's row under those names.
+     */
+    private String getCondition(String row, String[] tableColumns) {
+        List<String> conditions = new ArrayList<>();
+        for (String group : mGroupBy) {
+            conditions.add(row+"."+group+" IS NOT NULL");
+        }
+        if (mWhere != null) {
+            List<String> projection = new ArrayList<>();
+            for (String column : tableColumns) {
+                projection.add(row+"."+column+" AS "+column);
+            }
+            conditions.add("EXISTS (SELECT 1 FROM (SELECT "+join(projection, ", ")+") WHERE ("+mWhere+"))");
+        }
+        return conditions.isEmpty() ? "" : " WHEN "+join(conditions, " AND ");
+    }
+
+    /**
+     * Without a filter, only updates of the group and aggregated columns can change the
+     * aggregate.  Returns null when no update can change it.
+     */
+    private String getUpdateOf() {
+        if (mWhere != null) {
+            return "";
+        }
+        Set<String> columns = new LinkedHashSet<>();
+        for (String group : mGroupBy) {
+            columns.add(group);
+        }
+        for (Value value : mValues) {
+            if (value.mColumn != null) {
+                columns.add(value.mColumn);
+            }
+        }
+        if (columns.isEmpty()) {
+            // a plain row count can't be changed by an update.
+            return null;
+        }
+        return " OF "+join(new ArrayList<>(columns), ", ");
+    }
+
+    private static String join(String[] values, String separator) {
+        List<String> list = new ArrayList<>(values.length);
+        for (String value : values) {
+            list.add(value);
+        }
+        return join(list, separator);
+    }
+
+    private static String join(List<String> values, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(separator);
+            }
+            sb.append(values.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static final class Value {
+        final int mFunction;
+        final String mAs;
+        final String mColumn;
+
+        Value(int function, String as, String column) {
+            mFunction = function;
+            mAs = as;
+            mColumn = column;
+        }
+    }
+}
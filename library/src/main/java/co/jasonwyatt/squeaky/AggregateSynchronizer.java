@@ -0,0 +1,124 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Creates, re-creates and drops the side tables and triggers of the {@link Aggregate}s returned
+ * by {@link Table#getAggregates()}.  Each aggregate is recorded in the versions table under its
+ * own name, with a hash of its generated SQL as its version, so that any change to its definition
+ * is picked up.
+ */
+final class AggregateSynchronizer {
+    private AggregateSynchronizer() {
+        // not instantiable.
+    }
+
+    /**
+     * Synchronize the aggregates of a single table.
+     * @param db SQLiteDatabase connection.
+     * @param t Table whose aggregates should be synchronized.
+     * @param versionsTable Name of the versions table.
+     * @param versions Versions recorded in the versions table.
+     */
+    static void synchronize(SQLiteDatabase db, Table t, String versionsTable, Map<String, Integer> versions) {
+        Aggregate[] aggregates = t.getAggregates();
+        Set<String> existing = getExistingAggregates(db, t.getName());
+        if (t.getVersion() == Table.DROP_TABLE) {
+            // the table's triggers are gone with it; Table#getDropStatements() dropped the side tables.
+            if (aggregates != null) {
+                for (Aggregate aggregate : aggregates) {
+                    execute(db, "DELETE FROM "+versionsTable+" WHERE table_name = ?", aggregate.getName());
+                }
+            }
+            return;
+        }
+
+        String[] columns = null;
+        if (aggregates != null) {
+            for (Aggregate aggregate : aggregates) {
+                if (columns == null) {
+                    columns = getColumns(db, t.getName());
+                }
+                String[] create = aggregate.getCreateStatements(t.getName(), columns);
+                int version = Arrays.hashCode(create);
+                boolean present = existing.remove(aggregate.getName());
+                Integer current = versions.get(aggregate.getName());
+                if (present && current != null && current == version) {
+                    continue;
+                }
+
+                long start = System.currentTimeMillis();
+                for (String stmt : aggregate.getDropStatements()) {
+                    execute(db, stmt);
+                }
+                for (String stmt : create) {
+                    execute(db, stmt);
+                }
+                execute(db, "DELETE FROM "+versionsTable+" WHERE table_name = ?", aggregate.getName());
+                execute(db, "INSERT INTO "+versionsTable+" (table_name, version) VALUES (?, ?)", aggregate.getName(), version);
+                Logger.d("Built aggregate", aggregate.getName(), "on", t.getName(), "in", (System.currentTimeMillis() - start)+"ms");
+            }
+        }
+
+        // anything left over is no longer declared by the table.
+        for (String stale : existing) {
+            Logger.d("Dropping stale aggregate", stale, "on", t.getName());
+            for (String stmt : Aggregate.getDropStatements(stale)) {
+                execute(db, stmt);
+            }
+            execute(db, "DELETE FROM "+versionsTable+" WHERE table_name = ?", stale);
+        }
+    }
+
+    /**
+     * Get the names of the aggregates which currently have triggers on a table.
+     */
+    private static Set<String> getExistingAggregates(SQLiteDatabase db, String tableName) {
+        Set<String> result = new HashSet<>();
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger' AND tbl_name = ?", new String[] {tableName});
+        try {
+            while (c.moveToNext()) {
+                String name = c.getString(0);
+                if (name.startsWith(Aggregate.TRIGGER_PREFIX) && name.endsWith(Aggregate.INSERT_TRIGGER_SUFFIX)) {
+                    result.add(name.substring(Aggregate.TRIGGER_PREFIX.length(), name.length() - Aggregate.INSERT_TRIGGER_SUFFIX.length()));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private static String[] getColumns(SQLiteDatabase db, String tableName) {
+        List<String> result = new ArrayList<>();
+        Cursor c = db.rawQuery("PRAGMA table_info("+tableName+")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                result.add(c.getString(nameIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private static void execute(SQLiteDatabase db, String stmt, Object... bindArgs) {
+        Logger.i(stmt+";", bindArgs);
+        if (bindArgs.length == 0) {
+            db.execSQL(stmt);
+        } else {
+            db.execSQL(stmt, bindArgs);
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Column-oriented, fully-materialized query result returned by
+ * {@link Database#queryColumns(String, Object...)}.  Numeric columns are stored in primitive
+ * <code>long[]</code> or <code>double[]</code> arrays, text columns are dictionary-encoded, and
+ * each column has a bitmap of which rows are <code>NULL</code>.
+ * </p>
+ *
+ * <p>
+ * Column types are inferred from the values: a column is {@link #TYPE_LONG} if all of its values
+ * are integers, {@link #TYPE_DOUBLE} if they are integers and reals, and {@link #TYPE_STRING} if
+ * any of them are text.  BLOB values are not supported.
+ * </p>
+ */
+public class ColumnarResult {
+    public static final int TYPE_NULL = 0;
+    public static final int TYPE_LONG = 1;
+    public static final int TYPE_DOUBLE = 2;
+    public static final int TYPE_STRING = 3;
+
+    private final String[] mColumnNames;
+    private final Column[] mColumns;
+    private final int mRowCount;
+
+    private ColumnarResult(String[] columnNames, Column[] columns, int rowCount) {
+        mColumnNames = columnNames;
+        mColumns = columns;
+        mRowCount = rowCount;
+    }
+
+    /**
+     * Read all of a cursor's rows in to a new {@link ColumnarResult}.  When the cursor is backed by
+     * a {@link CursorWindow} (as SQLite cursors are), values are copied straight out of each window
+     * in bulk.  The cursor is not closed.
+     * @param cursor Cursor to read.
+     * @return Columnar copy of the cursor's rows.
+     */
+    public static ColumnarResult read(Cursor cursor) {
+        int rowCount = cursor.getCount();
+        int columnCount = cursor.getColumnCount();
+        String[] names = new String[columnCount];
+        Column[] columns = new Column[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            names[i] = cursor.getColumnName(i);
+            columns[i] = new Column(rowCount);
+        }
+
+        // wrappers (e.g. a ResourceTracker's) hide the window of the cursor they wrap.
+        Cursor source = cursor;
+        while (source instanceof CursorWrapper) {
+            source = ((CursorWrapper) source).getWrappedCursor();
+        }
+        if (source instanceof AbstractWindowedCursor) {
+            AbstractWindowedCursor windowed = (AbstractWindowedCursor) source;
+            int position = 0;
+            while (position < rowCount) {
+                // moving the cursor makes sure its window contains the position.
+                windowed.moveToPosition(position);
+                CursorWindow window = windowed.getWindow();
+                int end = window.getStartPosition() + window.getNumRows();
+                if (end <= position) {
+                    break;
+                }
+                for (int row = position; row < end; row++) {
+                    for (int col = 0; col < columnCount; col++) {
+                        Column column = columns[col];
+                        switch (window.getType(row, col)) {
+                            case Cursor.FIELD_TYPE_NULL:
+                                column.putNull(row);
+                                break;
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                column.putLong(row, window.getLong(row, col));
+                                break;
+                            case Cursor.FIELD_TYPE_FLOAT:
+                                column.putDouble(row, window.getDouble(row, col));
+                                break;
+                            case Cursor.FIELD_TYPE_STRING:
+                                column.putString(row, window.getString(row, col));
+                                break;
+                            default:
+                                throw new DatabaseException("BLOB column "+names[col]+" is not supported by queryColumns");
+                        }
+                    }
+                }
+                position = end;
+            }
+        } else {
+            int row = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int col = 0; col < columnCount; col++) {
+                    Column column = columns[col];
+                    switch (cursor.getType(col)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            column.putNull(row);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            column.putLong(row, cursor.getLong(col));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            column.putDouble(row, cursor.getDouble(col));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            column.putString(row, cursor.getString(col));
+                            break;
+                        default:
+                            throw new DatabaseException("BLOB column "+names[col]+" is not supported by queryColumns");
+                    }
+                }
+                row++;
+            }
+        }
+        return new ColumnarResult(names, columns, rowCount);
+    }
+
+    /**
+     * Get the number of rows in the result.
+     * @return Number of rows.
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Get the number of columns in the result.
+     * @return Number of columns.
+     */
+    public int getColumnCount() {
+        return mColumns.length;
+    }
+
+    /**
+     * Get the name of a column.
+     * @param column Index of the column.
+     * @return Name of the column.
+     */
+    public String getColumnName(int column) {
+        return mColumnNames[column];
+    }
+
+    /**
+     * Get the index of a column by name.
+     * @param name Name of the column.
+     * @return Index of the column, or -1 if there is no such column.
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < mColumnNames.length; i++) {
+            if (mColumnNames[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the inferred type of a column.
+     * @param column Index of the column.
+     * @return One of {@link #TYPE_NULL} (every value was null), {@link #TYPE_LONG},
+     *         {@link #TYPE_DOUBLE}, or {@link #TYPE_STRING}.
+     */
+    public int getColumnType(int column) {
+        return mColumns[column].type;
+    }
+
+    /**
+     * Get whether or not a value is <code>NULL</code>.
+     * @param row Row index.
+     * @param column Column index.
+     * @return True if the value is null.
+     */
+    public boolean isNull(int row, int column) {
+        return (mColumns[column].nulls[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Get the null bitmap of a column: bit <code>row % 64</code> of element <code>row / 64</code> is
+     * set when the row's value is <code>NULL</code>.
+     * @param column Column index.
+     * @return Null bitmap. Not a copy, don't modify it.
+     */
+    public long[] getNulls(int column) {
+        return mColumns[column].nulls;
+    }
+
+    /**
+     * Get the values of a {@link #TYPE_LONG} column. Null values are 0.
+     * @param column Column index.
+     * @return Values of the column, one per row. Not a copy, don't modify it.
+     */
+    public long[] getLongs(int column) {
+        Column c = mColumns[column];
+        if (c.type == TYPE_NULL) {
+            return new long[mRowCount];
+        }
+        if (c.type != TYPE_LONG) {
+            throw new DatabaseException("Column "+mColumnNames[column]+" is not an integer column.");
+        }
+        return c.longs;
+    }
+
+    /**
+     * Get the values of a numeric column as doubles. Null values are 0.
+     * @param column Column index.
+     * @return Values of the column, one per row. For {@link #TYPE_DOUBLE} columns this is not a
+     *         copy, don't modify it.
+     */
+    public double[] getDoubles(int column) {
+        Column c = mColumns[column];
+        switch (c.type) {
+            case TYPE_NULL:
+                return new double[mRowCount];
+            case TYPE_DOUBLE:
+                return c.doubles;
+            case TYPE_LONG:
+                double[] result = new double[mRowCount];
+                for (int i = 0; i < mRowCount; i++) {
+                    result[i] = c.longs[i];
+                }
+                return result;
+            default:
+                throw new DatabaseException("Column "+mColumnNames[column]+" is not a numeric column.");
+        }
+    }
+
+    /**
+     * Get the dictionary of distinct values of a {@link #TYPE_STRING} column.
+     * @param column Column index.
+     * @return Distinct values, indexed by the codes from {@link #getStringCodes(int)}.
+     */
+    public String[] getStringDictionary(int column) {
+        Column c = mColumns[column];
+        if (c.type == TYPE_NULL) {
+            return new String[0];
+        }
+        if (c.type != TYPE_STRING) {
+            throw new DatabaseException("Column "+mColumnNames[column]+" is not a text column.");
+        }
+        return c.dictionary.toArray(new String[c.dictionary.size()]);
+    }
+
+    /**
+     * Get the dictionary codes of a {@link #TYPE_STRING} column.
+     * @param column Column index.
+     * @return One index in to {@link #getStringDictionary(int)} per row, or -1 for null values.
+     *         Not a copy, don't modify it.
+     */
+    public int[] getStringCodes(int column) {
+        Column c = mColumns[column];
+        if (c.type == TYPE_NULL) {
+            int[] codes = new int[mRowCount];
+            Arrays.fill(codes, -1);
+            return codes;
+        }
+        if (c.type != TYPE_STRING) {
+            throw new DatabaseException("Column "+mColumnNames[column]+" is not a text column.");
+        }
+        return c.codes;
+    }
+
+    /**
+     * Get a single value of a {@link #TYPE_STRING} column.
+     * @param row Row index.
+     * @param column Column index.
+     * @return The value, or null.
+     */
+    public String getString(int row, int column) {
+        int code = getStringCodes(column)[row];
+        return code < 0 ? null : mColumns[column].dictionary.get(code);
+    }
+
+    /**
+     * Storage for a single column, which widens its type as values arrive: long to double, and
+     * either of those to string.
+     */
+    private static final class Column {
+        final int capacity;
+        final long[] nulls;
+        int type = TYPE_NULL;
+        long[] longs;
+        double[] doubles;
+        int[] codes;
+        List<String> dictionary;
+        Map<String, Integer> dictionaryIndex;
+
+        Column(int capacity) {
+            this.capacity = capacity;
+            nulls = new long[(capacity + 63) >>> 6];
+        }
+
+        void putNull(int row) {
+            nulls[row >>> 6] |= 1L << row;
+            if (type == TYPE_STRING) {
+                codes[row] = -1;
+            }
+        }
+
+        void putLong(int row, long value) {
+            switch (type) {
+                case TYPE_NULL:
+                    type = TYPE_LONG;
+                    longs = new long[capacity];
+                    // fall through
+                case TYPE_LONG:
+                    longs[row] = value;
+                    break;
+                case TYPE_DOUBLE:
+                    doubles[row] = value;
+                    break;
+                default:
+                    codes[row] = encode(String.valueOf(value));
+            }
+        }
+
+        void putDouble(int row, double value) {
+            switch (type) {
+                case TYPE_NULL:
+                    type = TYPE_DOUBLE;
+                    doubles = new double[capacity];
+                    break;
+                case TYPE_LONG:
+                    type = TYPE_DOUBLE;
+                    doubles = new double[capacity];
+                    for (int i = 0; i < row; i++) {
+                        doubles[i] = longs[i];
+                    }
+                    longs = null;
+                    break;
+                case TYPE_STRING:
+                    codes[row] = encode(String.valueOf(value));
+                    return;
+            }
+            doubles[row] = value;
+        }
+
+        void putString(int row, String value) {
+            if (type != TYPE_STRING) {
+                int previousType = type;
+                type = TYPE_STRING;
+                codes = new int[capacity];
+                dictionary = new ArrayList<>();
+                dictionaryIndex = new HashMap<>();
+                for (int i = 0; i < row; i++) {
+                    if ((nulls[i >>> 6] & (1L << i)) != 0) {
+                        codes[i] = -1;
+                    } else if (previousType == TYPE_LONG) {
+                        codes[i] = encode(String.valueOf(longs[i]));
+                    } else {
+                        codes[i] = encode(String.valueOf(doubles[i]));
+                    }
+                }
+                longs = null;
+                doubles = null;
+            }
+            codes[row] = encode(value);
+        }
+
+        private int encode(String value) {
+            Integer code = dictionaryIndex.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                dictionary.add(value);
+                dictionaryIndex.put(value, code);
+            }
+            return code;
+        }
+    }
+}
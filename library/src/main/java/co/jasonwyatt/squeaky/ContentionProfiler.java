@@ -0,0 +1,420 @@
+package co.jasonwyatt.squeaky;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Opt-in profiler for contention on a {@link Database}'s lock, which serializes
+ * {@link Database#query(String, Object...)}, {@link Database#insert(String, Object...)},
+ * {@link Database#update(String, Object...)} and friends.  Attach one with
+ * {@link Database#setContentionProfiler(ContentionProfiler)}:
+ * </p>
+ *
+ * <pre>
+ *     ContentionProfiler profiler = new ContentionProfiler(50);
+ *     db.setContentionProfiler(profiler);
+ *     // ... exercise the app ...
+ *     for (ContentionProfiler.Entry entry : profiler.getTopCallSites(10)) {
+ *         Log.d("Contention", entry.toString());
+ *     }
+ * </pre>
+ *
+ * <p>
+ * For every acquisition of the lock, the time spent waiting for it and the time it was held are
+ * recorded against the calling code's call site and against the SQL statement.  Whenever a wait
+ * exceeds the threshold, the stack of the thread holding the lock is captured as well, see
+ * {@link #getSlowWaits()}.  Finding call sites walks the stack, so leave the profiler off in
+ * production builds.
+ * </p>
+ */
+public class ContentionProfiler {
+    private static final int STRIPES = 8;
+    private static final int MAX_SLOW_WAITS = 100;
+    private static final int MAX_STATEMENTS = 500;
+    private static final String LIBRARY_PACKAGE = Database.class.getPackage().getName()+".";
+    private static final String[] PLATFORM_PACKAGES = {
+            "java.", "javax.", "sun.", "libcore.", "dalvik.", "android.", "com.android."
+    };
+    private static final Set<String> sCallerClasses = new CopyOnWriteArraySet<>();
+
+    private final long mThresholdNanos;
+    private final ConcurrentHashMap<String, Counters> mCallSites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counters> mStatements = new ConcurrentHashMap<>();
+    private final List<SlowWait> mSlowWaits = new ArrayList<>();
+
+    /**
+     * Creates a profiler.
+     * @param slowWaitThresholdMillis Waits longer than this capture the stack of the thread holding
+     *                                the lock.
+     */
+    public ContentionProfiler(long slowWaitThresholdMillis) {
+        mThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowWaitThresholdMillis);
+    }
+
+    long getThresholdNanos() {
+        return mThresholdNanos;
+    }
+
+    void recordWait(String callSite, String statement, long waitNanos) {
+        counters(mCallSites, callSite).add(Counters.WAIT, waitNanos);
+        Counters statementCounters = statementCounters(statement);
+        if (statementCounters != null) {
+            statementCounters.add(Counters.WAIT, waitNanos);
+        }
+    }
+
+    void recordHold(String callSite, String statement, long holdNanos) {
+        counters(mCallSites, callSite).add(Counters.HOLD, holdNanos);
+        Counters statementCounters = statementCounters(statement);
+        if (statementCounters != null) {
+            statementCounters.add(Counters.HOLD, holdNanos);
+        }
+    }
+
+    /**
+     * Statements are tracked by their shape (see {@link IndexAdvisor}), so literals inlined in the
+     * SQL don't each get their own entry, and at most 500 shapes are tracked.  Once reached, new
+     * shapes are ignored.
+     */
+    private Counters statementCounters(String statement) {
+        String shape = IndexAdvisor.normalize(statement);
+        Counters counters = mStatements.get(shape);
+        if (counters == null && mStatements.size() >= MAX_STATEMENTS) {
+            return null;
+        }
+        return counters != null ? counters : counters(mStatements, shape);
+    }
+
+    void recordSlowWait(SlowWait wait) {
+        Logger.w("Waited", TimeUnit.NANOSECONDS.toMillis(wait.mWaitNanos)+"ms", "for database lock at", wait.mCallSite, "held by", wait.mHolderCallSite);
+        synchronized (mSlowWaits) {
+            if (mSlowWaits.size() == MAX_SLOW_WAITS) {
+                mSlowWaits.remove(0);
+            }
+            mSlowWaits.add(wait);
+        }
+    }
+
+    /**
+     * Get the call sites which have spent the most time waiting for the lock.
+     * @param n Maximum number of call sites to return.
+     * @return Call sites, ordered by total wait time, longest first.
+     */
+    public List<Entry> getTopCallSites(int n) {
+        return top(mCallSites, n);
+    }
+
+    /**
+     * Get the SQL statements whose execution has spent the most time waiting for the lock.
+     * Statements differing only in their literal values are counted together, under their shape
+     * with each literal replaced by {@code ?}.  At most 500 shapes are tracked.
+     * @param n Maximum number of statements to return.
+     * @return Statements, ordered by total wait time, longest first.
+     */
+    public List<Entry> getTopStatements(int n) {
+        return top(mStatements, n);
+    }
+
+    /**
+     * Get the most recent waits which exceeded the threshold (at most 100).
+     * @return Slow waits, oldest first.
+     */
+    public List<SlowWait> getSlowWaits() {
+        synchronized (mSlowWaits) {
+            return new ArrayList<>(mSlowWaits);
+        }
+    }
+
+    /**
+     * Discard everything recorded so far.
+     */
+    public void reset() {
+        mCallSites.clear();
+        mStatements.clear();
+        synchronized (mSlowWaits) {
+            mSlowWaits.clear();
+        }
+    }
+
+    /**
+     * Find the app code which called in to the library: the first stack frame outside of the
+     * library and the platform.  Work the library runs on its own threads (e.g. chunks of a
+     * {@link QueryScheduler} batch) has no such frame, and is attributed to the first library frame
+     * outside of {@link Database} and the profiling plumbing instead.  Also used by
+     * {@link ResourceTracker}.
+     */
+    static String callSite() {
+        StackTraceElement[] stack = new Throwable().getStackTrace();
+        StackTraceElement libraryFrame = null;
+        for (StackTraceElement frame : stack) {
+            String className = frame.getClassName();
+            if (isLibraryClass(className)) {
+                if (libraryFrame == null
+                        && !className.startsWith(LIBRARY_PACKAGE+"Database")
+                        && !className.startsWith(LIBRARY_PACKAGE+"ContentionProfiler")
+                        && !className.startsWith(LIBRARY_PACKAGE+"ResourceTracker")
+                        && !className.startsWith(LIBRARY_PACKAGE+"TrackedCursor")) {
+                    libraryFrame = frame;
+                }
+            } else if (!isPlatformClass(className)) {
+                return frame.toString();
+            }
+        }
+        return libraryFrame != null ? libraryFrame.toString() : "unknown";
+    }
+
+    /**
+     * Treat a class in the library's package as app code when finding call sites.  Used by the
+     * library's own tests, which share its package.
+     */
+    static void addCallerClass(Class<?> c) {
+        sCallerClasses.add(c.getName());
+    }
+
+    private static boolean isLibraryClass(String className) {
+        if (!className.startsWith(LIBRARY_PACKAGE)) {
+            return false;
+        }
+        int nested = className.indexOf('$');
+        return !sCallerClasses.contains(nested < 0 ? className : className.substring(0, nested));
+    }
+
+    private static boolean isPlatformClass(String className) {
+        for (String prefix : PLATFORM_PACKAGES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Counters counters(ConcurrentHashMap<String, Counters> map, String key) {
+        Counters counters = map.get(key);
+        if (counters == null) {
+            counters = new Counters();
+            Counters existing = map.putIfAbsent(key, counters);
+            if (existing != null) {
+                counters = existing;
+            }
+        }
+        return counters;
+    }
+
+    private static List<Entry> top(Map<String, Counters> map, int n) {
+        List<Entry> entries = new ArrayList<>();
+        for (Map.Entry<String, Counters> e : map.entrySet()) {
+            Counters c = e.getValue();
+            entries.add(new Entry(e.getKey(), c.sum(Counters.COUNT), c.sum(Counters.WAIT), c.max(), c.sum(Counters.HOLD)));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.mTotalWaitNanos > b.mTotalWaitNanos ? -1 : (a.mTotalWaitNanos == b.mTotalWaitNanos ? 0 : 1);
+            }
+        });
+        return entries.size() > n ? new ArrayList<>(entries.subList(0, n)) : entries;
+    }
+
+    /**
+     * Counters striped by thread, so threads recording at the same time rarely touch the same
+     * memory.
+     */
+    private static final class Counters {
+        static final int COUNT = 0;
+        static final int WAIT = 1;
+        static final int HOLD = 2;
+        static final int MAX_WAIT = 3;
+
+        // each stripe's four fields are padded out to their own 64-byte line.
+        private static final int STRIDE = 8;
+        private final AtomicLongArray mValues = new AtomicLongArray(STRIPES * STRIDE);
+
+        void add(int field, long nanos) {
+            int base = (int) (Thread.currentThread().getId() % STRIPES) * STRIDE;
+            mValues.addAndGet(base + field, nanos);
+            if (field == WAIT) {
+                mValues.incrementAndGet(base + COUNT);
+                long max;
+                do {
+                    max = mValues.get(base + MAX_WAIT);
+                } while (nanos > max && !mValues.compareAndSet(base + MAX_WAIT, max, nanos));
+            }
+        }
+
+        long sum(int field) {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += mValues.get(i * STRIDE + field);
+            }
+            return sum;
+        }
+
+        long max() {
+            long max = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                max = Math.max(max, mValues.get(i * STRIDE + MAX_WAIT));
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Aggregated lock usage for a call site or statement.
+     */
+    public static class Entry {
+        private final String mKey;
+        private final long mCount;
+        private final long mTotalWaitNanos;
+        private final long mMaxWaitNanos;
+        private final long mTotalHoldNanos;
+
+        Entry(String key, long count, long totalWaitNanos, long maxWaitNanos, long totalHoldNanos) {
+            mKey = key;
+            mCount = count;
+            mTotalWaitNanos = totalWaitNanos;
+            mMaxWaitNanos = maxWaitNanos;
+            mTotalHoldNanos = totalHoldNanos;
+        }
+
+        /**
+         * Get the call site (a stack frame) or SQL statement.
+         * @return The call site or statement.
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * Get the number of times the lock was acquired.
+         * @return Number of acquisitions.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Get the total time spent waiting for the lock.
+         * @return Total wait, in milliseconds.
+         */
+        public double getTotalWaitMillis() {
+            return mTotalWaitNanos / 1000000.0;
+        }
+
+        /**
+         * Get the longest single wait for the lock.
+         * @return Maximum wait, in milliseconds.
+         */
+        public double getMaxWaitMillis() {
+            return mMaxWaitNanos / 1000000.0;
+        }
+
+        /**
+         * Get the total time the lock was held.
+         * @return Total hold time, in milliseconds.
+         */
+        public double getTotalHoldMillis() {
+            return mTotalHoldNanos / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{key="+mKey+", count="+mCount+", totalWaitMs="+getTotalWaitMillis()+", maxWaitMs="+getMaxWaitMillis()+", totalHoldMs="+getTotalHoldMillis()+"}";
+        }
+    }
+
+    /**
+     * A wait for the lock which exceeded the threshold, along with what the lock's holder was doing
+     * at the time.
+     */
+    public static class SlowWait {
+        private final String mCallSite;
+        private final String mStatement;
+        private final long mWaitNanos;
+        private final String mHolderThread;
+        private final String mHolderCallSite;
+        private final String mHolderStatement;
+        private final StackTraceElement[] mHolderStack;
+
+        SlowWait(String callSite, String statement, long waitNanos, String holderThread, String holderCallSite, String holderStatement, StackTraceElement[] holderStack) {
+            mCallSite = callSite;
+            mStatement = statement;
+            mWaitNanos = waitNanos;
+            mHolderThread = holderThread;
+            mHolderCallSite = holderCallSite;
+            mHolderStatement = holderStatement;
+            mHolderStack = holderStack;
+        }
+
+        /**
+         * Get the call site which waited.
+         * @return Call site.
+         */
+        public String getCallSite() {
+            return mCallSite;
+        }
+
+        /**
+         * Get the statement which waited.
+         * @return Statement.
+         */
+        public String getStatement() {
+            return mStatement;
+        }
+
+        /**
+         * Get how long the wait lasted.
+         * @return Wait, in milliseconds.
+         */
+        public double getWaitMillis() {
+            return mWaitNanos / 1000000.0;
+        }
+
+        /**
+         * Get the name of the thread which held the lock, if known.
+         * @return Thread name, or null.
+         */
+        public String getHolderThread() {
+            return mHolderThread;
+        }
+
+        /**
+         * Get the call site which acquired the lock, if known.
+         * @return Call site, or null.
+         */
+        public String getHolderCallSite() {
+            return mHolderCallSite;
+        }
+
+        /**
+         * Get the statement the lock holder was running, if known.
+         * @return Statement, or null.
+         */
+        public String getHolderStatement() {
+            return mHolderStatement;
+        }
+
+        /**
+         * Get the stack of the thread which held the lock, captured once the threshold was passed.
+         * @return Stack trace, possibly empty.
+         */
+        public StackTraceElement[] getHolderStack() {
+            return mHolderStack;
+        }
+
+        @Override
+        public String toString() {
+            return "SlowWait{callSite="+mCallSite+", statement="+mStatement+", waitMs="+getWaitMillis()+", holderThread="+mHolderThread+", holderCallSite="+mHolderCallSite+", holderStatement="+mHolderStatement+"}";
+        }
+    }
+}
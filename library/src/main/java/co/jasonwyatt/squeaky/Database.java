@@ -3,15 +3,32 @@ package co.jasonwyatt.squeaky;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import co.jasonwyatt.squeaky.util.Logger;
 
@@ -32,7 +49,8 @@ public class Database {
     private static final String DEFAULT_VERSIONS_TABLE_NAME = "versions";
     private final Class<? extends DatabaseHelper> mHelperClass;
     private static final int SQLITE_DB_VERSION = 1;
-    private HashMap<String, Table> mTables = new HashMap<>();
+    private static final String QUERY_BATCH_SAVEPOINT = "squeaky_query_batch";
+    private HashMap<String, Table> mTables = new LinkedHashMap<>();
 
     private final VersionsTable mVersionsTable;
     private final String mName;
@@ -41,6 +59,26 @@ public class Database {
     private SQLiteDatabase mWritableDB;
     private SQLiteDatabase mReadableDB;
     private boolean mPrepared;
+    private final List<DeferredIndex> mDeferredIndexes = new ArrayList<>();
+    private final List<String> mFailedIndexes = new ArrayList<>();
+    private boolean mBuildDeferredIndexesInBackground = true;
+    private volatile IndexAdvisor mIndexAdvisor;
+    private TuningProfile mTuningProfile;
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private boolean mInMemory;
+    private long mSnapshotIntervalMillis;
+    private SnapshotManager mSnapshots;
+    private ReaderPool mReaders;
+    private final DatabaseLock mLock = new DatabaseLock();
+    private Upserter mUpserter;
+    private String mSqliteVersion;
+    private MaintenanceScheduler mMaintenance;
+    private final List<WriteBehindBuffer> mWriteBehindBuffers = new CopyOnWriteArrayList<>();
+    private final Map<String, EntityCache<?>> mEntityCaches = new ConcurrentHashMap<>();
+    private volatile WarmupProfile mWarmupProfile;
+    private PrebuiltDatabase mPrebuilt;
+    private volatile ResourceTracker mResourceTracker;
+    private final KeyLookup mKeyLookup = new KeyLookup();
 
     /**
      * Creates a new instance of {@link Database} using the default {@link DatabaseHelper} class.
@@ -99,7 +137,8 @@ public class Database {
     }
 
     /**
-     * Add a {@link Table} to the Database definition.
+     * Add a {@link Table} to the Database definition.  Tables are created and migrated in the order
+     * they were added.
      * @param t Table to add.
      */
     public void addTable(Table t) {
@@ -120,13 +159,47 @@ public class Database {
         if (mPrepared) {
             throw new DatabaseException("Cannot re-prepare a prepared database!");
         }
+        if (mPrebuilt != null) {
+            installPrebuiltDatabase();
+        }
         try {
             Constructor<? extends DatabaseHelper> c = mHelperClass.getDeclaredConstructor(Context.class, String.class, int.class);
-            mHelper = c.newInstance(mContext, mName, SQLITE_DB_VERSION);
+            mHelper = c.newInstance(mContext, mInMemory ? null : mName, SQLITE_DB_VERSION);
+            mHelper.setTuningProfile(mTuningProfile);
             mWritableDB = mHelper.getWritableDatabase();
+            if (mTuningProfile != null && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // SQLiteOpenHelper#onConfigure doesn't exist on older platforms.
+                mTuningProfile.apply(mWritableDB);
+            }
             mReadableDB = mHelper.getReadableDatabase();
+            if (mInMemory) {
+                mSnapshots = new SnapshotManager(this, mContext.getDatabasePath(mName), mSnapshotIntervalMillis);
+                mSnapshots.restore(mWritableDB);
+            }
             doMigrations(mWritableDB);
             mPrepared = true;
+            if (mSnapshots != null) {
+                mSnapshots.start();
+            }
+            if (mMaintenance != null) {
+                mMaintenance.start();
+            }
+            if (mWarmupProfile != null) {
+                mWarmupProfile.start(this, new File(mContext.getDatabasePath(mName).getPath()+"-warmup"));
+            }
+            if (mBuildDeferredIndexesInBackground && !mDeferredIndexes.isEmpty()) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            buildDeferredIndexes();
+                        } catch (RuntimeException e) {
+                            // e.g. the database was closed mid-build; don't take the app down with it.
+                            Logger.e(e, "Unable to build deferred indexes for", getName());
+                        }
+                    }
+                }, "Squeaky-IndexBuilder").start();
+            }
         } catch (NoSuchMethodException e) {
             throw new DatabaseException("Provided database helper class does not expose a constructor of the form (Context, String, int)", e);
         } catch (InvocationTargetException e) {
@@ -138,15 +211,267 @@ public class Database {
         }
     }
 
+    /**
+     * Set a {@link PrebuiltDatabase} to copy in to place when {@link #prepare()} finds the database
+     * doesn't exist yet, e.g. on the app's first launch.  The copy's versions table is checked
+     * against the added {@link Table}s before it's moved in to place, and {@link #prepare()} then
+     * only runs the remaining migrations.  In-memory databases (see {@link #setInMemory(long)})
+     * use the copy as their first snapshot.
+     * @param prebuilt Prebuilt database, or null.
+     */
+    public void setPrebuiltDatabase(PrebuiltDatabase prebuilt) {
+        mPrebuilt = prebuilt;
+    }
+
+    private void installPrebuiltDatabase() {
+        File file = mContext.getDatabasePath(mName);
+        if (file.exists()) {
+            return;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new DatabaseException("Unable to create directory "+parent);
+        }
+
+        long start = System.currentTimeMillis();
+        File temp = new File(file.getPath()+"-prebuilt");
+        try {
+            mPrebuilt.copyTo(mContext, temp);
+            validatePrebuiltDatabase(temp);
+            // journals left behind by an earlier database of the same name would corrupt the copy.
+            for (String suffix : new String[] {"-journal", "-wal", "-shm"}) {
+                File journal = new File(file.getPath()+suffix);
+                if (journal.exists() && !journal.delete()) {
+                    throw new DatabaseException("Unable to delete "+journal);
+                }
+            }
+            if (!temp.renameTo(file)) {
+                throw new DatabaseException("Unable to move prebuilt database in to place at "+file);
+            }
+            Logger.d("Installed prebuilt database", mPrebuilt, "at", file, "in", (System.currentTimeMillis() - start)+"ms");
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to copy prebuilt database "+mPrebuilt, e);
+        } finally {
+            for (String suffix : new String[] {"", "-journal", "-wal", "-shm"}) {
+                //noinspection ResultOfMethodCallIgnored
+                new File(temp.getPath()+suffix).delete();
+            }
+        }
+    }
+
+    private void validatePrebuiltDatabase(File file) {
+        // read-only, so Android doesn't add its android_metadata table to the copy.
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            Cursor c = querySimple(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?", mVersionsTable.getName());
+            try {
+                if (!c.moveToFirst() || c.getInt(0) == 0) {
+                    throw new DatabaseException("Prebuilt database "+mPrebuilt+" has no "+mVersionsTable.getName()+" table.");
+                }
+            } finally {
+                c.close();
+            }
+            Map<String, Integer> versions = mVersionsTable.getTableVersions(db);
+            for (Table t : mTables.values()) {
+                Integer version = versions.get(t.getName());
+                if (version != null && t.getVersion() != Table.DROP_TABLE && version > t.getVersion()) {
+                    throw new DatabaseException("Prebuilt database "+mPrebuilt+" has "+t.getName()+" at version "
+                            +version+", newer than its current version "+t.getVersion()+".");
+                }
+            }
+        } finally {
+            db.close();
+        }
+    }
+
     /**
      * Close the helper and database connections.
      */
     @SuppressWarnings("WeakerAccess")
     public void close() {
-        mHelper.close();
-        mWritableDB.close();
-        mReadableDB.close();
-        mPrepared = false;
+        mLock.lock("close");
+        try {
+            for (WriteBehindBuffer buffer : mWriteBehindBuffers) {
+                buffer.stop();
+                buffer.flush();
+            }
+            for (EntityCache<?> cache : mEntityCaches.values()) {
+                cache.invalidateAll();
+            }
+            mDeferredIndexes.clear();
+            if (mMaintenance != null) {
+                mMaintenance.stop();
+            }
+            if (mWarmupProfile != null) {
+                mWarmupProfile.stop();
+            }
+            try {
+                if (mSnapshots != null) {
+                    mSnapshots.stop();
+                    mSnapshots.snapshot(getWritableDB(), mWriteCount.get());
+                }
+            } finally {
+                mSnapshots = null;
+                if (mReaders != null) {
+                    mReaders.close();
+                    mReaders = null;
+                }
+                mHelper.close();
+                mWritableDB.close();
+                mReadableDB.close();
+                mPrepared = false;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Set whether or not {@link #prepare()} should start a background thread to build any indexes
+     * whose builds were deferred (see {@link Index#deferred()}). Defaults to true.  If disabled, call
+     * {@link #buildDeferredIndexes()} yourself when convenient.
+     * @param enabled Whether or not to build deferred indexes in the background.
+     */
+    public void setBuildDeferredIndexesInBackground(boolean enabled) {
+        mBuildDeferredIndexesInBackground = enabled;
+    }
+
+    /**
+     * Build all indexes whose builds were deferred while preparing the database. Each index is built
+     * separately, so other queries can run in between index builds.  An index which can't be built
+     * (e.g. a unique index over duplicate values) is logged and listed by
+     * {@link #getFailedDeferredIndexes()}, and the remaining indexes are still built; the next
+     * {@link #prepare()} tries it again.  Should not be called from the main thread.
+     * @return Number of indexes built.
+     */
+    public int buildDeferredIndexes() {
+        int built = 0;
+        while (true) {
+            mLock.lock("buildDeferredIndexes");
+            try {
+                if (!mPrepared || mDeferredIndexes.isEmpty()) {
+                    return built;
+                }
+                DeferredIndex next = mDeferredIndexes.remove(0);
+                try {
+                    IndexSynchronizer.build(getWritableDB(), next.table, next.index);
+                    built++;
+                } catch (SQLiteException e) {
+                    Logger.e(e, "Unable to build deferred index", next.index.getName(), "on", next.table.getName());
+                    mFailedIndexes.add(next.index.getName());
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Get the names of the deferred indexes which failed to build since the database was prepared.
+     * @return Names of the indexes which couldn't be built.
+     * @see #buildDeferredIndexes()
+     */
+    public List<String> getFailedDeferredIndexes() {
+        mLock.lock("getFailedDeferredIndexes");
+        try {
+            return new ArrayList<>(mFailedIndexes);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Run the database entirely in memory, using the same {@link Table} definitions and migrations.
+     * Must be called before {@link #prepare()}.
+     * </p>
+     *
+     * <p>
+     * When prepared, the database is restored from its snapshot on disk (stored at the path an
+     * on-disk database of the same name would use), if one exists.  Snapshots are written every
+     * {@param snapshotIntervalMillis} milliseconds if anything has changed, when the app's UI is
+     * hidden or memory is low, on {@link #snapshot()}, and on {@link #close()}.  Anything written
+     * after the most recent snapshot is lost if the process dies.
+     * </p>
+     * @param snapshotIntervalMillis Interval between periodic snapshots. 0 disables periodic
+     *                               snapshots.
+     */
+    public void setInMemory(long snapshotIntervalMillis) {
+        if (mPrepared) {
+            throw new DatabaseException("In-memory mode must be enabled before the database is prepared.");
+        }
+        mInMemory = true;
+        mSnapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /**
+     * Returns whether or not the database is running in memory.
+     * @return Whether or not the database is in memory.
+     * @see #setInMemory(long)
+     */
+    public boolean isInMemory() {
+        return mInMemory;
+    }
+
+    /**
+     * Write a snapshot of an in-memory database to disk, if anything has changed since the last
+     * snapshot.  Should not be called from the main thread.
+     * @return True if a snapshot was written.
+     * @see #setInMemory(long)
+     */
+    public boolean snapshot() {
+        mLock.lock("snapshot");
+        try {
+            if (!mInMemory) {
+                throw new DatabaseException("Database "+getName()+" is not in memory.");
+            }
+            if (!mPrepared) {
+                return false;
+            }
+            return mSnapshots.snapshot(getWritableDB(), mWriteCount.get());
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Set the {@link TuningProfile} used to configure the database's connections. Must be called
+     * before {@link #prepare()}.
+     * @param profile Profile to use, or null to use Android's defaults.
+     */
+    public void setTuningProfile(TuningProfile profile) {
+        if (mPrepared) {
+            throw new DatabaseException("Tuning profiles must be set before the database is prepared.");
+        }
+        mTuningProfile = profile;
+    }
+
+    /**
+     * Get the {@link TuningProfile} used to configure the database's connections.
+     * @return The tuning profile, or null if Android's defaults are used.
+     */
+    public TuningProfile getTuningProfile() {
+        return mTuningProfile;
+    }
+
+    /**
+     * Get the connection settings (journal mode, synchronous, cache_size, mmap_size, page_size,
+     * temp_store, and any custom PRAGMAs from the {@link TuningProfile}) actually in effect.
+     * @return Mapping from PRAGMA name to its current value.
+     */
+    public Map<String, String> getEffectiveSettings() {
+        mLock.lock("getEffectiveSettings");
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            if (mTuningProfile != null) {
+                return mTuningProfile.report(getWritableDB());
+            }
+            return TuningProfile.reportDefaults(getWritableDB());
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
@@ -165,10 +490,224 @@ public class Database {
      * @return An instance of {@link android.database.Cursor} giving you access to the results of
      *          the query.
      */
-    public synchronized Cursor query(String stmt, Object... bindArgs) {
-        if (!mPrepared) {
-            throw new DatabaseException("Database "+getName()+" not prepared yet.");
+    public Cursor query(String stmt, Object... bindArgs) {
+        mLock.lock(stmt);
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            flushWriteBehind(stmt);
+            String[] args = toQueryArgs(bindArgs);
+
+            Cursor result = getReadableDB().rawQuery(stmt, args);
+            Logger.i(stmt+";", args);
+            recordStatement(stmt, bindArgs);
+            ResourceTracker tracker = mResourceTracker;
+            return tracker == null ? result : tracker.track(result, stmt);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Run several read statements at once: all of them run under a single acquisition of the
+     * database's lock and in one read transaction, so their results are consistent with each
+     * other, and are read in full before returning.  Since the lock is held for the whole batch,
+     * writes through this {@link Database} from other threads wait until it finishes.  The read
+     * transaction runs on a reader connection, so only writers on other connections to the file
+     * (e.g. in other processes) can write while it runs.  If the calling thread already has a
+     * transaction open, the batch joins it.
+     * @param queries Queries to run, in order.
+     * @return The result of each query.
+     * @see Query
+     */
+    public Query.Results queryBatch(List<? extends Query<?>> queries) {
+        mLock.lock(queries.isEmpty() ? "queryBatch" : queries.get(0).getStatement());
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            for (WriteBehindBuffer buffer : mWriteBehindBuffers) {
+                for (Query<?> query : queries) {
+                    if (buffer.isReadBy(query.getStatement())) {
+                        buffer.flush();
+                        break;
+                    }
+                }
+            }
+
+            Query.Results results = new Query.Results();
+            SQLiteDatabase db = getReadableDB();
+            if (mInMemory || db.inTransaction()) {
+                // the thread's own transaction covers the batch (and sees its writes), and an
+                // in-memory database's only connection isn't used by anyone else while we're locked.
+                for (Query<?> query : queries) {
+                    runQuery(db, query, results);
+                }
+                return results;
+            }
+
+            // Android can only begin IMMEDIATE/EXCLUSIVE transactions, which would block writers for
+            // the whole batch, so read in a deferred transaction on a reader connection instead.
+            ReaderPool pool = getReaderPool();
+            SQLiteDatabase connection = pool.acquire();
+            try {
+                connection.execSQL("SAVEPOINT "+QUERY_BATCH_SAVEPOINT);
+                try {
+                    for (Query<?> query : queries) {
+                        runQuery(connection, query, results);
+                    }
+                } finally {
+                    connection.execSQL("RELEASE "+QUERY_BATCH_SAVEPOINT);
+                }
+            } finally {
+                pool.release(connection);
+            }
+            return results;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private <T> void runQuery(SQLiteDatabase db, Query<T> query, Query.Results results) {
+        String[] args = toQueryArgs(query.getBindArgs());
+        // the connection's prepared statement cache keeps repeated statements compiled.
+        Cursor c = db.rawQuery(query.getStatement(), args);
+        try {
+            results.put(query, query.read(c));
+        } finally {
+            c.close();
+        }
+        Logger.i(query.getStatement()+";", args);
+        recordStatement(query.getStatement(), query.getBindArgs());
+    }
+
+    /**
+     * Look up rows by a list of integer keys without building an <code>IN</code> list of
+     * thousands of '?'s.  The statement contains the placeholder <code>:keys</code> where the list
+     * belongs, e.g. <code>SELECT * FROM todos WHERE rowid IN :keys</code>.  Short lists are bound
+     * to a fixed-size list of parameters in chunks, and long ones are loaded in to a temporary
+     * table the statement reads from instead, so any number of keys works and each statement is
+     * only compiled once.
+     * @param stmtTemplate SQL query containing <code>:keys</code>.
+     * @param keys Keys to look up. Duplicates are ignored.
+     * @param mapper Mapper from a row to an object.
+     * @param bindArgs Parameters mapping to any other '?'s in the stmtTemplate. Must not be null.
+     * @param <T> Type of the mapped objects.
+     * @return Objects mapped from the matching rows, in no particular order.
+     */
+    public <T> List<T> queryByKeys(String stmtTemplate, long[] keys, RowMapper<T> mapper, Object... bindArgs) {
+        LinkedHashSet<Long> distinct = new LinkedHashSet<>();
+        for (long key : keys) {
+            distinct.add(key);
+        }
+        return queryByKeys(stmtTemplate, new ArrayList<>(distinct), true, mapper, bindArgs);
+    }
+
+    /**
+     * Look up rows by a list of text keys.
+     * @param stmtTemplate SQL query containing <code>:keys</code>.
+     * @param keys Keys to look up. Duplicates are ignored.
+     * @param mapper Mapper from a row to an object.
+     * @param bindArgs Parameters mapping to any other '?'s in the stmtTemplate. Must not be null.
+     * @param <T> Type of the mapped objects.
+     * @return Objects mapped from the matching rows, in no particular order.
+     * @see #queryByKeys(String, long[], RowMapper, Object...)
+     */
+    public <T> List<T> queryByKeys(String stmtTemplate, String[] keys, RowMapper<T> mapper, Object... bindArgs) {
+        LinkedHashSet<String> distinct = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (key == null) {
+                throw new DatabaseException("Keys must not be null.");
+            }
+            distinct.add(key);
+        }
+        return queryByKeys(stmtTemplate, new ArrayList<>(distinct), false, mapper, bindArgs);
+    }
+
+    private <T> List<T> queryByKeys(String stmtTemplate, List<?> keys, boolean longKeys, RowMapper<T> mapper, Object[] bindArgs) {
+        mLock.lock(stmtTemplate);
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            flushWriteBehind(stmtTemplate);
+            // the writable connection, since long lists are written to a temporary table.
+            List<T> result = mKeyLookup.query(getWritableDB(), stmtTemplate, keys, longKeys, mapper, bindArgs);
+            Logger.i(stmtTemplate+";", keys.size(), "keys", bindArgs);
+            // keys aren't recorded, so only the statement's shape is.
+            recordStatement(mKeyLookup.expand(stmtTemplate, longKeys), null);
+            return result;
+        } finally {
+            mLock.unlock();
         }
+    }
+
+    /**
+     * Query the database and read the whole result in to primitive, column-oriented arrays.  Much
+     * cheaper than stepping through a {@link Cursor} for analytical queries over many rows, since
+     * values are copied out of each cursor window in bulk and no per-row objects are created.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return Columnar copy of the query's results.
+     */
+    public ColumnarResult queryColumns(String stmt, Object... bindArgs) {
+        Cursor c = query(stmt, bindArgs);
+        try {
+            return ColumnarResult.read(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Stream the results of a query with backpressure.  The query isn't run until the subscriber
+     * first requests rows, and rows are only mapped and delivered as far as the subscriber has
+     * requested, so slow consumers don't cause mapped objects to pile up in memory.  The query
+     * itself isn't demand-driven: reading the first row counts the whole result, which steps SQLite
+     * through every row, and rows are held in the cursor's window until they're delivered.  The
+     * cursor is closed when the stream completes, fails, or is cancelled.  Rows are read and delivered on the thread which
+     * calls {@link RowStream.Subscription#request(long)}.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @param mapper Maps each row to an object.
+     * @param <T> Type of the mapped rows.
+     * @return Publisher of the mapped rows. Each subscription runs the query again.
+     */
+    public <T> RowStream.Publisher<T> stream(String stmt, Object[] bindArgs, RowMapper<T> mapper) {
+        return new QueryPublisher<>(this, stmt, bindArgs, mapper, null);
+    }
+
+    /**
+     * Stream the results of a query with backpressure, reading and delivering rows on an
+     * {@link Executor}.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @param mapper Maps each row to an object.
+     * @param executor Executor used to read and deliver rows.
+     * @param <T> Type of the mapped rows.
+     * @return Publisher of the mapped rows. Each subscription runs the query again.
+     * @see #stream(String, Object[], RowMapper)
+     */
+    public <T> RowStream.Publisher<T> stream(String stmt, Object[] bindArgs, RowMapper<T> mapper, Executor executor) {
+        return new QueryPublisher<>(this, stmt, bindArgs, mapper, executor);
+    }
+
+    /**
+     * Run a query with its arguments bound by type (see {@link #bindArgs(SQLiteProgram, Object[])}),
+     * rather than as text the way {@link SQLiteDatabase#rawQuery(String, String[])} binds them.
+     */
+    static Cursor rawQueryTyped(SQLiteDatabase db, String stmt, final Object[] bindArgs) {
+        return db.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase database, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+                bindArgs(query, bindArgs);
+                return new SQLiteCursor(driver, editTable, query);
+            }
+        }, stmt, null, null);
+    }
+
+    static String[] toQueryArgs(Object[] bindArgs) {
         String[] args = null;
         if (bindArgs != null) {
             args = new String[bindArgs.length];
@@ -177,10 +716,89 @@ public class Database {
                 args[i] = arg.toString();
             }
         }
+        return args;
+    }
 
-        Cursor result = getReadableDB().rawQuery(stmt, args);
-        Logger.i(stmt+";", args);
-        return result;
+    /**
+     * Start a {@link ReadSession}: a set of queries which all see the same point-in-time view of the
+     * database.  Be sure to {@link ReadSession#close()} the session when finished with it.  Not
+     * available for in-memory databases.
+     * @return A new read session.
+     */
+    public ReadSession readSession() {
+        ReaderPool pool = getReaderPool();
+        // the session can read any table, and can't see writes made after its snapshot.
+        flushWriteBehind(null);
+        return new ReadSession(pool);
+    }
+
+    /**
+     * Scan a table in parallel: the table's <code>rowid</code> range is split in to one partition
+     * per CPU core, and each partition is read on its own reader connection and thread.  Each
+     * partition's rows are fed to an accumulator created by {@param accumulator}, and the
+     * partitions' accumulators are merged in to the result.  The partitions don't share a snapshot
+     * of the table, so a write which commits during the scan may be seen by some partitions and not
+     * others.  Should not be called from the main thread.  Not available for in-memory databases.
+     * @param table Name of the table to scan.
+     * @param columns Comma-separated columns/expressions to select for each row.
+     * @param where Additional <code>WHERE</code> clause for the scan, or null.
+     * @param whereArgs Arguments to bind to '?'s in {@param where}, or null.
+     * @param accumulator Accumulates the rows of each partition.
+     * @param <A> Type of the accumulated result.
+     * @return Merged result of all partitions.
+     */
+    public <A> A parallelScan(String table, String columns, String where, Object[] whereArgs, ScanAccumulator<A> accumulator) {
+        return parallelScan(table, columns, where, whereArgs, "rowid", Runtime.getRuntime().availableProcessors(), accumulator);
+    }
+
+    /**
+     * Scan a table in parallel, partitioning it by the range of an integer column. The column should
+     * be indexed (or be the <code>rowid</code>) so that each partition's range can be found quickly.
+     * @param table Name of the table to scan.
+     * @param columns Comma-separated columns/expressions to select for each row.
+     * @param where Additional <code>WHERE</code> clause for the scan, or null.
+     * @param whereArgs Arguments to bind to '?'s in {@param where}, or null.
+     * @param partitionColumn Integer column used to partition the table.
+     * @param partitions Number of partitions (and threads) to use.
+     * @param accumulator Accumulates the rows of each partition.
+     * @param <A> Type of the accumulated result.
+     * @return Merged result of all partitions.
+     * @see #parallelScan(String, String, String, Object[], ScanAccumulator)
+     */
+    public <A> A parallelScan(String table, String columns, String where, Object[] whereArgs, String partitionColumn, int partitions, ScanAccumulator<A> accumulator) {
+        ReaderPool pool = getReaderPool();
+        flushWriteBehind(table);
+        return new ParallelScan<>(pool, table, columns, where, whereArgs, partitionColumn, partitions, accumulator).run();
+    }
+
+    /**
+     * Flush the {@link WriteBehindBuffer}s whose table could be read by a statement, or every
+     * buffer if the statement is null.
+     */
+    private void flushWriteBehind(String stmt) {
+        for (WriteBehindBuffer buffer : mWriteBehindBuffers) {
+            if (stmt == null || buffer.isReadBy(stmt)) {
+                buffer.flush();
+            }
+        }
+    }
+
+    ReaderPool getReaderPool() {
+        mLock.lock("getReaderPool");
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            if (mInMemory) {
+                throw new DatabaseException("Reader connections are not available for in-memory databases.");
+            }
+            if (mReaders == null) {
+                mReaders = new ReaderPool(getWritableDB().getPath(), mTuningProfile);
+            }
+            return mReaders;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     // Used before mReadableDB is available.
@@ -211,11 +829,25 @@ public class Database {
      * @return Value of the new record's <code>rowid</code>/<code>_id</code> column.
      */
     @SuppressWarnings("WeakerAccess")
-    public synchronized long insert(String stmt, Object... bindArgs) {
-        SQLiteStatement statement = getWritableDB().compileStatement(stmt);
-        bindArgs(statement, bindArgs);
-        Logger.i(stmt+";", bindArgs);
-        return statement.executeInsert();
+    public long insert(String stmt, Object... bindArgs) {
+        mLock.lock(stmt);
+        try {
+            SQLiteStatement statement = getWritableDB().compileStatement(stmt);
+            long rowid;
+            try {
+                bindArgs(statement, bindArgs);
+                Logger.i(stmt+";", bindArgs);
+                recordStatement(stmt, bindArgs);
+                mWriteCount.incrementAndGet();
+                rowid = statement.executeInsert();
+            } finally {
+                statement.close();
+            }
+            notifyEntityCaches(stmt, bindArgs);
+            return rowid;
+        } finally {
+            mLock.unlock();
+        }
     }
 
     /**
@@ -224,11 +856,16 @@ public class Database {
      * @param bindArgs Arguments to bind to '?'s in the query.
      * @return Number of affected rows.
      */
-    public synchronized int update(String stmt, Object... bindArgs) {
-        if (bindArgs == null) {
-            return updateBatch(new String[] {stmt}, null, false);
+    public int update(String stmt, Object... bindArgs) {
+        mLock.lock(stmt);
+        try {
+            if (bindArgs == null) {
+                return updateBatch(new String[] {stmt}, null, false);
+            }
+            return updateBatch(new String[] {stmt}, new Object[][] {bindArgs}, false);
+        } finally {
+            mLock.unlock();
         }
-        return updateBatch(new String[] {stmt}, new Object[][] {bindArgs}, false);
     }
 
     /**
@@ -240,35 +877,247 @@ public class Database {
      * @param withTransaction Whether or not to execute the updates within a transaction.
      * @return Number of updated records.
      */
-    public synchronized int updateBatch(String[] stmts, Object[][] bindArgs, boolean withTransaction) {
-        boolean hasArgs = bindArgs != null;
-        if (hasArgs && bindArgs.length != stmts.length) {
-            throw new DatabaseException("bindArgs.length != stmts.length");
+    public int updateBatch(String[] stmts, Object[][] bindArgs, boolean withTransaction) {
+        mLock.lock(stmts.length > 0 ? stmts[0] : "updateBatch");
+        try {
+            boolean hasArgs = bindArgs != null;
+            if (hasArgs && bindArgs.length != stmts.length) {
+                throw new DatabaseException("bindArgs.length != stmts.length");
+            }
+
+            if (withTransaction) {
+                getWritableDB().beginTransaction();
+            }
+
+            int rows = 0;
+            try {
+                for (int i = 0; i < stmts.length; i++) {
+                    SQLiteStatement statement = getWritableDB().compileStatement(stmts[i]);
+                    if (hasArgs) {
+                        bindArgs(statement, bindArgs[i]);
+                    }
+                    try {
+                        rows += statement.executeUpdateDelete();
+                    } finally {
+                        statement.close();
+                    }
+                    notifyEntityCaches(stmts[i], hasArgs ? bindArgs[i] : null);
+                    Logger.i(stmts[i]+";", hasArgs ? bindArgs[i] : null);
+                    recordStatement(stmts[i], hasArgs ? bindArgs[i] : null);
+                }
+                mWriteCount.incrementAndGet();
+
+                if (withTransaction) {
+                    getWritableDB().setTransactionSuccessful();
+                }
+            } finally {
+                if (withTransaction) {
+                    getWritableDB().endTransaction();
+                }
+            }
+
+            return rows;
+        } finally {
+            mLock.unlock();
         }
+    }
+
+    /**
+     * Delete the rows of a table matching a condition in chunks, each in its own transaction, so
+     * that other work on the database can run in between.
+     * @param table Table to delete from.
+     * @param where <code>WHERE</code> clause, without the <code>WHERE</code>, or null to delete
+     *              every row.
+     * @param whereArgs Arguments to bind to '?'s in the clause. (Optional, if not needed, pass null)
+     * @param chunkSize Maximum number of rows deleted in each transaction.
+     * @return Number of deleted rows.
+     * @see #purge(Purge)
+     */
+    public int purge(String table, String where, Object[] whereArgs, int chunkSize) {
+        return purge(new Purge(table).where(where, whereArgs).chunkSize(chunkSize));
+    }
 
-        if (withTransaction) {
-            getWritableDB().beginTransaction();
+    /**
+     * Run a {@link Purge} on the calling thread, returning once it finishes or is cancelled.
+     * @param purge Purge to run.
+     * @return Number of deleted rows.
+     */
+    public int purge(Purge purge) {
+        if (!mPrepared) {
+            throw new DatabaseException("Database "+getName()+" not prepared yet.");
         }
+        return purge.run(this);
+    }
 
-        int rows = 0;
-        for (int i = 0; i < stmts.length; i++) {
-            SQLiteStatement statement = getWritableDB().compileStatement(stmts[i]);
-            if (hasArgs) {
-                bindArgs(statement, bindArgs[i]);
+    /**
+     * Insert a record, or update the existing record with the same key.  On SQLite 3.24.0
+     * (Android 11) and higher this is a single <code>INSERT ... ON CONFLICT DO UPDATE</code>; on older
+     * versions an <code>INSERT OR IGNORE</code> followed, if needed, by an <code>UPDATE</code>, in one
+     * transaction.  The generated SQL is cached.
+     * @param table Table to write to.
+     * @param keyColumns Columns which identify the record. Must be covered by a
+     *                   <code>UNIQUE</code> index or the <code>PRIMARY KEY</code>, and the values
+     *                   must not be null.
+     * @param values Mapping from column name to value, including the key columns. Columns not in
+     *               the map are left unchanged when updating.
+     * @return The <code>rowid</code> of the inserted or updated record.
+     */
+    public long upsert(String table, String[] keyColumns, Map<String, ?> values) {
+        return upsertBatch(table, keyColumns, Collections.singletonList(values))[0];
+    }
+
+    /**
+     * Upsert a batch of records in a single transaction. Each distinct set of columns is compiled
+     * only once for the whole batch.
+     * @param table Table to write to.
+     * @param keyColumns Columns which identify each record.
+     * @param rows Mapping from column name to value for each record.
+     * @return The <code>rowid</code> of each inserted or updated record, in order.
+     * @see #upsert(String, String[], Map)
+     */
+    public long[] upsertBatch(String table, String[] keyColumns, List<? extends Map<String, ?>> rows) {
+        mLock.lock("upsert "+table);
+        try {
+            if (!mPrepared) {
+                throw new DatabaseException("Database "+getName()+" not prepared yet.");
+            }
+            SQLiteDatabase db = getWritableDB();
+            if (mUpserter == null) {
+                mUpserter = new Upserter(getSqliteVersion());
             }
+            db.beginTransaction();
+            long[] rowids = null;
             try {
-                rows += statement.executeUpdateDelete();
+                rowids = mUpserter.upsert(db, table, keyColumns, rows);
+                mWriteCount.incrementAndGet();
+                db.setTransactionSuccessful();
+                return rowids;
             } finally {
-                statement.close();
+                db.endTransaction();
+                EntityCache<?> cache = mEntityCaches.get(table);
+                if (cache != null && rowids == null) {
+                    cache.invalidateAll();
+                } else if (cache != null) {
+                    boolean inTransaction = db.inTransaction();
+                    for (long rowid : rowids) {
+                        cache.onRowWritten(rowid, inTransaction);
+                    }
+                }
             }
-            Logger.i(stmts[i]+";", bindArgs[i]);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Re-compute the side tables of every {@link Aggregate} declared by a table from the table's
+     * current contents, in a single transaction.  Only needed to repair aggregates, e.g. after
+     * writing to the table with its triggers disabled.
+     * @param tableName Name of a {@link Table} added to the database.
+     * @see Table#getAggregates()
+     */
+    public void rebuildAggregates(String tableName) {
+        mLock.lock("rebuildAggregates "+tableName);
+        try {
+            Table t = mTables.get(tableName);
+            if (t == null) {
+                throw new DatabaseException("Table "+tableName+" was not added to database "+getName()+".");
+            }
+            Aggregate[] aggregates = t.getAggregates();
+            if (aggregates == null || aggregates.length == 0) {
+                return;
+            }
+            List<String> stmts = new ArrayList<>();
+            for (Aggregate aggregate : aggregates) {
+                Collections.addAll(stmts, aggregate.getRebuildStatements(tableName));
+            }
+            updateBatch(stmts.toArray(new String[stmts.size()]), null, true);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Create a {@link WriteBehindBuffer} which coalesces frequent updates to rows of a table in
+     * memory and writes them in batches.  Pending updates are flushed before
+     * {@link #query(String, Object...)} runs a statement which mentions the table, and when the
+     * database is closed.
+     * @param table Table to update.
+     * @param keyColumn Column identifying each row, e.g. <code>"rowid"</code>.
+     * @return The buffer.
+     */
+    public WriteBehindBuffer writeBehind(String table, String keyColumn) {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(this, table, keyColumn);
+        mWriteBehindBuffers.add(buffer);
+        return buffer;
+    }
+
+    void removeWriteBehindBuffer(WriteBehindBuffer buffer) {
+        mWriteBehindBuffers.remove(buffer);
+    }
+
+    /**
+     * Create an {@link EntityCache} for a table whose rows are identified by <code>rowid</code>.
+     * @param table Table to cache rows of.
+     * @param columns Columns to load for each row, e.g. <code>"rowid, name, completed"</code>.
+     * @param mapper Mapper from a row to a cached object.
+     * @param maxBytes Maximum estimated size of the cached rows.
+     * @param <T> Type of the cached objects.
+     * @return The cache.
+     * @see #entityCache(String, String, RowMapper, int, String)
+     */
+    public <T> EntityCache<T> entityCache(String table, String columns, RowMapper<T> mapper, int maxBytes) {
+        return entityCache(table, columns, mapper, maxBytes, "rowid");
+    }
+
+    /**
+     * Create an {@link EntityCache} for a table, replacing any existing cache for the table.
+     * Writes run through this database keep the cache up to date.
+     * @param table Table to cache rows of.
+     * @param columns Columns to load for each row.
+     * @param mapper Mapper from a row to a cached object.
+     * @param maxBytes Maximum estimated size of the cached rows.
+     * @param keyColumn <code>rowid</code>, or the <code>INTEGER PRIMARY KEY</code> column aliasing
+     *                  it.
+     * @param <T> Type of the cached objects.
+     * @return The cache.
+     */
+    public <T> EntityCache<T> entityCache(String table, String columns, RowMapper<T> mapper, int maxBytes, String keyColumn) {
+        if (maxBytes <= 0) {
+            throw new DatabaseException("maxBytes must be positive: "+maxBytes);
         }
+        EntityCache<T> cache = new EntityCache<>(this, table, columns, mapper, maxBytes, keyColumn);
+        mEntityCaches.put(table, cache);
+        return cache;
+    }
+
+    /**
+     * Stop caching the rows of a table.
+     * @param table Table passed to {@link #entityCache(String, String, RowMapper, int)}.
+     */
+    public void removeEntityCache(String table) {
+        mEntityCaches.remove(table);
+    }
 
-        if (withTransaction) {
-            getWritableDB().endTransaction();
+    private void notifyEntityCaches(String stmt, Object[] bindArgs) {
+        if (mEntityCaches.isEmpty()) {
+            return;
+        }
+        boolean inTransaction = getWritableDB().inTransaction();
+        for (EntityCache<?> cache : mEntityCaches.values()) {
+            cache.onWrite(stmt, bindArgs, inTransaction);
         }
+    }
 
-        return rows;
+    private void recordStatement(String stmt, Object[] bindArgs) {
+        IndexAdvisor advisor = mIndexAdvisor;
+        if (advisor != null) {
+            advisor.record(stmt, bindArgs);
+        }
+        WarmupProfile warmup = mWarmupProfile;
+        if (warmup != null) {
+            warmup.record(stmt);
+        }
     }
 
     private void updateSimple(SQLiteDatabase db, String stmt, Object... bindArgs) {
@@ -299,7 +1148,7 @@ public class Database {
         }
     }
 
-    private void bindArgs(SQLiteStatement statement, Object[] args) {
+    static void bindArgs(SQLiteProgram statement, Object[] args) {
         if (args == null) {
             return;
         }
@@ -346,21 +1195,22 @@ public class Database {
 
         Map<String, Integer> versions = mVersionsTable.getTableVersions(db);
 
+        mDeferredIndexes.clear();
+        mFailedIndexes.clear();
         for (Table t : mTables.values()) {
+            boolean created = !versions.containsKey(t.getName());
             if (versions.containsKey(t.getName())) {
                 // have a version, need to upgrade?
                 if (t.getVersion() == Table.DROP_TABLE) {
                     updateSimple(db, "DELETE FROM "+mVersionsTable.getName()+" WHERE table_name = ?", t.getName());
-                    updateSimple(db, "DROP TABLE "+t.getName());
+                    updateBatchSimple(db, t.getDropStatements(), null);
                 } else {
-                    boolean changed = false;
-                    for (int currentVersion = versions.get(t.getName()); currentVersion < t.getVersion(); currentVersion++) {
-                        changed = true;
-                        Logger.d("Upgrading", t.getName(), "from", "v" + currentVersion, "to", "v" + (currentVersion + 1));
-                        String[] migrateStmts = t.getMigration(currentVersion + 1);
-                        updateBatchSimple(db, migrateStmts, null);
+                    List<MigrationPlanner.Step> steps = MigrationPlanner.plan(t, versions.get(t.getName()));
+                    for (MigrationPlanner.Step step : steps) {
+                        Logger.d("Upgrading", t.getName(), "from", "v" + step.fromVersion, "to", "v" + step.toVersion, step.squashed ? "(squashed)" : "");
+                        updateBatchSimple(db, step.statements, null);
                     }
-                    if (changed) {
+                    if (!steps.isEmpty()) {
                         updateSimple(db, "UPDATE " + mVersionsTable.getName() + " SET version = ? WHERE table_name = ?", t.getVersion(), t.getName());
                     }
                 }
@@ -371,9 +1221,24 @@ public class Database {
                 updateBatchSimple(db, createStmts, null);
                 updateSimple(db, "INSERT INTO "+mVersionsTable.getName()+" (table_name, version) VALUES (?, ?)", t.getName(), t.getVersion());
             }
+
+            t.onPrepare(db, created ? -1 : versions.get(t.getName()));
+
+            for (Index index : IndexSynchronizer.synchronize(db, t, created)) {
+                mDeferredIndexes.add(new DeferredIndex(t, index));
+            }
+            AggregateSynchronizer.synchronize(db, t, mVersionsTable.getName(), versions);
         }
     }
 
+    /**
+     * Get the number of write operations run through the database since it was created.
+     * @return Number of writes.
+     */
+    long getWriteCount() {
+        return mWriteCount.get();
+    }
+
     /**
      * Get the {@link android.content.Context} associated with the Database.
      * @return {@link android.content.Context} associated with the Database.
@@ -422,10 +1287,175 @@ public class Database {
         return mReadableDB;
     }
 
+    /**
+     * Attach an {@link IndexAdvisor} which will record the shapes of all statements run through
+     * {@link #query(String, Object...)}, {@link #insert(String, Object...)},
+     * {@link #update(String, Object...)} and
+     * {@link #updateBatch(String[], Object[][], boolean)}.
+     * @param advisor Advisor to attach, or null to stop recording.
+     */
+    public void setIndexAdvisor(IndexAdvisor advisor) {
+        mIndexAdvisor = advisor;
+    }
+
+    /**
+     * Get the {@link IndexAdvisor} attached to the database, if any.
+     * @return The attached advisor, or null.
+     */
+    public IndexAdvisor getIndexAdvisor() {
+        return mIndexAdvisor;
+    }
+
+    /**
+     * Attach a {@link ContentionProfiler} which will record how long callers wait for, and hold,
+     * the lock which serializes access to the database's connections.
+     * @param profiler Profiler to attach, or null to stop profiling.
+     */
+    public void setContentionProfiler(ContentionProfiler profiler) {
+        mLock.setProfiler(profiler);
+    }
+
+    /**
+     * Get the {@link ContentionProfiler} attached to the database, if any.
+     * @return The attached profiler, or null.
+     */
+    public ContentionProfiler getContentionProfiler() {
+        return mLock.getProfiler();
+    }
+
+    DatabaseLock getLock() {
+        return mLock;
+    }
+
+    boolean isSqliteVersionAtLeast(int... version) {
+        return compareVersions(getSqliteVersion(), version) >= 0;
+    }
+
+    static int compareVersions(String version, int[] required) {
+        String[] parts = version.split("\\.");
+        for (int i = 0; i < required.length; i++) {
+            int part = 0;
+            if (i < parts.length) {
+                try {
+                    part = Integer.parseInt(parts[i]);
+                } catch (NumberFormatException e) {
+                    part = 0;
+                }
+            }
+            if (part != required[i]) {
+                return part < required[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Attach a {@link MaintenanceScheduler}, which runs in the background while the database is
+     * prepared.  Replaces (and stops) any previously attached scheduler.
+     * @param scheduler Scheduler to attach, or null to stop background maintenance.
+     */
+    public void setMaintenanceScheduler(MaintenanceScheduler scheduler) {
+        mLock.lock("setMaintenanceScheduler");
+        try {
+            if (mMaintenance != null) {
+                mMaintenance.stop();
+            }
+            mMaintenance = scheduler;
+            if (mMaintenance != null && mPrepared) {
+                mMaintenance.start();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the {@link MaintenanceScheduler} attached to the database, if any.
+     * @return The attached scheduler, or null.
+     */
+    public MaintenanceScheduler getMaintenanceScheduler() {
+        return mMaintenance;
+    }
+
+    /**
+     * Attach a {@link ResourceTracker}, which tracks the {@link Cursor}s returned by
+     * {@link #query(String, Object...)} from then on to find and reclaim the ones never closed.
+     * @param tracker Tracker to attach, or null to stop tracking new cursors.
+     */
+    public void setResourceTracker(ResourceTracker tracker) {
+        mResourceTracker = tracker;
+    }
+
+    /**
+     * Get the {@link ResourceTracker} attached to the database, if any.
+     * @return The attached tracker, or null.
+     */
+    public ResourceTracker getResourceTracker() {
+        return mResourceTracker;
+    }
+
+    /**
+     * Attach a {@link WarmupProfile}, which records the statements run shortly after
+     * {@link #prepare()} and warms them up in the background the next time the database is
+     * prepared.  Must be called before {@link #prepare()} to take effect.
+     * @param profile Profile to attach, or null.
+     */
+    public void setWarmupProfile(WarmupProfile profile) {
+        mLock.lock("setWarmupProfile");
+        try {
+            if (mWarmupProfile != null) {
+                mWarmupProfile.stop();
+            }
+            mWarmupProfile = profile;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Get the {@link WarmupProfile} attached to the database, if any.
+     * @return The attached profile, or null.
+     */
+    public WarmupProfile getWarmupProfile() {
+        return mWarmupProfile;
+    }
+
+    /**
+     * Get the version of SQLite the database is running on, e.g. <code>3.22.0</code>.
+     * @return SQLite version.
+     */
+    public String getSqliteVersion() {
+        mLock.lock("getSqliteVersion");
+        try {
+            if (mSqliteVersion == null) {
+                if (!mPrepared) {
+                    throw new DatabaseException("Database "+getName()+" not prepared yet.");
+                }
+                mSqliteVersion = DatabaseUtils.stringForQuery(getWritableDB(), "SELECT sqlite_version()", null);
+            }
+            return mSqliteVersion;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
     public void setLogLevel(@Logger.LogLevel int level) {
         Logger.setLevel(level);
     }
 
+    /**
+     * An {@link Index} waiting to be built by {@link #buildDeferredIndexes()}.
+     */
+    private static final class DeferredIndex {
+        final Table table;
+        final Index index;
+
+        DeferredIndex(Table table, Index index) {
+            this.table = table;
+            this.index = index;
+        }
+    }
+
     /**
      * {@link Table} definition used to define the SQLite table which tracks the current versions of
      * all other {@link Table}s in the database.
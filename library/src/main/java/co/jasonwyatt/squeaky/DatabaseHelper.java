@@ -15,11 +15,37 @@ import co.jasonwyatt.squeaky.util.Logger;
  * @see android.database.sqlite.SQLiteOpenHelper
  */
 public class DatabaseHelper extends SQLiteOpenHelper {
+    private TuningProfile mTuningProfile;
 
     public DatabaseHelper(Context context, String name, int version) {
         super(context, name, null, version);
     }
 
+    /**
+     * Set the {@link TuningProfile} applied to connections when they are configured. Called by
+     * {@link Database} before any connections are opened.
+     * @param profile Profile to apply, or null to use Android's defaults.
+     */
+    public void setTuningProfile(TuningProfile profile) {
+        mTuningProfile = profile;
+    }
+
+    /**
+     * Get the {@link TuningProfile} applied to connections when they are configured.
+     * @return The tuning profile, or null.
+     */
+    public TuningProfile getTuningProfile() {
+        return mTuningProfile;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        Logger.d("DatabaseHelper.onConfigure(",db,")");
+        if (mTuningProfile != null) {
+            mTuningProfile.apply(db);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Logger.d("DatabaseHelper.onCreate(",db,")");
@@ -0,0 +1,102 @@
+package co.jasonwyatt.squeaky;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The lock which serializes access to a {@link Database}'s connections.  When a
+ * {@link ContentionProfiler} is attached, each outermost acquisition records how long it waited
+ * and how long the lock was then held, and waits past the profiler's threshold capture the
+ * holder's stack.  Without a profiler it's a plain {@link ReentrantLock}.
+ */
+final class DatabaseLock {
+    private final OwnerLock mLock = new OwnerLock();
+    private volatile ContentionProfiler mProfiler;
+
+    // written by the holder, read by waiters reporting slow waits.
+    private volatile String mHolderCallSite;
+    private volatile String mHolderStatement;
+    // only touched by the holder.
+    private ContentionProfiler mHolderProfiler;
+    private long mHoldStartNanos;
+
+    void setProfiler(ContentionProfiler profiler) {
+        mProfiler = profiler;
+    }
+
+    ContentionProfiler getProfiler() {
+        return mProfiler;
+    }
+
+    /**
+     * Acquire the lock.
+     * @param statement SQL statement (or name of the operation) the lock is acquired for.
+     */
+    void lock(String statement) {
+        ContentionProfiler profiler = mProfiler;
+        if (profiler == null || mLock.isHeldByCurrentThread()) {
+            mLock.lock();
+            return;
+        }
+
+        String callSite = ContentionProfiler.callSite();
+        long start = System.nanoTime();
+        ContentionProfiler.SlowWait slowWait = null;
+        if (!mLock.tryLock()) {
+            boolean acquired = false;
+            try {
+                acquired = mLock.tryLock(profiler.getThresholdNanos(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                // capture what the holder is doing while it still holds the lock.
+                Thread holder = mLock.getOwner();
+                String holderCallSite = mHolderCallSite;
+                String holderStatement = mHolderStatement;
+                StackTraceElement[] holderStack = holder == null ? new StackTraceElement[0] : holder.getStackTrace();
+                mLock.lock();
+                slowWait = new ContentionProfiler.SlowWait(callSite, statement, System.nanoTime() - start,
+                        holder == null ? null : holder.getName(), holderCallSite, holderStatement, holderStack);
+            }
+        }
+        profiler.recordWait(callSite, statement, System.nanoTime() - start);
+        if (slowWait != null) {
+            profiler.recordSlowWait(slowWait);
+        }
+
+        mHolderProfiler = profiler;
+        mHolderCallSite = callSite;
+        mHolderStatement = statement;
+        mHoldStartNanos = System.nanoTime();
+    }
+
+    void unlock() {
+        if (mHolderProfiler != null && mLock.getHoldCount() == 1) {
+            ContentionProfiler profiler = mHolderProfiler;
+            mHolderProfiler = null;
+            profiler.recordHold(mHolderCallSite, mHolderStatement, System.nanoTime() - mHoldStartNanos);
+            mHolderCallSite = null;
+            mHolderStatement = null;
+        }
+        mLock.unlock();
+    }
+
+    boolean isHeldByCurrentThread() {
+        return mLock.isHeldByCurrentThread();
+    }
+
+    boolean hasQueuedThreads() {
+        return mLock.hasQueuedThreads();
+    }
+
+    /**
+     * Exposes the owning thread, which {@link ReentrantLock} keeps protected.
+     */
+    private static final class OwnerLock extends ReentrantLock {
+        @Override
+        protected Thread getOwner() {
+            return super.getOwner();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.util.LruCache;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Identity map for the rows of a table: an LRU cache from <code>rowid</code> to the object mapped
+ * from the row, bounded by the estimated size of the cached rows.  Create one with
+ * {@link Database#entityCache(String, String, RowMapper, int)}:
+ * </p>
+ *
+ * <pre>
+ *     EntityCache&lt;Todo&gt; todos = db.entityCache("todos", "rowid, name, completed", new TodoMapper(), 256 * 1024);
+ *     Todo todo = todos.get(id);
+ * </pre>
+ *
+ * <p>
+ * Repeated lookups of the same row are hash map hits.  Writes through the {@link Database} keep
+ * the cache consistent: <code>UPDATE</code>s and <code>DELETE</code>s of a single row (
+ * <code>... WHERE rowid = ?</code>) and upserts refresh or evict just that row, while any other
+ * statement which mentions the table evicts all of its rows.  Writes which bypass the
+ * {@link Database} (e.g. from triggers on other tables) aren't seen; call
+ * {@link #invalidateAll()} after them.
+ * </p>
+ * @param <T> Type of the cached objects.
+ */
+public class EntityCache<T> {
+    // rough per-row overhead of the cache entry, the boxed key and the mapped object.
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final Database mDatabase;
+    private final String mTable;
+    private final String mColumns;
+    private final RowMapper<T> mMapper;
+    private final String mKeyColumn;
+    private final String mSelect;
+    private final Pattern mReference;
+    private final Pattern mPlainInsert;
+    private final Pattern mPointUpdate;
+    private final Pattern mPointDelete;
+    private final LruCache<Long, Entry<T>> mEntries;
+
+    EntityCache(Database database, String table, String columns, RowMapper<T> mapper, int maxBytes, String keyColumn) {
+        mDatabase = database;
+        mTable = table;
+        mColumns = columns;
+        mMapper = mapper;
+        mKeyColumn = keyColumn;
+        mSelect = "SELECT "+columns+" FROM "+table+" WHERE "+keyColumn+" = ?";
+
+        String t = Pattern.quote(table);
+        String k = Pattern.quote(keyColumn);
+        int flags = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+        mReference = Pattern.compile("\\b"+t+"\\b", flags);
+        mPlainInsert = Pattern.compile("^\\s*INSERT\\s+INTO\\s+"+t+"\\b(?!.*\\bON\\s+CONFLICT\\b).*$", flags);
+        mPointUpdate = Pattern.compile("^\\s*UPDATE\\s+"+t+"\\s+SET\\s+.+\\s+WHERE\\s+"+k+"\\s*=\\s*\\?\\s*;?\\s*$", flags);
+        mPointDelete = Pattern.compile("^\\s*DELETE\\s+FROM\\s+"+t+"\\s+WHERE\\s+"+k+"\\s*=\\s*\\?\\s*;?\\s*$", flags);
+        mEntries = new LruCache<Long, Entry<T>>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Entry<T> value) {
+                return value.mSizeBytes;
+            }
+        };
+    }
+
+    /**
+     * Get the name of the cached table.
+     * @return Name of the table.
+     */
+    public String getTable() {
+        return mTable;
+    }
+
+    /**
+     * Get the object for a row, loading it if it isn't cached.
+     * @param id <code>rowid</code> of the row.
+     * @return Object mapped from the row, or null if there is no such row.
+     */
+    public T get(long id) {
+        Entry<T> entry = mEntries.get(id);
+        if (entry != null) {
+            return entry.mValue;
+        }
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock(mSelect);
+        try {
+            // loaded under the database's lock, so no write can be missed between the load and
+            // caching it.
+            entry = load(id);
+            return entry == null ? null : entry.mValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Evict a single row.
+     * @param id <code>rowid</code> of the row.
+     */
+    public void invalidate(long id) {
+        mEntries.remove(id);
+    }
+
+    /**
+     * Evict every row.
+     */
+    public void invalidateAll() {
+        mEntries.evictAll();
+    }
+
+    /**
+     * Get the estimated size of the cached rows.
+     * @return Size, in bytes.
+     */
+    public int getSizeBytes() {
+        return mEntries.size();
+    }
+
+    /**
+     * Get the number of lookups which were served from the cache.
+     * @return Number of hits.
+     */
+    public int getHitCount() {
+        return mEntries.hitCount();
+    }
+
+    /**
+     * Get the number of lookups which had to query the database.
+     * @return Number of misses.
+     */
+    public int getMissCount() {
+        return mEntries.missCount();
+    }
+
+    /**
+     * Called (while holding the database's lock) after the database ran a write statement.
+     * @param stmt Statement which ran.
+     * @param bindArgs Arguments bound to the statement.
+     * @param inTransaction Whether or not the write could still be rolled back.
+     */
+    void onWrite(String stmt, Object[] bindArgs, boolean inTransaction) {
+        if (!mReference.matcher(stmt).find() || mPlainInsert.matcher(stmt).matches()) {
+            // new rows can't be cached yet.
+            return;
+        }
+        Matcher update = mPointUpdate.matcher(stmt);
+        if (update.matches() && bindArgs != null && bindArgs.length > 0) {
+            Long id = toId(bindArgs[bindArgs.length - 1]);
+            if (id != null) {
+                onRowWritten(id, inTransaction);
+                return;
+            }
+        }
+        Matcher delete = mPointDelete.matcher(stmt);
+        if (delete.matches() && bindArgs != null && bindArgs.length == 1) {
+            Long id = toId(bindArgs[0]);
+            if (id != null) {
+                mEntries.remove(id);
+                return;
+            }
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Called (while holding the database's lock) after a row of the table was written.  Rows
+     * which are cached are re-loaded, unless the write could still be rolled back.
+     * @param id <code>rowid</code> of the row.
+     * @param inTransaction Whether or not the write could still be rolled back.
+     */
+    void onRowWritten(long id, boolean inTransaction) {
+        if (mEntries.remove(id) != null && !inTransaction) {
+            load(id);
+        }
+    }
+
+    private Entry<T> load(long id) {
+        Cursor c = mDatabase.getReadableDB().rawQuery(mSelect, new String[] {Long.toString(id)});
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Entry<T> entry = new Entry<>(mMapper.map(c), estimateSize(c));
+            // rows read inside a transaction may hold writes which are yet to be rolled back.
+            if (!mDatabase.getWritableDB().inTransaction()) {
+                mEntries.put(id, entry);
+            }
+            return entry;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static int estimateSize(Cursor c) {
+        int size = ENTRY_OVERHEAD_BYTES;
+        for (int i = 0; i < c.getColumnCount(); i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_STRING:
+                    size += 40 + 2 * c.getString(i).length();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    size += 16 + c.getBlob(i).length;
+                    break;
+                default:
+                    size += 16;
+                    break;
+            }
+        }
+        return size;
+    }
+
+    private static Long toId(Object arg) {
+        if (arg instanceof Number) {
+            return ((Number) arg).longValue();
+        }
+        if (arg instanceof String) {
+            try {
+                return Long.parseLong((String) arg);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache{table="+mTable+", columns="+mColumns+", key="+mKeyColumn+", "+mEntries+"}";
+    }
+
+    private static final class Entry<T> {
+        final T mValue;
+        final int mSizeBytes;
+
+        Entry(T value, int sizeBytes) {
+            mValue = value;
+            mSizeBytes = sizeBytes;
+        }
+    }
+}
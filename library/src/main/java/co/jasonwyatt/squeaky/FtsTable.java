@@ -0,0 +1,589 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * Definition of a full-text search virtual table.  Instead of scanning a table with
+ * <code>LIKE '%term%'</code>, declare an {@link FtsTable} over the columns you search and use
+ * {@link #search(Database, String, int)}:
+ * </p>
+ *
+ * <pre>
+ *     public class NotesSearchTable extends FtsTable {
+ *         public String getName() { return "notes_fts"; }
+ *         public int getVersion() { return 1; }
+ *         public String[] getIndexedColumns() { return new String[] {"title", "body"}; }
+ *         public String getContentTable() { return "notes"; }
+ *     }
+ * </pre>
+ *
+ * <p>
+ * When {@link #getContentTable()} is provided the virtual table is an external-content table:
+ * the text is only stored once, in the content table, and Squeaky generates triggers which keep
+ * the index in sync with it.  Add the content table to the {@link Database} before the
+ * {@link FtsTable}.  Without a content table, write to the virtual table directly.
+ * </p>
+ *
+ * <p>
+ * Changing {@link #getIndexedColumns()}, {@link #getTokenizer()} or the content table requires a
+ * new version; the virtual table is then dropped, re-created and rebuilt from the content table.
+ * </p>
+ */
+public abstract class FtsTable extends Table {
+    public static final int FTS4 = 4;
+    public static final int FTS5 = 5;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({FTS4, FTS5})
+    public @interface Module {}
+
+    // standard BM25 parameters, matching FTS5's bm25().
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final String[] TRIGGER_SUFFIXES = {"_ai", "_bu", "_bd", "_au", "_ad"};
+
+    /**
+     * Get the columns of the virtual table, which are indexed for full-text search.  With an
+     * external content table these must also be columns of the content table.
+     * @return Indexed columns.
+     */
+    public abstract String[] getIndexedColumns();
+
+    /**
+     * Get the name of the table holding the indexed text.  By default this returns null, and the
+     * text is stored in the virtual table itself.
+     * @return Name of the content table, or null.
+     */
+    public String getContentTable() {
+        return null;
+    }
+
+    /**
+     * Get the column of the content table which the virtual table's <code>rowid</code> refers to.
+     * Only FTS5 supports a column other than <code>rowid</code>; FTS4 always uses the content
+     * table's <code>rowid</code>.
+     * @return Name of an <code>INTEGER PRIMARY KEY</code> column of the content table, or
+     *         <code>"rowid"</code> (the default).
+     */
+    public String getContentRowId() {
+        return "rowid";
+    }
+
+    /**
+     * Get the SQLite module used for the virtual table.  Defaults to {@link #FTS4}, which every
+     * Android version supports.  {@link #FTS5} ranks results inside SQLite, but is only available
+     * when the app ships its own SQLite build with FTS5 enabled.
+     * @return {@link #FTS4} or {@link #FTS5}.
+     */
+    @Module
+    public int getModule() {
+        return FTS4;
+    }
+
+    /**
+     * Get the tokenizer used to split text in to terms, e.g. <code>"porter"</code> or
+     * <code>"unicode61"</code> (Android 4.3 and higher).  Defaults to null, which uses SQLite's
+     * <code>simple</code> tokenizer.
+     * @return Tokenizer declaration, or null.
+     */
+    public String getTokenizer() {
+        return null;
+    }
+
+    /**
+     * Get the weight of each indexed column when ranking results, e.g. to make title matches
+     * count more than body matches.  Defaults to null, which weighs every column equally.
+     * @return One weight per indexed column, or null.
+     */
+    public double[] getColumnWeights() {
+        return null;
+    }
+
+    @Override
+    public String[] getCreateTable() {
+        List<String> stmts = new ArrayList<>();
+        stmts.add(getCreateVirtualTable());
+        Collections.addAll(stmts, getCreateTriggers());
+        if (getContentTable() != null) {
+            stmts.add(getCommand("rebuild"));
+        }
+        return stmts.toArray(new String[stmts.size()]);
+    }
+
+    /**
+     * Drops and re-creates the virtual table (and rebuilds it from the content table) when
+     * migrating to the current version.  Migrations to intermediate versions do nothing, so a table
+     * which is several versions behind is only rebuilt once.
+     */
+    @Override
+    public String[] getMigration(int nextVersion) {
+        if (nextVersion != getVersion()) {
+            return new String[0];
+        }
+        List<String> stmts = new ArrayList<>();
+        Collections.addAll(stmts, getDropStatements());
+        Collections.addAll(stmts, getCreateTable());
+        return stmts.toArray(new String[stmts.size()]);
+    }
+
+    @Override
+    String[] getDropStatements() {
+        String[] stmts = new String[TRIGGER_SUFFIXES.length + 1];
+        for (int i = 0; i < TRIGGER_SUFFIXES.length; i++) {
+            stmts[i] = "DROP TRIGGER IF EXISTS "+getName()+TRIGGER_SUFFIXES[i];
+        }
+        stmts[TRIGGER_SUFFIXES.length] = "DROP TABLE IF EXISTS "+getName();
+        return stmts;
+    }
+
+    /**
+     * Search the table.  Results are ranked with BM25: with {@link #FTS5} inside SQLite, with
+     * {@link #FTS4} by scoring <code>matchinfo()</code> for every match and keeping the best
+     * {@param limit}.
+     * @param db Database containing the table.
+     * @param query Full-text query, in the syntax of the table's module.
+     * @param limit Maximum number of results.
+     * @return Matches, best first.
+     */
+    public List<Match> search(Database db, String query, int limit) {
+        return search(db, query, limit, null);
+    }
+
+    /**
+     * Search the table, including a snippet of the matching text with each result.
+     * @param db Database containing the table.
+     * @param query Full-text query, in the syntax of the table's module.
+     * @param limit Maximum number of results.
+     * @param snippet How to build the snippets, or null for no snippets.
+     * @return Matches, best first.
+     * @see #search(Database, String, int)
+     */
+    public List<Match> search(Database db, String query, int limit, Snippet snippet) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+        return getModule() == FTS5 ? searchFts5(db, query, limit, snippet) : searchFts4(db, query, limit, snippet);
+    }
+
+    private List<Match> searchFts5(Database db, String query, int limit, Snippet snippet) {
+        String bm25 = "bm25("+getName()+getWeightArgs()+")";
+        StringBuilder sql = new StringBuilder("SELECT rowid, -").append(bm25);
+        List<Object> args = new ArrayList<>();
+        if (snippet != null) {
+            sql.append(", snippet(").append(getName()).append(", ").append(snippet.mColumn).append(", ?, ?, ?, ")
+                    .append(Math.min(snippet.mTokens, 64)).append(")");
+            Collections.addAll(args, snippet.mStart, snippet.mEnd, snippet.mEllipsis);
+        }
+        sql.append(" FROM ").append(getName()).append(" WHERE ").append(getName())
+                .append(" MATCH ? ORDER BY ").append(bm25).append(" LIMIT ?");
+        args.add(query);
+        args.add(limit);
+
+        List<Match> matches = new ArrayList<>();
+        Cursor c = db.query(sql.toString(), args.toArray());
+        try {
+            while (c.moveToNext()) {
+                matches.add(new Match(c.getLong(0), c.getDouble(1), snippet != null ? c.getString(2) : null));
+            }
+        } finally {
+            c.close();
+        }
+        return matches;
+    }
+
+    private List<Match> searchFts4(Database db, String query, int limit, Snippet snippet) {
+        StringBuilder sql = new StringBuilder("SELECT docid, matchinfo(").append(getName()).append(", 'pcnalx')");
+        List<Object> args = new ArrayList<>();
+        if (snippet != null) {
+            sql.append(", snippet(").append(getName()).append(", ?, ?, ?, ").append(snippet.mColumn).append(", ")
+                    .append(snippet.mTokens).append(")");
+            Collections.addAll(args, snippet.mStart, snippet.mEnd, snippet.mEllipsis);
+        }
+        sql.append(" FROM ").append(getName()).append(" WHERE ").append(getName()).append(" MATCH ?");
+        args.add(query);
+
+        // min-heap of the best matches so far, so only limit matches are ever retained.
+        PriorityQueue<Match> best = new PriorityQueue<>(limit, new Comparator<Match>() {
+            @Override
+            public int compare(Match lhs, Match rhs) {
+                return Double.compare(lhs.mScore, rhs.mScore);
+            }
+        });
+        double[] weights = getColumnWeights();
+        Cursor c = db.query(sql.toString(), args.toArray());
+        try {
+            while (c.moveToNext()) {
+                double score = bm25(c.getBlob(1), weights);
+                if (best.size() == limit && best.peek().mScore >= score) {
+                    continue;
+                }
+                if (best.size() == limit) {
+                    best.poll();
+                }
+                best.add(new Match(c.getLong(0), score, snippet != null ? c.getString(2) : null));
+            }
+        } finally {
+            c.close();
+        }
+
+        List<Match> matches = new ArrayList<>(best);
+        Collections.sort(matches, Collections.reverseOrder(best.comparator()));
+        return matches;
+    }
+
+    /**
+     * Compute the BM25 score of a row from the output of <code>matchinfo(table, 'pcnalx')</code>.
+     * Higher scores are better.
+     */
+    static double bm25(byte[] matchinfo, double[] weights) {
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        long rows = info.get(2) & 0xFFFFFFFFL;
+        int averageLengths = 3;
+        int lengths = averageLengths + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int offset = hits + 3 * (phrase * columns + column);
+                long frequency = info.get(offset) & 0xFFFFFFFFL;
+                if (frequency == 0) {
+                    continue;
+                }
+                long rowsWithHits = info.get(offset + 2) & 0xFFFFFFFFL;
+                double idf = Math.log((rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5));
+                if (idf <= 0) {
+                    // very common terms still count for a little.
+                    idf = 1e-6;
+                }
+                double averageLength = info.get(averageLengths + column);
+                double length = info.get(lengths + column);
+                double normalizedLength = averageLength > 0 ? length / averageLength : 1;
+                double weight = weights != null && column < weights.length ? weights[column] : 1;
+                score += weight * idf * (frequency * (BM25_K1 + 1))
+                        / (frequency + BM25_K1 * (1 - BM25_B + BM25_B * normalizedLength));
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Rebuild the full-text index from the content table.
+     * @param db Database containing the table.
+     */
+    public void rebuild(Database db) {
+        db.update(getCommand("rebuild"));
+    }
+
+    /**
+     * Merge the index's segments in to one, for the fastest possible queries.  The work is done
+     * in steps of {@param pagesPerStep} pages, each in its own statement, so that other writers
+     * aren't locked out for the whole merge.
+     * @param db Database containing the table.
+     * @param pagesPerStep Number of pages to write per step, e.g. 500.
+     * @return Number of steps taken.
+     */
+    public int optimize(Database db, int pagesPerStep) {
+        int steps = 0;
+        while (merge(db, pagesPerStep)) {
+            steps++;
+        }
+        return steps;
+    }
+
+    /**
+     * Do a single incremental merge step of up to {@param pages} pages.
+     * @param db Database containing the table.
+     * @param pages Maximum number of pages to write.
+     * @return True if the step did any work, false if the index is already fully merged.
+     */
+    public boolean merge(Database db, int pages) {
+        String merge = getModule() == FTS5
+                // a negative page count makes FTS5 merge every segment, like 'optimize' does.
+                ? "INSERT INTO "+getName()+" ("+getName()+", rank) VALUES ('merge', "+(-pages)+")"
+                // with a minimum of 2 segments, FTS4 merges until a single segment remains.
+                : getCommand("merge="+pages+",2");
+        DatabaseLock lock = db.getLock();
+        lock.lock(merge);
+        try {
+            // both modules document a change in total_changes() of less than 2 as "nothing to do".
+            long before = totalChanges(db);
+            db.update(merge);
+            return totalChanges(db) - before >= 2;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set how many segments may accumulate before SQLite automatically merges them as part of
+     * normal writes.
+     * @param db Database containing the table.
+     * @param segments Segments to merge at once (2 to 16), or 0 to disable automatic merging.
+     */
+    public void setAutomerge(Database db, int segments) {
+        db.update(getModule() == FTS5
+                ? "INSERT INTO "+getName()+" ("+getName()+", rank) VALUES ('automerge', "+segments+")"
+                : getCommand("automerge="+segments));
+    }
+
+    /**
+     * Run a large batch of writes to the content table without maintaining the index row by row.
+     * The sync triggers are dropped, the statements are run, then the triggers are re-created and
+     * the index is rebuilt, all in a single transaction.  Worthwhile when the batch touches a
+     * large part of the table; for a table without a content table this is equivalent to
+     * {@link Database#updateBatch(String[], Object[][], boolean)}.
+     * @param db Database containing the table.
+     * @param stmts Statements to run.
+     * @param bindArgs Arguments for each statement, or null.
+     * @return Number of updated records.
+     */
+    public int bulkUpdate(Database db, String[] stmts, Object[][] bindArgs) {
+        if (getContentTable() == null) {
+            return db.updateBatch(stmts, bindArgs, true);
+        }
+        String[] drops = getDropStatements();
+        String[] triggers = getCreateTriggers();
+        String[] recreate = new String[triggers.length + 1];
+        System.arraycopy(triggers, 0, recreate, 0, triggers.length);
+        recreate[triggers.length] = getCommand("rebuild");
+
+        DatabaseLock lock = db.getLock();
+        lock.lock("bulkUpdate "+getName());
+        try {
+            SQLiteDatabase sqlite = db.getWritableDB();
+            sqlite.beginTransaction();
+            try {
+                // the last drop statement is the virtual table itself, which is kept.
+                db.updateBatch(Arrays.copyOf(drops, drops.length - 1), null, false);
+                int rows = db.updateBatch(stmts, bindArgs, false);
+                db.updateBatch(recreate, null, false);
+                sqlite.setTransactionSuccessful();
+                return rows;
+            } finally {
+                sqlite.endTransaction();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String getCreateVirtualTable() {
+        StringBuilder sql = new StringBuilder("CREATE VIRTUAL TABLE ").append(getName());
+        List<String> args = new ArrayList<>();
+        String content = getContentTable();
+        String tokenizer = getTokenizer();
+        if (getModule() == FTS5) {
+            sql.append(" USING fts5(");
+            Collections.addAll(args, getIndexedColumns());
+            if (content != null) {
+                args.add("content='"+content+"'");
+                args.add("content_rowid='"+getContentRowId()+"'");
+            }
+            if (tokenizer != null) {
+                args.add("tokenize='"+tokenizer+"'");
+            }
+        } else {
+            sql.append(" USING fts4(");
+            if (content != null) {
+                args.add("content=\""+content+"\"");
+            }
+            Collections.addAll(args, getIndexedColumns());
+            if (tokenizer != null) {
+                args.add("tokenize="+tokenizer);
+            }
+        }
+        return sql.append(join(args, "")).append(")").toString();
+    }
+
+    String[] getCreateTriggers() {
+        String content = getContentTable();
+        if (content == null) {
+            return new String[0];
+        }
+        String name = getName();
+        String[] columns = getIndexedColumns();
+        String updateOf = " UPDATE OF "+join(columns, "")+" ON "+content;
+        if (getModule() == FTS5) {
+            String rowId = getContentRowId();
+            String insert = "INSERT INTO "+name+" (rowid, "+join(columns, "")+") VALUES (new."+rowId+", "+join(columns, "new.")+");";
+            String delete = "INSERT INTO "+name+" ("+name+", rowid, "+join(columns, "")+") VALUES ('delete', old."+rowId+", "+join(columns, "old.")+");";
+            return new String[] {
+                    "CREATE TRIGGER "+name+"_ai AFTER INSERT ON "+content+" BEGIN "+insert+" END",
+                    "CREATE TRIGGER "+name+"_ad AFTER DELETE ON "+content+" BEGIN "+delete+" END",
+                    // only updates of indexed columns touch the index.
+                    "CREATE TRIGGER "+name+"_au AFTER"+updateOf+" BEGIN "+delete+" "+insert+" END"
+            };
+        }
+        String insert = "INSERT INTO "+name+" (docid, "+join(columns, "")+") VALUES (new.rowid, "+join(columns, "new.")+");";
+        String delete = "DELETE FROM "+name+" WHERE docid = old.rowid;";
+        return new String[] {
+                "CREATE TRIGGER "+name+"_ai AFTER INSERT ON "+content+" BEGIN "+insert+" END",
+                "CREATE TRIGGER "+name+"_bd BEFORE DELETE ON "+content+" BEGIN "+delete+" END",
+                // only updates of indexed columns touch the index.
+                "CREATE TRIGGER "+name+"_bu BEFORE"+updateOf+" BEGIN "+delete+" END",
+                "CREATE TRIGGER "+name+"_au AFTER"+updateOf+" BEGIN "+insert+" END"
+        };
+    }
+
+    private String getCommand(String command) {
+        return "INSERT INTO "+getName()+" ("+getName()+") VALUES ('"+command+"')";
+    }
+
+    private String getWeightArgs() {
+        double[] weights = getColumnWeights();
+        if (weights == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (double weight : weights) {
+            sb.append(", ").append(weight);
+        }
+        return sb.toString();
+    }
+
+    private static long totalChanges(Database db) {
+        Cursor c = db.getWritableDB().rawQuery("SELECT total_changes()", null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String join(String[] values, String prefix) {
+        List<String> prefixed = new ArrayList<>(values.length);
+        for (String value : values) {
+            prefixed.add(prefix+value);
+        }
+        return join(prefixed, "");
+    }
+
+    private static String join(List<String> values, String prefix) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(prefix).append(values.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A single search result.
+     */
+    public static class Match {
+        private final long mRowId;
+        private final double mScore;
+        private final String mSnippet;
+
+        Match(long rowId, double score, String snippet) {
+            mRowId = rowId;
+            mScore = score;
+            mSnippet = snippet;
+        }
+
+        /**
+         * Get the <code>rowid</code> of the matching row, which with an external content table is
+         * the content table's {@link FtsTable#getContentRowId()}.
+         * @return Row id.
+         */
+        public long getRowId() {
+            return mRowId;
+        }
+
+        /**
+         * Get the BM25 score of the match. Higher is better.
+         * @return Score.
+         */
+        public double getScore() {
+            return mScore;
+        }
+
+        /**
+         * Get the snippet of matching text, if one was requested.
+         * @return Snippet, or null.
+         */
+        public String getSnippet() {
+            return mSnippet;
+        }
+
+        @Override
+        public String toString() {
+            return "Match{rowId="+mRowId+", score="+mScore+", snippet="+mSnippet+"}";
+        }
+    }
+
+    /**
+     * Describes the snippets returned with search results.
+     */
+    public static class Snippet {
+        private int mColumn = -1;
+        private String mStart = "<b>";
+        private String mEnd = "</b>";
+        private String mEllipsis = "...";
+        private int mTokens = 15;
+
+        /**
+         * Only take snippets from one column. By default the best-matching column is used.
+         * @param index Index of the column in {@link FtsTable#getIndexedColumns()}.
+         * @return This snippet, for chaining.
+         */
+        public Snippet column(int index) {
+            mColumn = index;
+            return this;
+        }
+
+        /**
+         * Set the text inserted around each matching term. Defaults to <code>&lt;b&gt;</code> and
+         * <code>&lt;/b&gt;</code>.
+         * @param start Text inserted before each match.
+         * @param end Text inserted after each match.
+         * @return This snippet, for chaining.
+         */
+        public Snippet markers(String start, String end) {
+            mStart = start;
+            mEnd = end;
+            return this;
+        }
+
+        /**
+         * Set the text added where the snippet cuts off the column's text. Defaults to
+         * <code>...</code>.
+         * @param ellipsis Ellipsis text.
+         * @return This snippet, for chaining.
+         */
+        public Snippet ellipsis(String ellipsis) {
+            mEllipsis = ellipsis;
+            return this;
+        }
+
+        /**
+         * Set the approximate number of tokens in each snippet. Defaults to 15.
+         * @param tokens Number of tokens (at most 64).
+         * @return This snippet, for chaining.
+         */
+        public Snippet tokens(int tokens) {
+            mTokens = tokens;
+            return this;
+        }
+    }
+}
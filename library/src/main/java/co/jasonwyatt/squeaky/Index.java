@@ -0,0 +1,139 @@
+package co.jasonwyatt.squeaky;
+
+/**
+ * Declarative definition of an SQLite index on a {@link Table}.  Return instances of {@link Index}
+ * from {@link Table#getIndexes()} and Squeaky will make sure the database's indexes match the
+ * definitions every time the {@link Database} is prepared.
+ *
+ * <pre>
+ *     new Index("todos_by_finished", "finished_date", "create_date")
+ *             .where("finished_date IS NOT NULL")
+ *             .deferred();
+ * </pre>
+ */
+public class Index {
+    private final String mName;
+    private final String[] mColumns;
+    private boolean mUnique;
+    private String mWhere;
+    private boolean mDeferred;
+
+    /**
+     * Creates a new {@link Index} definition.
+     * @param name Name of the index. Index names are shared by all tables in the database, so
+     *             they must be unique.
+     * @param columns Columns (or column expressions, e.g. <code>"create_date DESC"</code>)
+     *                covered by the index, in order.
+     */
+    public Index(String name, String... columns) {
+        if (columns == null || columns.length == 0) {
+            throw new DatabaseException("Index "+name+" must cover at least one column.");
+        }
+        mName = name;
+        mColumns = columns;
+    }
+
+    /**
+     * Mark the index as a <code>UNIQUE</code> index.
+     * @return This index, for chaining.
+     */
+    public Index unique() {
+        mUnique = true;
+        return this;
+    }
+
+    /**
+     * Make the index a partial index, only covering rows matching the given expression.  Partial
+     * indexes require SQLite 3.8.0 (Android 5.0) or higher.
+     * @param expression Expression for the <code>WHERE</code> clause of the index.
+     * @return This index, for chaining.
+     */
+    public Index where(String expression) {
+        mWhere = expression;
+        return this;
+    }
+
+    /**
+     * Allow Squeaky to defer building the index until after {@link Database#prepare()} has
+     * returned, rather than building it synchronously while preparing.  Indexes on tables which are
+     * being created from scratch are always built right away, because doing so is cheap.
+     * @return This index, for chaining.
+     * @see Database#buildDeferredIndexes()
+     */
+    public Index deferred() {
+        mDeferred = true;
+        return this;
+    }
+
+    /**
+     * Get the name of the index.
+     * @return Name of the index.
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Get the columns covered by the index.
+     * @return Columns covered by the index.
+     */
+    public String[] getColumns() {
+        return mColumns;
+    }
+
+    /**
+     * Get whether or not the index is a <code>UNIQUE</code> index.
+     * @return True if the index is unique.
+     */
+    public boolean isUnique() {
+        return mUnique;
+    }
+
+    /**
+     * Get the expression used for the <code>WHERE</code> clause of a partial index.
+     * @return The partial index expression, or null if the index covers all rows.
+     */
+    public String getWhere() {
+        return mWhere;
+    }
+
+    /**
+     * Get whether or not building the index may be deferred until after the database is prepared.
+     * @return True if the index build may be deferred.
+     */
+    public boolean isDeferred() {
+        return mDeferred;
+    }
+
+    /**
+     * Get the SQL statement used to create the index on a particular table.
+     * @param tableName Name of the table being indexed.
+     * @return <code>CREATE INDEX</code> statement for the index.
+     */
+    public String getCreateStatement(String tableName) {
+        StringBuilder sb = new StringBuilder("CREATE ");
+        if (mUnique) {
+            sb.append("UNIQUE ");
+        }
+        sb.append("INDEX ").append(mName).append(" ON ").append(tableName).append(" (");
+        for (int i = 0; i < mColumns.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(mColumns[i]);
+        }
+        sb.append(")");
+        if (mWhere != null) {
+            sb.append(" WHERE ").append(mWhere);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the SQL statement used to drop the index.
+     * @return <code>DROP INDEX</code> statement for the index.
+     */
+    public String getDropStatement() {
+        return "DROP INDEX IF EXISTS "+mName;
+    }
+}
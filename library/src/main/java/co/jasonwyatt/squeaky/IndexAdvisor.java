@@ -0,0 +1,560 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Opt-in advisor which records the shapes of the statements run through a {@link Database} and
+ * proposes indexes for them.  Attach it with {@link Database#setIndexAdvisor(IndexAdvisor)}, let
+ * your app (or your test suite) exercise the database, and then call {@link #analyze(Database)}.
+ * </p>
+ *
+ * <p>
+ * Statement shapes are normalized by replacing literals with '?'s, so statements which only differ
+ * by their values are counted together. The most recent bind arguments for each shape are kept so
+ * that <code>EXPLAIN QUERY PLAN</code> can be run on a representative statement.
+ * </p>
+ */
+public class IndexAdvisor {
+    private static final int DEFAULT_MAX_SHAPES = 500;
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMBER_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHERE_CLAUSE = Pattern.compile("(?is)\\bWHERE\\b(.*?)(?:\\bGROUP\\s+BY\\b|\\bORDER\\s+BY\\b|\\bLIMIT\\b|$)");
+    private static final Pattern ORDER_BY_CLAUSE = Pattern.compile("(?is)\\bORDER\\s+BY\\b(.*?)(?:\\bLIMIT\\b|$)");
+    private static final Pattern PREDICATE = Pattern.compile("(?i)(?:\\b(\\w+)\\.)?\\b(\\w+)\\s*(==|=|<=|>=|<>|!=|<|>|\\bIS\\s+NOT\\b|\\bIS\\b|\\bNOT\\s+IN\\b|\\bIN\\b|\\bBETWEEN\\b|\\bLIKE\\b|\\bGLOB\\b)");
+    private static final Pattern ORDER_TERM = Pattern.compile("(?i)^\\s*(?:(\\w+)\\.)?(\\w+)\\s*(ASC|DESC)?\\s*$");
+    private static final Pattern PLAN_SCAN = Pattern.compile("(?i)^SCAN (?:TABLE )?(\\w+)(?: AS \\w+)?$");
+    private static final Pattern PLAN_TEMP_SORT = Pattern.compile("(?i)USE TEMP B-TREE FOR (?:ORDER BY|GROUP BY)");
+
+    private final int mMaxShapes;
+    private final ConcurrentHashMap<String, Shape> mShapes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new {@link IndexAdvisor} which will track up to 500 distinct statement shapes.
+     */
+    public IndexAdvisor() {
+        this(DEFAULT_MAX_SHAPES);
+    }
+
+    /**
+     * Creates a new {@link IndexAdvisor}.
+     * @param maxShapes Maximum number of distinct statement shapes to track. Once reached, new
+     *                  shapes are ignored (but already-tracked shapes continue to be counted).
+     */
+    public IndexAdvisor(int maxShapes) {
+        mMaxShapes = maxShapes;
+    }
+
+    /**
+     * Record a statement executed by the {@link Database}.
+     * @param stmt SQL statement.
+     * @param bindArgs Arguments bound to the statement.
+     */
+    void record(String stmt, Object[] bindArgs) {
+        String shape = normalize(stmt);
+        String prefix = shape.length() >= 6 ? shape.substring(0, 6).toUpperCase(Locale.US) : "";
+        if (!prefix.equals("SELECT") && !prefix.equals("UPDATE") && !prefix.equals("DELETE")) {
+            return;
+        }
+        Shape s = mShapes.get(shape);
+        if (s == null) {
+            if (mShapes.size() >= mMaxShapes) {
+                return;
+            }
+            s = new Shape(shape);
+            Shape existing = mShapes.putIfAbsent(shape, s);
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        s.count.incrementAndGet();
+        s.representative = stmt;
+        s.representativeArgs = bindArgs;
+    }
+
+    /**
+     * Get the number of times each normalized statement shape has been recorded.
+     * @return Mapping from normalized statement to the number of times it was executed.
+     */
+    public Map<String, Integer> getShapeFrequencies() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Shape s : mShapes.values()) {
+            result.put(s.shape, s.count.get());
+        }
+        return result;
+    }
+
+    /**
+     * Forget all recorded statement shapes.
+     */
+    public void reset() {
+        mShapes.clear();
+    }
+
+    /**
+     * Run <code>EXPLAIN QUERY PLAN</code> on a representative statement for each recorded shape and
+     * build a ranked report of candidate indexes for the {@link Table}s registered with the database.
+     * @param db Prepared database the statements were recorded from.
+     * @return Ranked report of candidate indexes.
+     */
+    public Report analyze(Database db) {
+        db.getLock().lock("IndexAdvisor.analyze");
+        try {
+            return analyze(db, db.getReadableDB());
+        } finally {
+            db.getLock().unlock();
+        }
+    }
+
+    private Report analyze(Database db, SQLiteDatabase sqldb) {
+        Map<String, Set<String>> columnsByTable = new HashMap<>();
+        Map<String, Long> rowsByTable = new HashMap<>();
+        for (Table t : db.getTables()) {
+            if (t.getVersion() == Table.DROP_TABLE) {
+                continue;
+            }
+            String name = t.getName().toLowerCase(Locale.US);
+            columnsByTable.put(name, getColumns(sqldb, t.getName()));
+            rowsByTable.put(name, getRowCount(sqldb, t.getName()));
+        }
+
+        Map<String, Candidate> candidates = new LinkedHashMap<>();
+        for (Shape shape : mShapes.values()) {
+            List<String> plan;
+            try {
+                plan = explain(sqldb, shape.representative, shape.representativeArgs);
+            } catch (SQLiteException e) {
+                Logger.w(e, "Unable to explain", shape.shape);
+                continue;
+            }
+
+            for (String detail : plan) {
+                Matcher scan = PLAN_SCAN.matcher(detail.trim());
+                boolean tempSort = PLAN_TEMP_SORT.matcher(detail).find();
+                String table;
+                if (scan.matches()) {
+                    table = scan.group(1).toLowerCase(Locale.US);
+                } else if (tempSort) {
+                    table = findSingleTable(shape.shape, columnsByTable.keySet());
+                } else {
+                    continue;
+                }
+                if (table == null || !columnsByTable.containsKey(table)) {
+                    continue;
+                }
+
+                List<String> columns = scan.matches()
+                        ? getPredicateColumns(shape.shape, columnsByTable.get(table))
+                        : getOrderColumns(shape.shape, columnsByTable.get(table));
+                if (columns.isEmpty()) {
+                    continue;
+                }
+
+                long rows = rowsByTable.get(table);
+                double perExecution = scan.matches()
+                        ? rows - log2(rows)
+                        : rows * log2(rows);
+                String key = table+"("+columns+")";
+                Candidate candidate = candidates.get(key);
+                if (candidate == null) {
+                    candidate = new Candidate(table, columns);
+                    candidates.put(key, candidate);
+                }
+                candidate.add(shape.shape, shape.count.get(), perExecution * shape.count.get());
+            }
+        }
+
+        List<Candidate> ranked = new ArrayList<>(candidates.values());
+        Collections.sort(ranked, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.mEstimatedBenefit, a.mEstimatedBenefit);
+            }
+        });
+        return new Report(ranked);
+    }
+
+    /**
+     * Test-mode hook which validates each of the candidates in a report against a copy of the
+     * database: the candidate index is created on the copy and the statement shapes which produced
+     * it are re-explained to verify that SQLite's planner actually uses it.  The database itself is
+     * never modified.  Not intended to be used in production builds.
+     * @param db Prepared database the report was built from.
+     * @param report Report produced by {@link #analyze(Database)}.
+     * @return The number of candidates which were validated.
+     */
+    public int validate(Database db, Report report) {
+        File copy = new File(db.getContext().getCacheDir(), db.getName()+"-advisor-"+System.nanoTime());
+        db.getLock().lock("IndexAdvisor.validate");
+        try {
+            SQLiteDatabase source = db.getWritableDB();
+            Cursor c = source.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+            c.moveToFirst();
+            c.close();
+            copyFile(new File(source.getPath()), copy);
+        } finally {
+            db.getLock().unlock();
+        }
+
+        int validated = 0;
+        SQLiteDatabase copyDb = SQLiteDatabase.openDatabase(copy.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            for (Candidate candidate : report.getCandidates()) {
+                Index index = candidate.toIndex();
+                copyDb.execSQL(index.getCreateStatement(candidate.getTable()));
+                candidate.mValidated = true;
+                for (String shapeKey : candidate.mShapes) {
+                    Shape shape = mShapes.get(shapeKey);
+                    if (shape == null || !usesIndex(explain(copyDb, shape.representative, shape.representativeArgs), index.getName())) {
+                        candidate.mValidated = false;
+                        break;
+                    }
+                }
+                copyDb.execSQL(index.getDropStatement());
+                if (candidate.mValidated) {
+                    validated++;
+                }
+            }
+        } finally {
+            copyDb.close();
+            if (!copy.delete()) {
+                Logger.w("Unable to delete advisor database copy", copy);
+            }
+        }
+        return validated;
+    }
+
+    static String normalize(String stmt) {
+        String result = STRING_LITERAL.matcher(stmt).replaceAll("?");
+        result = NUMBER_LITERAL.matcher(result).replaceAll("?");
+        result = WHITESPACE.matcher(result).replaceAll(" ").trim();
+        result = IN_LIST.matcher(result).replaceAll("IN (?)");
+        if (result.endsWith(";")) {
+            result = result.substring(0, result.length() - 1).trim();
+        }
+        return result;
+    }
+
+    private static List<String> explain(SQLiteDatabase db, String stmt, Object[] bindArgs) {
+        List<String> details = new ArrayList<>();
+        // bound by type rather than as selection args, which can't be null.
+        Cursor c = Database.rawQueryTyped(db, "EXPLAIN QUERY PLAN "+stmt, bindArgs);
+        try {
+            int detailIndex = c.getColumnIndex("detail");
+            while (c.moveToNext()) {
+                details.add(c.getString(detailIndex));
+            }
+        } finally {
+            c.close();
+        }
+        return details;
+    }
+
+    private static boolean usesIndex(List<String> plan, String indexName) {
+        for (String detail : plan) {
+            if (detail.contains("INDEX "+indexName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> getPredicateColumns(String shape, Set<String> tableColumns) {
+        Set<String> equality = new LinkedHashSet<>();
+        Set<String> range = new LinkedHashSet<>();
+        Matcher where = WHERE_CLAUSE.matcher(shape);
+        if (where.find()) {
+            Matcher m = PREDICATE.matcher(where.group(1));
+            while (m.find()) {
+                String column = m.group(2).toLowerCase(Locale.US);
+                if (!tableColumns.contains(column)) {
+                    continue;
+                }
+                String op = m.group(3).toUpperCase(Locale.US).replaceAll("\\s+", " ");
+                if (op.equals("=") || op.equals("==") || op.equals("IS") || op.equals("IN")) {
+                    equality.add(column);
+                } else if (!op.equals("<>") && !op.equals("!=") && !op.equals("IS NOT") && !op.equals("NOT IN")) {
+                    range.add(column);
+                }
+            }
+        }
+        List<String> result = new ArrayList<>(equality);
+        // an index can only be used for a single range constraint, after the equality constraints.
+        for (String column : range) {
+            if (!result.contains(column)) {
+                result.add(column);
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static List<String> getOrderColumns(String shape, Set<String> tableColumns) {
+        List<String> result = new ArrayList<>();
+        Matcher order = ORDER_BY_CLAUSE.matcher(shape);
+        if (!order.find()) {
+            return result;
+        }
+        for (String term : order.group(1).split(",")) {
+            Matcher m = ORDER_TERM.matcher(term);
+            if (!m.matches() || !tableColumns.contains(m.group(2).toLowerCase(Locale.US))) {
+                // expressions can't be satisfied by a plain column index.
+                return new ArrayList<>();
+            }
+            result.add(m.group(2).toLowerCase(Locale.US) + (m.group(3) != null ? " "+m.group(3).toUpperCase(Locale.US) : ""));
+        }
+        return result;
+    }
+
+    private static String findSingleTable(String shape, Set<String> tables) {
+        String found = null;
+        String lower = shape.toLowerCase(Locale.US);
+        for (String table : tables) {
+            if (Pattern.compile("\\b"+Pattern.quote(table)+"\\b").matcher(lower).find()) {
+                if (found != null) {
+                    return null;
+                }
+                found = table;
+            }
+        }
+        return found;
+    }
+
+    private static Set<String> getColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new HashSet<>();
+        columns.add("rowid");
+        Cursor c = db.rawQuery("PRAGMA table_info("+table+")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                columns.add(c.getString(nameIndex).toLowerCase(Locale.US));
+            }
+        } finally {
+            c.close();
+        }
+        return columns;
+    }
+
+    private static long getRowCount(SQLiteDatabase db, String table) {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM "+table, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } catch (SQLiteException e) {
+            // e.g. virtual tables without a COUNT(*) implementation.
+            return 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static double log2(long n) {
+        return n <= 1 ? 0 : Math.log(n) / Math.log(2);
+    }
+
+    private static void copyFile(File from, File to) {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new DatabaseException("Unable to copy database for index validation.", e);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch (IOException e) {
+            //
+        }
+    }
+
+    private static final class Shape {
+        final String shape;
+        final AtomicInteger count = new AtomicInteger();
+        volatile String representative;
+        volatile Object[] representativeArgs;
+
+        Shape(String shape) {
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * A proposed index, along with the statement shapes which would benefit from it.
+     */
+    public static class Candidate {
+        private final String mTable;
+        private final List<String> mColumns;
+        private final List<String> mShapes = new ArrayList<>();
+        private int mFrequency;
+        private double mEstimatedBenefit;
+        private boolean mValidated;
+
+        Candidate(String table, List<String> columns) {
+            mTable = table;
+            mColumns = columns;
+        }
+
+        void add(String shape, int frequency, double benefit) {
+            if (!mShapes.contains(shape)) {
+                mShapes.add(shape);
+                mFrequency += frequency;
+            }
+            mEstimatedBenefit += benefit;
+        }
+
+        /**
+         * Get the name of the table the index would be created on.
+         * @return Name of the table.
+         */
+        public String getTable() {
+            return mTable;
+        }
+
+        /**
+         * Get the columns the index would cover, in order.
+         * @return Columns covered by the index.
+         */
+        public List<String> getColumns() {
+            return mColumns;
+        }
+
+        /**
+         * Get the normalized statement shapes which would benefit from the index.
+         * @return Statement shapes.
+         */
+        public List<String> getShapes() {
+            return mShapes;
+        }
+
+        /**
+         * Get the total number of recorded executions of the statements which would benefit.
+         * @return Execution count.
+         */
+        public int getFrequency() {
+            return mFrequency;
+        }
+
+        /**
+         * Get a rough estimate of the number of row visits the index would have saved over all
+         * of the recorded executions.  Only meaningful relative to other candidates.
+         * @return Estimated benefit.
+         */
+        public double getEstimatedBenefit() {
+            return mEstimatedBenefit;
+        }
+
+        /**
+         * Get whether or not {@link IndexAdvisor#validate(Database, Report)} confirmed that SQLite
+         * would use the index for all of the candidate's statement shapes.
+         * @return True if the candidate was validated.
+         */
+        public boolean isValidated() {
+            return mValidated;
+        }
+
+        /**
+         * Create an {@link Index} definition for the candidate, suitable for returning from
+         * {@link Table#getIndexes()}.
+         * @return Index definition.
+         */
+        public Index toIndex() {
+            StringBuilder name = new StringBuilder(mTable).append("_advised");
+            String[] columns = new String[mColumns.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = mColumns.get(i);
+                name.append('_').append(columns[i].split(" ")[0]);
+            }
+            return new Index(name.toString(), columns);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s(%s) benefit=%.0f frequency=%d%s", mTable, mColumns, mEstimatedBenefit, mFrequency, mValidated ? " validated" : "");
+        }
+    }
+
+    /**
+     * Ranked list of {@link Candidate} indexes, most beneficial first.
+     */
+    public static class Report {
+        private final List<Candidate> mCandidates;
+
+        Report(List<Candidate> candidates) {
+            mCandidates = candidates;
+        }
+
+        /**
+         * Get all candidates, ranked by estimated benefit.
+         * @return Ranked candidates.
+         */
+        public List<Candidate> getCandidates() {
+            return mCandidates;
+        }
+
+        /**
+         * Get the candidates for a single table, ranked by estimated benefit.
+         * @param tableName Name of the table.
+         * @return Ranked candidates for the table.
+         */
+        public List<Candidate> getCandidates(String tableName) {
+            List<Candidate> result = new ArrayList<>();
+            for (Candidate c : mCandidates) {
+                if (c.getTable().equalsIgnoreCase(tableName)) {
+                    result.add(c);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Index advisor report:");
+            for (Candidate c : mCandidates) {
+                sb.append("\n  ").append(c);
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Diffs the {@link Index} definitions returned by {@link Table#getIndexes()} against the indexes
+ * recorded in <code>sqlite_master</code> and brings the database in line with them.
+ */
+final class IndexSynchronizer {
+    private IndexSynchronizer() {
+        // not instantiable.
+    }
+
+    /**
+     * Synchronize the indexes of a single table.
+     * @param db SQLiteDatabase connection.
+     * @param t Table whose indexes should be synchronized.
+     * @param created Whether or not the table was just created. Deferred indexes on new tables are
+     *                built right away, since the table is empty.
+     * @return Indexes which are missing but whose builds have been deferred.
+     */
+    static List<Index> synchronize(SQLiteDatabase db, Table t, boolean created) {
+        List<Index> deferred = new ArrayList<>();
+        Index[] indexes = t.getIndexes();
+        if (indexes == null || t.getVersion() == Table.DROP_TABLE) {
+            return deferred;
+        }
+
+        Map<String, String> existing = getExistingIndexes(db, t.getName());
+        for (Index index : indexes) {
+            String create = index.getCreateStatement(t.getName());
+            String current = existing.remove(index.getName());
+            if (current != null && normalize(current).equals(normalize(create))) {
+                continue;
+            }
+            if (current != null) {
+                Logger.d("Index", index.getName(), "on", t.getName(), "changed, rebuilding");
+                execute(db, index.getDropStatement());
+            }
+            if (index.isDeferred() && !created) {
+                Logger.d("Deferring build of index", index.getName(), "on", t.getName());
+                deferred.add(index);
+            } else {
+                execute(db, create);
+            }
+        }
+
+        // anything left over is no longer declared by the table.
+        for (String staleIndex : existing.keySet()) {
+            Logger.d("Dropping stale index", staleIndex, "on", t.getName());
+            execute(db, "DROP INDEX IF EXISTS "+staleIndex);
+        }
+        return deferred;
+    }
+
+    /**
+     * Build an index whose creation was deferred, if it doesn't exist yet.
+     * @param db SQLiteDatabase connection.
+     * @param t Table the index belongs to.
+     * @param index Index to build.
+     */
+    static void build(SQLiteDatabase db, Table t, Index index) {
+        if (getExistingIndexes(db, t.getName()).containsKey(index.getName())) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        execute(db, index.getCreateStatement(t.getName()));
+        Logger.d("Built deferred index", index.getName(), "on", t.getName(), "in", (System.currentTimeMillis() - start)+"ms");
+    }
+
+    /**
+     * Get the explicitly-created indexes for a table. Automatic indexes (for UNIQUE and PRIMARY KEY
+     * constraints) have no SQL in <code>sqlite_master</code>, and are skipped.
+     */
+    private static Map<String, String> getExistingIndexes(SQLiteDatabase db, String tableName) {
+        Map<String, String> result = new HashMap<>();
+        Cursor c = db.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = ? AND sql IS NOT NULL", new String[] {tableName});
+        try {
+            while (c.moveToNext()) {
+                result.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private static void execute(SQLiteDatabase db, String stmt) {
+        Logger.i(stmt+";");
+        db.execSQL(stmt);
+    }
+
+    private static String normalize(String sql) {
+        return sql.replaceAll("\\s+", " ").trim().toLowerCase();
+    }
+}
@@ -0,0 +1,163 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the statements behind {@link Database#queryByKeys(String, long[], RowMapper, Object...)}.
+ * <p>
+ * Up to {@link #TEMP_TABLE_THRESHOLD} keys are looked up in chunks of {@link #CHUNK_SIZE}, each
+ * bound to the same <code>IN (?, ?, ...)</code> list (padded by repeating the last key), so a
+ * template only ever compiles to one statement and stays well below SQLite's limit of 999
+ * variables.  More keys than that are inserted in to a temporary table, which the query joins
+ * against instead, all in one transaction.
+ */
+final class KeyLookup {
+    static final String PLACEHOLDER = ":keys";
+    static final int CHUNK_SIZE = 100;
+    static final int TEMP_TABLE_THRESHOLD = 3 * CHUNK_SIZE;
+
+    private static final String LONG_KEYS_TABLE = "squeaky_long_keys";
+    private static final String STRING_KEYS_TABLE = "squeaky_string_keys";
+
+    private final ConcurrentHashMap<String, Template> mTemplates = new ConcurrentHashMap<>();
+
+    /**
+     * Look up rows by key. Must be called on the writable connection, while holding the database's
+     * lock.
+     * @param keys Distinct keys, either <code>Long</code>s or <code>String</code>s.
+     */
+    <T> List<T> query(SQLiteDatabase db, String stmtTemplate, List<?> keys, boolean longKeys, RowMapper<T> mapper, Object[] bindArgs) {
+        Template template = getTemplate(stmtTemplate, longKeys);
+        Object[] args = bindArgs == null ? new Object[0] : bindArgs;
+        if (template.prefixArgCount > args.length) {
+            throw new DatabaseException("Not enough bindArgs for "+stmtTemplate);
+        }
+        for (Object arg : args) {
+            // rawQuery can't bind nulls; the statement can use IS NULL instead.
+            if (arg == null) {
+                throw new DatabaseException("bindArgs must not be null for "+stmtTemplate);
+            }
+        }
+        List<T> result = new ArrayList<>(keys.size());
+        if (keys.isEmpty()) {
+            return result;
+        }
+
+        if (keys.size() <= TEMP_TABLE_THRESHOLD) {
+            String[] chunkArgs = new String[args.length + CHUNK_SIZE];
+            for (int i = 0; i < template.prefixArgCount; i++) {
+                chunkArgs[i] = args[i].toString();
+            }
+            for (int i = template.prefixArgCount; i < args.length; i++) {
+                chunkArgs[CHUNK_SIZE + i] = args[i].toString();
+            }
+            for (int start = 0; start < keys.size(); start += CHUNK_SIZE) {
+                int end = Math.min(start + CHUNK_SIZE, keys.size());
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    chunkArgs[template.prefixArgCount + i] = keys.get(Math.min(start + i, end - 1)).toString();
+                }
+                read(db.rawQuery(template.chunked, chunkArgs), mapper, result);
+            }
+            return result;
+        }
+
+        String table = longKeys ? LONG_KEYS_TABLE : STRING_KEYS_TABLE;
+        // the transaction keeps every statement on the connection which has the temporary table.
+        // Only the temp schema is written, so it needn't be EXCLUSIVE and lock out readers.
+        db.beginTransactionNonExclusive();
+        try {
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS "+table+" (k "+(longKeys ? "INTEGER" : "TEXT")+" PRIMARY KEY)");
+            db.execSQL("DELETE FROM temp."+table);
+            SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO temp."+table+" (k) VALUES (?)");
+            try {
+                for (Object key : keys) {
+                    if (longKeys) {
+                        insert.bindLong(1, (Long) key);
+                    } else {
+                        insert.bindString(1, (String) key);
+                    }
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+
+            String[] queryArgs = new String[args.length];
+            for (int i = 0; i < args.length; i++) {
+                queryArgs[i] = args[i].toString();
+            }
+            read(db.rawQuery(template.joined, queryArgs), mapper, result);
+            db.execSQL("DELETE FROM temp."+table);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return result;
+    }
+
+    /**
+     * Get the statement a template runs for short lists of keys, e.g. for profiling.
+     */
+    String expand(String stmtTemplate, boolean longKeys) {
+        return getTemplate(stmtTemplate, longKeys).chunked;
+    }
+
+    private Template getTemplate(String stmtTemplate, boolean longKeys) {
+        String cacheKey = (longKeys ? "L" : "S")+stmtTemplate;
+        Template template = mTemplates.get(cacheKey);
+        if (template == null) {
+            template = new Template(stmtTemplate, longKeys);
+            mTemplates.put(cacheKey, template);
+        }
+        return template;
+    }
+
+    private static <T> void read(Cursor c, RowMapper<T> mapper, List<T> result) {
+        try {
+            while (c.moveToNext()) {
+                result.add(mapper.map(c));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static final class Template {
+        final int prefixArgCount;
+        final String chunked;
+        final String joined;
+
+        Template(String stmtTemplate, boolean longKeys) {
+            int at = stmtTemplate.indexOf(PLACEHOLDER);
+            if (at < 0 || stmtTemplate.indexOf(PLACEHOLDER, at + 1) >= 0) {
+                throw new DatabaseException("Statement must contain "+PLACEHOLDER+" exactly once: "+stmtTemplate);
+            }
+            String prefix = stmtTemplate.substring(0, at);
+            String suffix = stmtTemplate.substring(at + PLACEHOLDER.length());
+
+            int count = 0;
+            for (int i = 0; i < prefix.length(); i++) {
+                if (prefix.charAt(i) == '?') {
+                    count++;
+                }
+            }
+            prefixArgCount = count;
+
+            // query arguments are always bound as text, so integer keys are cast back.
+            String param = longKeys ? "CAST(? AS INTEGER)" : "?";
+            StringBuilder list = new StringBuilder("(");
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                list.append(i == 0 ? "" : ", ").append(param);
+            }
+            list.append(")");
+            chunked = prefix+list+suffix;
+            joined = prefix+"(SELECT k FROM temp."+(longKeys ? LONG_KEYS_TABLE : STRING_KEYS_TABLE)+")"+suffix;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Runs routine SQLite maintenance for a {@link Database} in the background:
+ * </p>
+ *
+ * <ul>
+ *     <li><code>PRAGMA optimize</code> (or <code>ANALYZE</code> before SQLite 3.18) to keep the
+ *     query planner's statistics fresh,</li>
+ *     <li><code>PRAGMA incremental_vacuum</code> to return free pages to the file system, when the
+ *     database uses <code>auto_vacuum = INCREMENTAL</code>, and</li>
+ *     <li><code>PRAGMA wal_checkpoint</code> to fold the write-ahead log back in to the database
+ *     and truncate it, when the database uses WAL.</li>
+ * </ul>
+ *
+ * <p>
+ * Attach a scheduler with {@link Database#setMaintenanceScheduler(MaintenanceScheduler)}.  Its
+ * {@link MaintenanceTrigger} is checked periodically, and when it fires the tasks run in small
+ * steps (so other work on the database can interleave) until they finish or the run's time or I/O
+ * budget is used up.  Every run produces a {@link Report}.
+ * </p>
+ */
+public class MaintenanceScheduler {
+    public static final String TASK_OPTIMIZE = "optimize";
+    public static final String TASK_INCREMENTAL_VACUUM = "incremental_vacuum";
+    public static final String TASK_CHECKPOINT = "wal_checkpoint";
+
+    private static final int VACUUM_STEP_PAGES = 64;
+
+    private final Database mDatabase;
+    private MaintenanceTrigger mTrigger = MaintenanceTriggers.writeVolume(1000);
+    private long mCheckIntervalMillis = TimeUnit.MINUTES.toMillis(1);
+    private long mTimeBudgetMillis = 500;
+    private long mIoBudgetBytes = 8 * 1024 * 1024;
+    private boolean mOptimize = true;
+    private boolean mIncrementalVacuum = true;
+    private boolean mCheckpoint = true;
+    private Listener mListener;
+
+    // guards mExecutor separately from runs, so stopping never waits on a run which is waiting on
+    // the database's lock.
+    private final Object mLifecycleLock = new Object();
+    private ScheduledExecutorService mExecutor;
+    private volatile long mLastRunWriteCount;
+    private volatile long mLastRunMillis;
+    private volatile long mLastSeenWriteCount;
+    private volatile long mLastWriteMillis;
+    private volatile Report mLastReport;
+
+    /**
+     * Creates a scheduler for the database, which runs every task once 1000 writes have happened
+     * since the last run, within 500ms and 8MiB of I/O.
+     * @param database Database to maintain.
+     */
+    public MaintenanceScheduler(Database database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Set the trigger deciding when maintenance runs.
+     * @param trigger Trigger to use.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler trigger(MaintenanceTrigger trigger) {
+        mTrigger = trigger;
+        return this;
+    }
+
+    /**
+     * Set how often the trigger is checked. Defaults to once a minute.
+     * @param millis Interval between checks, in milliseconds.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler checkInterval(long millis) {
+        mCheckIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the time budget of each run: no task (or step of a task) starts once it's used up.
+     * @param millis Time budget, in milliseconds.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler timeBudget(long millis) {
+        mTimeBudgetMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the I/O budget of each run. Checkpoints are skipped when the WAL is larger than the
+     * remaining budget, and vacuuming stops once the pages it has freed use up the budget.
+     * @param bytes I/O budget, in bytes.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler ioBudget(long bytes) {
+        mIoBudgetBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Enable or disable refreshing the query planner's statistics.
+     * @param enabled Whether or not to run {@link #TASK_OPTIMIZE}.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler optimize(boolean enabled) {
+        mOptimize = enabled;
+        return this;
+    }
+
+    /**
+     * Enable or disable incremental vacuuming. Only has an effect on databases created with
+     * <code>PRAGMA auto_vacuum = INCREMENTAL</code> (see {@link TuningProfile#pragma(String, String)}).
+     * @param enabled Whether or not to run {@link #TASK_INCREMENTAL_VACUUM}.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler incrementalVacuum(boolean enabled) {
+        mIncrementalVacuum = enabled;
+        return this;
+    }
+
+    /**
+     * Enable or disable WAL checkpoints.
+     * @param enabled Whether or not to run {@link #TASK_CHECKPOINT}.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler checkpoint(boolean enabled) {
+        mCheckpoint = enabled;
+        return this;
+    }
+
+    /**
+     * Set a listener to receive the report of every run.
+     * @param listener Listener, or null.
+     * @return This scheduler, for chaining.
+     */
+    public MaintenanceScheduler listener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Get the report of the most recent run.
+     * @return The report, or null if maintenance hasn't run yet.
+     */
+    public Report getLastReport() {
+        return mLastReport;
+    }
+
+    void start() {
+        synchronized (mLifecycleLock) {
+            if (mExecutor != null) {
+                return;
+            }
+            mLastRunWriteCount = mLastSeenWriteCount = mDatabase.getWriteCount();
+            mLastRunMillis = mLastWriteMillis = SystemClock.elapsedRealtime();
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Squeaky-Maintenance");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    check();
+                }
+            }, mCheckIntervalMillis, mCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void stop() {
+        synchronized (mLifecycleLock) {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+        }
+    }
+
+    private synchronized void check() {
+        try {
+            long now = SystemClock.elapsedRealtime();
+            long writes = mDatabase.getWriteCount();
+            if (writes != mLastSeenWriteCount) {
+                mLastSeenWriteCount = writes;
+                mLastWriteMillis = now;
+            }
+            MaintenanceTrigger.State state = new MaintenanceTrigger.State(mDatabase, writes - mLastRunWriteCount, now - mLastRunMillis, now - mLastWriteMillis);
+            if (mTrigger.shouldRun(state)) {
+                runNow();
+            }
+        } catch (RuntimeException e) {
+            Logger.e(e, "Error running maintenance on", mDatabase.getName());
+        }
+    }
+
+    /**
+     * Run maintenance immediately on the calling thread, regardless of the trigger. Should not be
+     * called from the main thread.
+     * @return Report of the run.
+     */
+    public synchronized Report runNow() {
+        Report report = new Report();
+        long start = SystemClock.elapsedRealtime();
+        long deadline = start + mTimeBudgetMillis;
+        long writeCount = mDatabase.getWriteCount();
+
+        File dbFile = mDatabase.isInMemory() ? null : new File(mDatabase.getWritableDB().getPath());
+        File walFile = dbFile == null ? null : new File(dbFile.getPath()+"-wal");
+        report.mDatabaseBytesBefore = length(dbFile);
+        report.mWalBytesBefore = length(walFile);
+        report.mFreePagesBefore = pragmaLong("freelist_count");
+        long pageSize = pragmaLong("page_size");
+        long ioRemaining = mIoBudgetBytes;
+
+        if (mOptimize) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                report.skip(TASK_OPTIMIZE, "time budget used up");
+            } else if (mDatabase.isSqliteVersionAtLeast(3, 18, 0)) {
+                long taskStart = SystemClock.elapsedRealtime();
+                // analysis_limit (3.32+) bounds the rows ANALYZE reads per index; older versions ignore it.
+                pragma("analysis_limit = 400");
+                try {
+                    pragma("optimize");
+                } finally {
+                    // the limit stays set on the connection, so don't leave it for the app's ANALYZEs.
+                    pragma("analysis_limit = 0");
+                }
+                report.ran(TASK_OPTIMIZE, SystemClock.elapsedRealtime() - taskStart);
+            } else if (report.mDatabaseBytesBefore > ioRemaining) {
+                report.skip(TASK_OPTIMIZE, "ANALYZE would read more than the I/O budget");
+            } else {
+                long taskStart = SystemClock.elapsedRealtime();
+                exec("ANALYZE");
+                ioRemaining -= report.mDatabaseBytesBefore;
+                report.ran(TASK_OPTIMIZE, SystemClock.elapsedRealtime() - taskStart);
+            }
+        }
+
+        if (mIncrementalVacuum) {
+            if (pragmaLong("auto_vacuum") != 2) {
+                report.skip(TASK_INCREMENTAL_VACUUM, "auto_vacuum is not INCREMENTAL");
+            } else if (report.mFreePagesBefore == 0) {
+                report.skip(TASK_INCREMENTAL_VACUUM, "no free pages");
+            } else {
+                long taskStart = SystemClock.elapsedRealtime();
+                long pages = Math.min(report.mFreePagesBefore, ioRemaining / Math.max(1, pageSize));
+                long freed = 0;
+                while (freed < pages && SystemClock.elapsedRealtime() < deadline) {
+                    long step = Math.min(VACUUM_STEP_PAGES, pages - freed);
+                    pragma("incremental_vacuum("+step+")");
+                    freed += step;
+                }
+                ioRemaining -= freed * pageSize;
+                if (freed == 0) {
+                    report.skip(TASK_INCREMENTAL_VACUUM, "budget used up");
+                } else {
+                    report.ran(TASK_INCREMENTAL_VACUUM, SystemClock.elapsedRealtime() - taskStart);
+                }
+            }
+        }
+
+        if (mCheckpoint) {
+            long walBytes = length(walFile);
+            if (!"wal".equalsIgnoreCase(pragmaString("journal_mode"))) {
+                report.skip(TASK_CHECKPOINT, "database is not in WAL mode");
+            } else if (SystemClock.elapsedRealtime() >= deadline) {
+                report.skip(TASK_CHECKPOINT, "time budget used up");
+            } else if (walBytes > ioRemaining) {
+                report.skip(TASK_CHECKPOINT, "WAL is larger than the remaining I/O budget");
+            } else {
+                long taskStart = SystemClock.elapsedRealtime();
+                // a passive checkpoint never waits on readers or writers; only truncate the WAL if it
+                // copied everything back.
+                long[] result = checkpoint("PASSIVE");
+                if (result[0] == 0 && result[1] == result[2] && mDatabase.isSqliteVersionAtLeast(3, 8, 8)) {
+                    checkpoint("TRUNCATE");
+                }
+                report.ran(TASK_CHECKPOINT, SystemClock.elapsedRealtime() - taskStart);
+            }
+        }
+
+        report.mDatabaseBytesAfter = length(dbFile);
+        report.mWalBytesAfter = length(walFile);
+        report.mFreePagesAfter = pragmaLong("freelist_count");
+        report.mTotalMillis = SystemClock.elapsedRealtime() - start;
+
+        mLastRunWriteCount = writeCount;
+        mLastRunMillis = SystemClock.elapsedRealtime();
+        mLastReport = report;
+        Logger.d("Maintenance of", mDatabase.getName(), "finished:", report);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMaintenanceFinished(report);
+        }
+        return report;
+    }
+
+    private long[] checkpoint(String mode) {
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock("PRAGMA wal_checkpoint("+mode+")");
+        try {
+            Cursor c = getConnection().rawQuery("PRAGMA wal_checkpoint("+mode+")", null);
+            try {
+                if (!c.moveToFirst()) {
+                    return new long[] {0, 0, 0};
+                }
+                return new long[] {c.getLong(0), c.getLong(1), c.getLong(2)};
+            } finally {
+                c.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pragma(String pragma) {
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock("PRAGMA "+pragma);
+        try {
+            Cursor c = getConnection().rawQuery("PRAGMA "+pragma, null);
+            try {
+                c.moveToFirst();
+            } finally {
+                c.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void exec(String stmt) {
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock(stmt);
+        try {
+            getConnection().execSQL(stmt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long pragmaLong(String name) {
+        String value = pragmaString(name);
+        try {
+            return value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private String pragmaString(String name) {
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock("PRAGMA "+name);
+        try {
+            Cursor c = getConnection().rawQuery("PRAGMA "+name, null);
+            try {
+                return c.moveToFirst() ? c.getString(0) : null;
+            } finally {
+                c.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding the database's lock.
+    private SQLiteDatabase getConnection() {
+        if (!mDatabase.isPrepared()) {
+            throw new DatabaseException("Database "+mDatabase.getName()+" was closed during maintenance.");
+        }
+        return mDatabase.getWritableDB();
+    }
+
+    private static long length(File f) {
+        return f == null || !f.exists() ? 0 : f.length();
+    }
+
+    /**
+     * Receives the report of every maintenance run.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread which ran maintenance, after it finishes.
+         * @param report Report of the run.
+         */
+        void onMaintenanceFinished(Report report);
+    }
+
+    /**
+     * What a maintenance run did, and how long it took.
+     */
+    public static class Report {
+        private final Map<String, Long> mTaskMillis = new LinkedHashMap<>();
+        private final Map<String, String> mSkipped = new LinkedHashMap<>();
+        private long mDatabaseBytesBefore;
+        private long mDatabaseBytesAfter;
+        private long mWalBytesBefore;
+        private long mWalBytesAfter;
+        private long mFreePagesBefore;
+        private long mFreePagesAfter;
+        private long mTotalMillis;
+
+        void ran(String task, long millis) {
+            mTaskMillis.put(task, millis);
+        }
+
+        void skip(String task, String reason) {
+            mSkipped.put(task, reason);
+        }
+
+        /**
+         * Get the tasks which ran, and how long each took.
+         * @return Mapping from task name to duration in milliseconds.
+         */
+        public Map<String, Long> getTaskMillis() {
+            return Collections.unmodifiableMap(mTaskMillis);
+        }
+
+        /**
+         * Get the tasks which were skipped, and why.
+         * @return Mapping from task name to reason.
+         */
+        public Map<String, String> getSkippedTasks() {
+            return Collections.unmodifiableMap(mSkipped);
+        }
+
+        /**
+         * Get the size of the database file before the run.
+         * @return Size in bytes (0 for in-memory databases).
+         */
+        public long getDatabaseBytesBefore() {
+            return mDatabaseBytesBefore;
+        }
+
+        /**
+         * Get the size of the database file after the run.
+         * @return Size in bytes (0 for in-memory databases).
+         */
+        public long getDatabaseBytesAfter() {
+            return mDatabaseBytesAfter;
+        }
+
+        /**
+         * Get the size of the write-ahead log before the run.
+         * @return Size in bytes (0 when not using WAL).
+         */
+        public long getWalBytesBefore() {
+            return mWalBytesBefore;
+        }
+
+        /**
+         * Get the size of the write-ahead log after the run.
+         * @return Size in bytes (0 when not using WAL).
+         */
+        public long getWalBytesAfter() {
+            return mWalBytesAfter;
+        }
+
+        /**
+         * Get the number of free pages in the database before the run.
+         * @return Number of free pages.
+         */
+        public long getFreePagesBefore() {
+            return mFreePagesBefore;
+        }
+
+        /**
+         * Get the number of free pages in the database after the run.
+         * @return Number of free pages.
+         */
+        public long getFreePagesAfter() {
+            return mFreePagesAfter;
+        }
+
+        /**
+         * Get how long the whole run took.
+         * @return Duration in milliseconds.
+         */
+        public long getTotalMillis() {
+            return mTotalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{tasks="+mTaskMillis+", skipped="+mSkipped+", databaseBytes="+mDatabaseBytesBefore+"->"+mDatabaseBytesAfter
+                    +", walBytes="+mWalBytesBefore+"->"+mWalBytesAfter+", freePages="+mFreePagesBefore+"->"+mFreePagesAfter+", totalMs="+mTotalMillis+"}";
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package co.jasonwyatt.squeaky;
+
+/**
+ * Decides when a {@link MaintenanceScheduler} should run.  Triggers are checked periodically on the
+ * scheduler's thread; see {@link MaintenanceTriggers} for the built-in ones.
+ */
+public interface MaintenanceTrigger {
+    /**
+     * Decide whether or not maintenance should run now.
+     * @param state What the scheduler knows about the database's recent activity.
+     * @return True to run maintenance.
+     */
+    boolean shouldRun(State state);
+
+    /**
+     * Recent activity of a database, as observed by its {@link MaintenanceScheduler}.
+     */
+    class State {
+        private final Database mDatabase;
+        private final long mWritesSinceLastRun;
+        private final long mMillisSinceLastRun;
+        private final long mMillisSinceLastWrite;
+
+        State(Database database, long writesSinceLastRun, long millisSinceLastRun, long millisSinceLastWrite) {
+            mDatabase = database;
+            mWritesSinceLastRun = writesSinceLastRun;
+            mMillisSinceLastRun = millisSinceLastRun;
+            mMillisSinceLastWrite = millisSinceLastWrite;
+        }
+
+        /**
+         * Get the database being maintained.
+         * @return The database.
+         */
+        public Database getDatabase() {
+            return mDatabase;
+        }
+
+        /**
+         * Get the number of write operations since maintenance last ran (or the scheduler started).
+         * @return Number of writes.
+         */
+        public long getWritesSinceLastRun() {
+            return mWritesSinceLastRun;
+        }
+
+        /**
+         * Get the time since maintenance last ran (or the scheduler started).
+         * @return Elapsed time, in milliseconds.
+         */
+        public long getMillisSinceLastRun() {
+            return mMillisSinceLastRun;
+        }
+
+        /**
+         * Get the time since the scheduler last saw a write. Accurate to the scheduler's check
+         * interval.
+         * @return Elapsed time, in milliseconds.
+         */
+        public long getMillisSinceLastWrite() {
+            return mMillisSinceLastWrite;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * Built-in {@link MaintenanceTrigger}s, which can be combined with {@link #allOf(MaintenanceTrigger...)}
+ * and {@link #anyOf(MaintenanceTrigger...)}:
+ *
+ * <pre>
+ *     MaintenanceTriggers.allOf(
+ *             MaintenanceTriggers.charging(context),
+ *             MaintenanceTriggers.idle(60 * 1000),
+ *             MaintenanceTriggers.anyOf(
+ *                     MaintenanceTriggers.writeVolume(5000),
+ *                     MaintenanceTriggers.interval(24 * 60 * 60 * 1000)));
+ * </pre>
+ */
+public final class MaintenanceTriggers {
+    private MaintenanceTriggers() {
+        // not instantiable.
+    }
+
+    /**
+     * Fires once at least {@param writes} write operations have happened since the last run.
+     * @param writes Number of writes.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger writeVolume(final long writes) {
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                return state.getWritesSinceLastRun() >= writes;
+            }
+        };
+    }
+
+    /**
+     * Fires once no writes have been seen for {@param millis} milliseconds.
+     * @param millis Idle time required, in milliseconds.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger idle(final long millis) {
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                return state.getMillisSinceLastWrite() >= millis;
+            }
+        };
+    }
+
+    /**
+     * Fires once {@param millis} milliseconds have passed since the last run.
+     * @param millis Minimum time between runs, in milliseconds.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger interval(final long millis) {
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                return state.getMillisSinceLastRun() >= millis;
+            }
+        };
+    }
+
+    /**
+     * Fires while the device is plugged in to a charger.
+     * @param context Android context.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger charging(Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                // ACTION_BATTERY_CHANGED is sticky, so this returns the current state without
+                // registering anything.
+                Intent battery = appContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            }
+        };
+    }
+
+    /**
+     * Fires when all of the given triggers fire.
+     * @param triggers Triggers to combine.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger allOf(final MaintenanceTrigger... triggers) {
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                for (MaintenanceTrigger trigger : triggers) {
+                    if (!trigger.shouldRun(state)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Fires when any of the given triggers fire.
+     * @param triggers Triggers to combine.
+     * @return The trigger.
+     */
+    public static MaintenanceTrigger anyOf(final MaintenanceTrigger... triggers) {
+        return new MaintenanceTrigger() {
+            @Override
+            public boolean shouldRun(State state) {
+                for (MaintenanceTrigger trigger : triggers) {
+                    if (trigger.shouldRun(state)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,94 @@
+package co.jasonwyatt.squeaky;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chooses the cheapest sequence of single-step migrations ({@link Table#getMigration(int)}) and
+ * {@link SquashedMigration}s to bring a {@link Table} from its version in the database up to
+ * {@link Table#getVersion()}.
+ */
+final class MigrationPlanner {
+    private MigrationPlanner() {
+        // not instantiable.
+    }
+
+    /**
+     * Plan the migration of a table.
+     * @param t Table to migrate.
+     * @param currentVersion Version of the table currently in the database.
+     * @return Steps to execute, in order. Empty if the table is up to date.
+     */
+    static List<Step> plan(Table t, int currentVersion) {
+        int target = t.getVersion();
+        if (currentVersion >= target) {
+            return Collections.emptyList();
+        }
+        SquashedMigration[] squashed = t.getSquashedMigrations();
+        if (squashed == null) {
+            squashed = new SquashedMigration[0];
+        }
+
+        // versions only ever go up, so a single pass in version order finds the cheapest path.
+        int span = target - currentVersion;
+        long[] cost = new long[span + 1];
+        int[] previous = new int[span + 1];
+        SquashedMigration[] via = new SquashedMigration[span + 1];
+        Arrays.fill(cost, Long.MAX_VALUE);
+        cost[0] = 0;
+        for (int i = 0; i < span; i++) {
+            if (cost[i] == Long.MAX_VALUE) {
+                continue;
+            }
+            int version = currentVersion + i;
+            if (cost[i] + 1 < cost[i + 1]) {
+                cost[i + 1] = cost[i] + 1;
+                previous[i + 1] = i;
+                via[i + 1] = null;
+            }
+            for (SquashedMigration m : squashed) {
+                if (!m.appliesTo(version) || m.getToVersion() > target) {
+                    continue;
+                }
+                int to = m.getToVersion() - currentVersion;
+                if (cost[i] + m.getCost() < cost[to]) {
+                    cost[to] = cost[i] + m.getCost();
+                    previous[to] = i;
+                    via[to] = m;
+                }
+            }
+        }
+
+        List<Step> steps = new ArrayList<>();
+        for (int i = span; i > 0; i = previous[i]) {
+            int from = currentVersion + previous[i];
+            int to = currentVersion + i;
+            if (via[i] != null) {
+                steps.add(new Step(from, to, via[i].getStatements(), true));
+            } else {
+                steps.add(new Step(from, to, t.getMigration(to), false));
+            }
+        }
+        Collections.reverse(steps);
+        return steps;
+    }
+
+    /**
+     * A single step in a migration plan.
+     */
+    static final class Step {
+        final int fromVersion;
+        final int toVersion;
+        final String[] statements;
+        final boolean squashed;
+
+        Step(int fromVersion, int toVersion, String[] statements, boolean squashed) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.statements = statements;
+            this.squashed = squashed;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Splits the range of an integer column (usually <code>rowid</code>) in to partitions and scans
+ * each one on its own reader connection and thread, feeding a {@link ScanAccumulator}.  The
+ * partitions don't share a snapshot, so a write which commits during the scan may be seen by some
+ * partitions and not others.
+ */
+final class ParallelScan<A> {
+    private final ReaderPool mReaders;
+    private final String mTable;
+    private final String mColumns;
+    private final String mWhere;
+    private final Object[] mWhereArgs;
+    private final String mPartitionColumn;
+    private final int mPartitions;
+    private final ScanAccumulator<A> mAccumulator;
+
+    ParallelScan(ReaderPool readers, String table, String columns, String where, Object[] whereArgs, String partitionColumn, int partitions, ScanAccumulator<A> accumulator) {
+        if (partitions < 1) {
+            throw new DatabaseException("partitions must be at least 1");
+        }
+        mReaders = readers;
+        mTable = table;
+        mColumns = columns;
+        mWhere = where;
+        mWhereArgs = whereArgs == null ? new Object[0] : whereArgs;
+        mPartitionColumn = partitionColumn;
+        mPartitions = partitions;
+        mAccumulator = accumulator;
+    }
+
+    A run() {
+        long[] range = getRange();
+        if (range == null) {
+            return mAccumulator.create();
+        }
+        long[] bounds = split(range[0], range[1], mPartitions);
+        int partitions = bounds.length - 1;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Squeaky-Scan-"+threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        try {
+            List<Future<A>> futures = new ArrayList<>();
+            for (int i = 0; i < partitions; i++) {
+                final long lower = bounds[i];
+                final long upper = bounds[i + 1];
+                final boolean last = i == partitions - 1;
+                futures.add(executor.submit(new Callable<A>() {
+                    @Override
+                    public A call() {
+                        return scanPartition(lower, upper, last);
+                    }
+                }));
+            }
+
+            A result = null;
+            for (Future<A> future : futures) {
+                A partition = future.get();
+                result = result == null ? partition : mAccumulator.merge(result, partition);
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted while scanning "+mTable, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new DatabaseException("Error scanning "+mTable, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Split the inclusive range [min, max] in to at most {@param partitions} contiguous ranges.
+     * @return Partition boundaries: partition i covers [bounds[i], bounds[i+1]), except for the last
+     *         partition, which also includes bounds[length-1].
+     */
+    static long[] split(long min, long max, int partitions) {
+        // use doubles for the width, so huge ranges can't overflow.
+        double width = ((double) max - (double) min + 1) / partitions;
+        if (width < 1) {
+            partitions = (int) (max - min + 1);
+            width = 1;
+        }
+        long[] bounds = new long[partitions + 1];
+        bounds[0] = min;
+        for (int i = 1; i < partitions; i++) {
+            bounds[i] = min + (long) Math.floor(width * i);
+        }
+        bounds[partitions] = max;
+        return bounds;
+    }
+
+    private long[] getRange() {
+        SQLiteDatabase connection = mReaders.acquire();
+        try {
+            String stmt = "SELECT MIN("+mPartitionColumn+"), MAX("+mPartitionColumn+") FROM "+mTable+whereClause(" WHERE ");
+            Cursor c = connection.rawQuery(stmt, Database.toQueryArgs(mWhereArgs));
+            try {
+                if (!c.moveToFirst() || c.isNull(0)) {
+                    return null;
+                }
+                return new long[] {c.getLong(0), c.getLong(1)};
+            } finally {
+                c.close();
+            }
+        } finally {
+            mReaders.release(connection);
+        }
+    }
+
+    private A scanPartition(long lower, long upper, boolean last) {
+        A accumulator = mAccumulator.create();
+        String stmt = "SELECT "+mColumns+" FROM "+mTable+" WHERE "+mPartitionColumn+" >= ? AND "+mPartitionColumn+(last ? " <= ?" : " < ?")+whereClause(" AND ");
+        Object[] args = new Object[mWhereArgs.length + 2];
+        args[0] = lower;
+        args[1] = upper;
+        System.arraycopy(mWhereArgs, 0, args, 2, mWhereArgs.length);
+
+        long start = System.currentTimeMillis();
+        int rows = 0;
+        SQLiteDatabase connection = mReaders.acquire();
+        try {
+            // bound as integers: text bounds never match a column without INTEGER affinity.
+            Cursor c = Database.rawQueryTyped(connection, stmt, args);
+            try {
+                while (c.moveToNext()) {
+                    mAccumulator.accumulate(accumulator, c);
+                    rows++;
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            mReaders.release(connection);
+        }
+        Logger.d("Scanned", mTable, "partition [", lower, ",", upper, last ? "]" : ")", rows, "rows in", (System.currentTimeMillis() - start)+"ms");
+        return accumulator;
+    }
+
+    private String whereClause(String prefix) {
+        return mWhere == null ? "" : prefix+"("+mWhere+")";
+    }
+}
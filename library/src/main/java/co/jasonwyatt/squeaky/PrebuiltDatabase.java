@@ -0,0 +1,159 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * A database file built ahead of time (e.g. by running the app's {@link Table}s against a desktop
+ * SQLite and seeding reference data), shipped with the app and copied in to place the first time
+ * the {@link Database} is prepared, instead of creating every table and inserting the seed data
+ * on the device.
+ * </p>
+ *
+ * <p>
+ * The file must contain the database's versions table (see {@link Database#getVersionsTable()}),
+ * recording the version of each table it contains.  {@link Database#prepare()} then only runs the
+ * migrations from those versions to the current ones, and creates any tables the file doesn't
+ * have.  Attach one with {@link Database#setPrebuiltDatabase(PrebuiltDatabase)}.
+ * </p>
+ *
+ * <pre>
+ *     db.setPrebuiltDatabase(PrebuiltDatabase.fromAsset("databases/catalog.db"));
+ *     db.prepare();
+ * </pre>
+ */
+public abstract class PrebuiltDatabase {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Creates a prebuilt database from an asset.  Store the asset uncompressed (e.g. with
+     * <code>aaptOptions { noCompress "db" }</code>) so it can be copied without inflating it.
+     * @param assetPath Path of the asset.
+     * @return The prebuilt database.
+     */
+    public static PrebuiltDatabase fromAsset(final String assetPath) {
+        return new PrebuiltDatabase() {
+            @Override
+            public InputStream open(Context context) throws IOException {
+                return context.getAssets().open(assetPath);
+            }
+
+            @Override
+            void copyTo(Context context, File destination) throws IOException {
+                AssetFileDescriptor fd;
+                try {
+                    fd = context.getAssets().openFd(assetPath);
+                } catch (FileNotFoundException e) {
+                    // compressed assets have no file descriptor of their own.
+                    super.copyTo(context, destination);
+                    return;
+                }
+                try {
+                    FileInputStream in = fd.createInputStream();
+                    try {
+                        transfer(in.getChannel(), fd.getStartOffset(), fd.getLength(), destination);
+                    } finally {
+                        in.close();
+                    }
+                } finally {
+                    fd.close();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "asset:"+assetPath;
+            }
+        };
+    }
+
+    /**
+     * Creates a prebuilt database from a file, e.g. one downloaded by the app.
+     * @param file Database file.
+     * @return The prebuilt database.
+     */
+    public static PrebuiltDatabase fromFile(final File file) {
+        return new PrebuiltDatabase() {
+            @Override
+            public InputStream open(Context context) throws IOException {
+                return new FileInputStream(file);
+            }
+
+            @Override
+            void copyTo(Context context, File destination) throws IOException {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    transfer(in.getChannel(), 0, in.getChannel().size(), destination);
+                } finally {
+                    in.close();
+                }
+            }
+
+            @Override
+            public String toString() {
+                return file.getPath();
+            }
+        };
+    }
+
+    /**
+     * Open the contents of the prebuilt database file.  Only called when the database doesn't
+     * exist yet.
+     * @param context Android context.
+     * @return Stream of the database file's contents, closed by the caller.
+     * @throws IOException If the file can't be opened.
+     */
+    public abstract InputStream open(Context context) throws IOException;
+
+    /**
+     * Copy the prebuilt database file to a new file.
+     * @param context Android context.
+     * @param destination File to write.
+     * @throws IOException If the copy fails.
+     */
+    void copyTo(Context context, File destination) throws IOException {
+        InputStream in = open(context);
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void transfer(FileChannel in, long offset, long length, File destination) throws IOException {
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            FileChannel channel = out.getChannel();
+            long copied = 0;
+            while (copied < length) {
+                long n = in.transferTo(offset + copied, length - copied, channel);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of prebuilt database after "+copied+" of "+length+" bytes");
+                }
+                copied += n;
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * A bulk delete which runs in <code>rowid</code>-ordered chunks, each in its own short
+ * transaction, so it never holds the {@link Database}'s lock (or grows the rollback journal or
+ * WAL) for more than one chunk at a time.  Other reads and writes on the database get the lock
+ * between chunks.
+ * </p>
+ *
+ * <pre>
+ *     Purge purge = new Purge("events")
+ *             .where("created &lt; ?", cutoff)
+ *             .chunkSize(500)
+ *             .incrementalVacuum(true);
+ *     int deleted = db.purge(purge);
+ * </pre>
+ *
+ * <p>
+ * The purge can be stopped from any thread with {@link #cancel()}; rows deleted by the chunks
+ * which already ran stay deleted.  Only tables with a <code>rowid</code> (i.e. not
+ * <code>WITHOUT ROWID</code> tables) can be purged.
+ * </p>
+ * @see Database#purge(Purge)
+ */
+public class Purge {
+    private final String mTable;
+    private String mWhere;
+    private Object[] mWhereArgs = new Object[0];
+    private int mChunkSize = 1000;
+    private long mPauseMillis;
+    private boolean mIncrementalVacuum;
+    private Listener mListener;
+
+    private volatile boolean mCancelled;
+    private volatile int mDeleted;
+    private volatile int mChunks;
+
+    /**
+     * Creates a purge of every row of a table, in chunks of 1000 rows.
+     * @param table Table to delete from.
+     */
+    public Purge(String table) {
+        mTable = table;
+    }
+
+    /**
+     * Only delete the rows matching a condition.
+     * @param where <code>WHERE</code> clause, without the <code>WHERE</code>.
+     * @param whereArgs Arguments to bind to '?'s in the clause.
+     * @return This purge, for chaining.
+     */
+    public Purge where(String where, Object... whereArgs) {
+        mWhere = where;
+        mWhereArgs = whereArgs == null ? new Object[0] : whereArgs;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of rows deleted in each transaction.
+     * @param rows Rows per chunk.
+     * @return This purge, for chaining.
+     */
+    public Purge chunkSize(int rows) {
+        if (rows <= 0) {
+            throw new DatabaseException("chunkSize must be positive: "+rows);
+        }
+        mChunkSize = rows;
+        return this;
+    }
+
+    /**
+     * Set how long to wait between chunks, to throttle the purge further.  Defaults to 0: the lock
+     * is released between chunks, and the purge only waits when other threads are waiting on it.
+     * @param millis Time to wait, in milliseconds.
+     * @return This purge, for chaining.
+     */
+    public Purge pause(long millis) {
+        mPauseMillis = millis;
+        return this;
+    }
+
+    /**
+     * Enable or disable returning the pages freed by each chunk to the file system with
+     * <code>PRAGMA incremental_vacuum</code>.  Only has an effect on databases created with
+     * <code>PRAGMA auto_vacuum = INCREMENTAL</code> (see {@link TuningProfile#pragma(String, String)}).
+     * @param enabled Whether or not to vacuum after each chunk.
+     * @return This purge, for chaining.
+     */
+    public Purge incrementalVacuum(boolean enabled) {
+        mIncrementalVacuum = enabled;
+        return this;
+    }
+
+    /**
+     * Set a listener to be told about the progress of the purge after each chunk.
+     * @param listener Listener, or null.
+     * @return This purge, for chaining.
+     */
+    public Purge listener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Stop the purge before its next chunk.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Check whether or not {@link #cancel()} was called.
+     * @return Whether or not the purge was cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Get the name of the table being purged.
+     * @return Name of the table.
+     */
+    public String getTable() {
+        return mTable;
+    }
+
+    /**
+     * Get the number of rows deleted so far.
+     * @return Number of rows deleted.
+     */
+    public int getDeletedCount() {
+        return mDeleted;
+    }
+
+    /**
+     * Get the number of chunks which have run so far.
+     * @return Number of chunks.
+     */
+    public int getChunkCount() {
+        return mChunks;
+    }
+
+    int run(Database database) {
+        DatabaseLock lock = database.getLock();
+        if (lock.isHeldByCurrentThread()) {
+            Logger.d("Purge of", mTable, "runs while its caller holds the database's lock; other threads won't get it between chunks.");
+        }
+
+        String where = mWhere == null ? "1" : "("+mWhere+")";
+        String boundary = "SELECT rowid FROM "+mTable+" WHERE "+where+" AND rowid > ? ORDER BY rowid LIMIT 1 OFFSET "+(mChunkSize - 1);
+        String deleteRange = "DELETE FROM "+mTable+" WHERE "+where+" AND rowid > ? AND rowid <= ?";
+        String deleteRest = "DELETE FROM "+mTable+" WHERE "+where+" AND rowid > ?";
+        boolean vacuum = mIncrementalVacuum && isIncrementallyVacuumed(database);
+
+        long start = SystemClock.elapsedRealtime();
+        long lastRowId = Long.MIN_VALUE;
+        boolean done = false;
+        while (!done && !mCancelled) {
+            int deleted;
+            lock.lock(deleteRange);
+            try {
+                Long end = findChunkEnd(database.getWritableDB(), boundary, lastRowId);
+                if (end == null) {
+                    deleted = database.updateBatch(new String[] {deleteRest}, new Object[][] {args(lastRowId)}, true);
+                    done = true;
+                } else {
+                    deleted = database.updateBatch(new String[] {deleteRange}, new Object[][] {args(lastRowId, end)}, true);
+                    lastRowId = end;
+                }
+                if (vacuum && deleted > 0) {
+                    vacuum(database.getWritableDB());
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            mDeleted += deleted;
+            mChunks++;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onChunkDeleted(this, deleted);
+            }
+            if (!done && !mCancelled) {
+                step(lock);
+            }
+        }
+        Logger.d("Purge of", mTable, mCancelled ? "cancelled" : "finished", "after deleting", mDeleted,
+                "rows in", mChunks, "chunks,", SystemClock.elapsedRealtime() - start, "ms");
+        return mDeleted;
+    }
+
+    private Object[] args(long... rowids) {
+        Object[] args = new Object[mWhereArgs.length + rowids.length];
+        System.arraycopy(mWhereArgs, 0, args, 0, mWhereArgs.length);
+        for (int i = 0; i < rowids.length; i++) {
+            args[mWhereArgs.length + i] = rowids[i];
+        }
+        return args;
+    }
+
+    private Long findChunkEnd(SQLiteDatabase db, String boundary, long lastRowId) {
+        // compiled rather than queried, so the where arguments keep their types.
+        SQLiteStatement statement = db.compileStatement(boundary);
+        try {
+            Database.bindArgs(statement, args(lastRowId));
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return null;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void step(DatabaseLock lock) {
+        if (mPauseMillis > 0) {
+            SystemClock.sleep(mPauseMillis);
+        } else if (lock.hasQueuedThreads()) {
+            // the lock isn't fair: without stepping aside, the next chunk could take it straight
+            // back from the waiting threads.
+            SystemClock.sleep(1);
+        } else {
+            Thread.yield();
+        }
+    }
+
+    private static boolean isIncrementallyVacuumed(Database database) {
+        DatabaseLock lock = database.getLock();
+        lock.lock("PRAGMA auto_vacuum");
+        try {
+            Cursor c = database.getWritableDB().rawQuery("PRAGMA auto_vacuum", null);
+            try {
+                return c.moveToFirst() && c.getInt(0) == 2;
+            } finally {
+                c.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void vacuum(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA incremental_vacuum", null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Purge{table="+mTable+", where="+mWhere+", chunkSize="+mChunkSize
+                +", deleted="+mDeleted+", chunks="+mChunks+", cancelled="+mCancelled+"}";
+    }
+
+    /**
+     * Receives the progress of a {@link Purge}.
+     */
+    public interface Listener {
+        /**
+         * Called after each chunk is deleted, on the thread running the purge.  Call
+         * {@link Purge#cancel()} to stop before the next chunk.
+         * @param purge The purge.
+         * @param deleted Number of rows deleted by the chunk.
+         */
+        void onChunkDeleted(Purge purge, int deleted);
+    }
+}
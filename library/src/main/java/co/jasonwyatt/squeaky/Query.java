@@ -0,0 +1,155 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A read statement to run as part of a batch with {@link Database#queryBatch(List)}.  Every query
+ * in a batch runs under a single acquisition of the database's lock, in one read transaction, so
+ * their results are consistent with each other.  Results are read in full before the batch
+ * returns, either copied in to an in-memory {@link Cursor} or mapped to a list of objects:
+ * </p>
+ *
+ * <pre>
+ *     Query&lt;Cursor&gt; counts = Query.of("SELECT COUNT(*) FROM todos WHERE completed = ?", 0);
+ *     Query&lt;List&lt;Todo&gt;&gt; todos = Query.mapped("SELECT * FROM todos LIMIT 20", new TodoMapper());
+ *
+ *     Query.Results results = db.queryBatch(Arrays.&lt;Query&lt;?&gt;&gt;asList(counts, todos));
+ *     Cursor c = results.get(counts);
+ *     List&lt;Todo&gt; page = results.get(todos);
+ * </pre>
+ * @param <T> Type of the query's result.
+ */
+public abstract class Query<T> {
+    private final String mStatement;
+    private final Object[] mBindArgs;
+
+    Query(String statement, Object[] bindArgs) {
+        mStatement = statement;
+        mBindArgs = bindArgs;
+    }
+
+    /**
+     * Creates a query whose rows are copied in to an in-memory {@link Cursor}, which holds no
+     * database resources and can be read after the batch.
+     * @param stmt SQL query.
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return The query.
+     */
+    public static Query<Cursor> of(String stmt, Object... bindArgs) {
+        return new Query<Cursor>(stmt, bindArgs) {
+            @Override
+            Cursor read(Cursor cursor) {
+                String[] columns = cursor.getColumnNames();
+                MatrixCursor result = new MatrixCursor(columns, cursor.getCount());
+                Object[] row = new Object[columns.length];
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < columns.length; i++) {
+                        row[i] = getValue(cursor, i);
+                    }
+                    result.addRow(row);
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Creates a query whose rows are mapped to objects.
+     * @param stmt SQL query.
+     * @param mapper Mapper from a row to an object.
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @param <T> Type of the mapped objects.
+     * @return The query.
+     */
+    public static <T> Query<List<T>> mapped(String stmt, final RowMapper<T> mapper, Object... bindArgs) {
+        return new Query<List<T>>(stmt, bindArgs) {
+            @Override
+            List<T> read(Cursor cursor) {
+                List<T> result = new ArrayList<>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    result.add(mapper.map(cursor));
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Get the query's SQL.
+     * @return SQL query.
+     */
+    public String getStatement() {
+        return mStatement;
+    }
+
+    Object[] getBindArgs() {
+        return mBindArgs;
+    }
+
+    /**
+     * Read every row of the query's cursor in to its result. The cursor is closed by the caller.
+     * @param cursor Cursor positioned before the first row.
+     * @return The result.
+     */
+    abstract T read(Cursor cursor);
+
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Query{"+mStatement+"}";
+    }
+
+    /**
+     * Results of a batch of queries run by {@link Database#queryBatch(List)}.
+     */
+    public static final class Results {
+        private final Map<Query<?>, Object> mResults = new IdentityHashMap<>();
+
+        <T> void put(Query<T> query, T result) {
+            mResults.put(query, result);
+        }
+
+        /**
+         * Get the result of one of the batch's queries.
+         * @param query Query which was part of the batch.
+         * @param <T> Type of the query's result.
+         * @return The result.
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(Query<T> query) {
+            if (!mResults.containsKey(query)) {
+                throw new DatabaseException(query+" was not part of the batch.");
+            }
+            return (T) mResults.get(query);
+        }
+
+        /**
+         * Get the number of queries in the batch.
+         * @return Number of queries.
+         */
+        public int size() {
+            return mResults.size();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * {@link RowStream.Publisher} which runs a query when its subscriber first requests rows, and maps
+ * and delivers rows only as far as the subscriber's outstanding demand.  The cursor still counts
+ * the whole result when its first row is read.  The cursor is closed as soon as the subscription
+ * completes, fails, or is cancelled.
+ */
+final class QueryPublisher<T> implements RowStream.Publisher<T> {
+    private final Database mDatabase;
+    private final String mStatement;
+    private final Object[] mBindArgs;
+    private final RowMapper<T> mMapper;
+    private final Executor mExecutor;
+
+    /**
+     * @param executor Executor used to step the cursor and deliver rows, or null to do so on the
+     *                 thread which calls {@link RowStream.Subscription#request(long)}.
+     */
+    QueryPublisher(Database database, String stmt, Object[] bindArgs, RowMapper<T> mapper, Executor executor) {
+        mDatabase = database;
+        mStatement = stmt;
+        mBindArgs = bindArgs;
+        mMapper = mapper;
+        mExecutor = executor;
+    }
+
+    @Override
+    public void subscribe(RowStream.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        QuerySubscription subscription = new QuerySubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class QuerySubscription implements RowStream.Subscription, Runnable {
+        private final RowStream.Subscriber<? super T> mSubscriber;
+        private final AtomicLong mDemand = new AtomicLong();
+        // number of drain requests; only the caller which moves it off of zero runs the drain loop.
+        private final AtomicInteger mWorkInProgress = new AtomicInteger();
+        private volatile boolean mCancelled;
+        private volatile Throwable mInvalidRequest;
+        private Cursor mCursor;
+        private boolean mDone;
+
+        QuerySubscription(RowStream.Subscriber<? super T> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                mInvalidRequest = new IllegalArgumentException("Requested "+n+" rows, must be positive.");
+            } else {
+                long current;
+                long next;
+                do {
+                    current = mDemand.get();
+                    next = current + n;
+                    if (next < 0) {
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!mDemand.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (mWorkInProgress.getAndIncrement() != 0) {
+                // whoever is draining will pick up the new demand/cancellation.
+                return;
+            }
+            if (mExecutor == null) {
+                run();
+            } else {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = mWorkInProgress.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (mDone) {
+                return;
+            }
+            if (mCancelled) {
+                finish();
+                return;
+            }
+            if (mInvalidRequest != null) {
+                finish();
+                mSubscriber.onError(mInvalidRequest);
+                return;
+            }
+            try {
+                while (mDemand.get() > 0) {
+                    if (mCursor == null) {
+                        mCursor = mDatabase.query(mStatement, mBindArgs);
+                    }
+                    if (!mCursor.moveToNext()) {
+                        finish();
+                        mSubscriber.onComplete();
+                        return;
+                    }
+                    T item = mMapper.map(mCursor);
+                    if (mDemand.get() != Long.MAX_VALUE) {
+                        mDemand.decrementAndGet();
+                    }
+                    mSubscriber.onNext(item);
+                    if (mCancelled) {
+                        finish();
+                        return;
+                    }
+                }
+            } catch (RuntimeException e) {
+                Logger.e(e, "Error streaming query", mStatement);
+                finish();
+                mSubscriber.onError(e);
+            }
+        }
+
+        private void finish() {
+            mDone = true;
+            if (mCursor != null) {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Runs work against a {@link Database} on a small pool of worker threads, in order of priority:
+ * {@link #PRIORITY_INTERACTIVE} work (e.g. queries backing the UI) always runs before
+ * {@link #PRIORITY_NORMAL} work, which always runs before {@link #PRIORITY_BULK} work.
+ * </p>
+ *
+ * <p>
+ * Large batches submitted with {@link #updateBatch(String[], Object[][], int)} are split in to
+ * chunks, each committed in its own transaction and queued again behind any waiting
+ * higher-priority work, so a background sync can't hold the database for longer than a single
+ * chunk.  The time each priority class spends queued is measured, see {@link #getStats(int)}.
+ * </p>
+ */
+public class QueryScheduler {
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BULK = 2;
+
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef({PRIORITY_INTERACTIVE, PRIORITY_NORMAL, PRIORITY_BULK})
+    public @interface Priority {}
+
+    private static final int PRIORITY_COUNT = 3;
+    private static final int DEFAULT_WORKERS = 2;
+    private static final int DEFAULT_CHUNK_SIZE = 200;
+    private static final long SLOW_INTERACTIVE_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final Database mDatabase;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLongArray mQueuedCount = new AtomicLongArray(PRIORITY_COUNT);
+    private final AtomicLongArray mQueuedNanos = new AtomicLongArray(PRIORITY_COUNT);
+    private final AtomicLongArray mMaxQueuedNanos = new AtomicLongArray(PRIORITY_COUNT);
+
+    /**
+     * Creates a scheduler for the database with two worker threads.
+     * @param database Database to run work against.
+     */
+    public QueryScheduler(Database database) {
+        this(database, DEFAULT_WORKERS);
+    }
+
+    /**
+     * Creates a scheduler for the database.
+     * @param database Database to run work against.
+     * @param workers Number of worker threads. Every {@link Database} call takes the database's
+     *                lock, so workers never run statements at the same time; extra workers only
+     *                let one pick up new work while another is busy outside the database (e.g.
+     *                mapping rows).
+     */
+    public QueryScheduler(Database database, int workers) {
+        if (workers < 1) {
+            throw new DatabaseException("workers must be at least 1");
+        }
+        mDatabase = database;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Squeaky-Scheduler-"+threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Schedule a query. The returned cursor's first window is filled on the worker thread.
+     * @param priority Priority of the query.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return Future for the query's cursor.
+     * @see Database#query(String, Object...)
+     */
+    public Future<Cursor> query(@Priority int priority, final String stmt, final Object... bindArgs) {
+        return submit(priority, new Callable<Cursor>() {
+            @Override
+            public Cursor call() {
+                Cursor c = mDatabase.query(stmt, bindArgs);
+                c.getCount();
+                return c;
+            }
+        });
+    }
+
+    /**
+     * Schedule an insert.
+     * @param priority Priority of the insert.
+     * @param stmt Insert query.
+     * @param bindArgs Arguments to bind to '?'s in the query.
+     * @return Future for the new record's <code>rowid</code>.
+     * @see Database#insert(String, Object...)
+     */
+    public Future<Long> insert(@Priority int priority, final String stmt, final Object... bindArgs) {
+        return submit(priority, new Callable<Long>() {
+            @Override
+            public Long call() {
+                return mDatabase.insert(stmt, bindArgs);
+            }
+        });
+    }
+
+    /**
+     * Schedule an update/delete.
+     * @param priority Priority of the update.
+     * @param stmt Query to execute.
+     * @param bindArgs Arguments to bind to '?'s in the query.
+     * @return Future for the number of affected rows.
+     * @see Database#update(String, Object...)
+     */
+    public Future<Integer> update(@Priority int priority, final String stmt, final Object... bindArgs) {
+        return submit(priority, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return mDatabase.update(stmt, bindArgs);
+            }
+        });
+    }
+
+    /**
+     * Schedule a batch of updates at {@link #PRIORITY_BULK}, split in to chunks of 200 statements.
+     * @param stmts Array of statements to execute.
+     * @param bindArgs Arguments to bind to '?'s in the queries, or null.
+     * @return Future for the total number of updated records.
+     * @see #updateBatch(String[], Object[][], int)
+     */
+    public Future<Integer> updateBatch(String[] stmts, Object[][] bindArgs) {
+        return updateBatch(stmts, bindArgs, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Schedule a batch of updates at {@link #PRIORITY_BULK}.  The batch is split in to chunks of
+     * {@param chunkSize} statements, each run in its own transaction.  Only one chunk of a batch is
+     * queued at a time, and the next is queued when it finishes, so higher-priority work gets to
+     * run between chunks.  The batch as a whole is <em>not</em> atomic: if a chunk fails, earlier
+     * chunks stay committed and the future fails.
+     * @param stmts Array of statements to execute.
+     * @param bindArgs Arguments to bind to '?'s in the queries, or null.
+     * @param chunkSize Number of statements per transaction.
+     * @return Future for the total number of updated records.
+     */
+    public Future<Integer> updateBatch(String[] stmts, Object[][] bindArgs, int chunkSize) {
+        if (bindArgs != null && bindArgs.length != stmts.length) {
+            throw new DatabaseException("bindArgs.length != stmts.length");
+        }
+        if (chunkSize < 1) {
+            throw new DatabaseException("chunkSize must be at least 1");
+        }
+        BatchResult result = new BatchResult();
+        scheduleChunk(stmts, bindArgs, chunkSize, 0, result);
+        return result;
+    }
+
+    private void scheduleChunk(final String[] stmts, final Object[][] bindArgs, final int chunkSize, final int start, final BatchResult result) {
+        final int end = Math.min(stmts.length, start + chunkSize);
+        mExecutor.execute(new ScheduledTask<>(PRIORITY_BULK, new Callable<Void>() {
+            @Override
+            public Void call() {
+                if (result.isCancelled()) {
+                    return null;
+                }
+                try {
+                    int rows = mDatabase.updateBatch(Arrays.copyOfRange(stmts, start, end), bindArgs == null ? null : Arrays.copyOfRange(bindArgs, start, end), true);
+                    result.addRows(rows);
+                } catch (RuntimeException e) {
+                    result.fail(e);
+                    return null;
+                }
+                if (end < stmts.length) {
+                    try {
+                        scheduleChunk(stmts, bindArgs, chunkSize, end, result);
+                    } catch (RejectedExecutionException e) {
+                        result.fail(new DatabaseException("Scheduler shut down before batch finished.", e));
+                    }
+                } else {
+                    result.finish();
+                }
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Schedule arbitrary work against the database.
+     * @param priority Priority of the work.
+     * @param work Work to run.
+     * @param <T> Type of the work's result.
+     * @return Future for the work's result.
+     */
+    public <T> Future<T> submit(@Priority int priority, Callable<T> work) {
+        if (priority < PRIORITY_INTERACTIVE || priority > PRIORITY_BULK) {
+            throw new DatabaseException("Invalid priority: "+priority);
+        }
+        ScheduledTask<T> task = new ScheduledTask<>(priority, work);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Get queueing statistics for a priority class: how long its work waited before starting.
+     * @param priority Priority class.
+     * @return Statistics since the scheduler was created or {@link #resetStats()} was called.
+     */
+    public Stats getStats(@Priority int priority) {
+        return new Stats(mQueuedCount.get(priority), mQueuedNanos.get(priority), mMaxQueuedNanos.get(priority));
+    }
+
+    /**
+     * Reset the queueing statistics of every priority class.
+     */
+    public void resetStats() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueuedCount.set(i, 0);
+            mQueuedNanos.set(i, 0);
+            mMaxQueuedNanos.set(i, 0);
+        }
+    }
+
+    /**
+     * Stop accepting work. Work which has already been scheduled still runs, except for the
+     * remaining chunks of batches.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void recordQueued(int priority, long nanos) {
+        mQueuedCount.incrementAndGet(priority);
+        mQueuedNanos.addAndGet(priority, nanos);
+        long max;
+        do {
+            max = mMaxQueuedNanos.get(priority);
+        } while (nanos > max && !mMaxQueuedNanos.compareAndSet(priority, max, nanos));
+        if (priority == PRIORITY_INTERACTIVE && nanos > SLOW_INTERACTIVE_NANOS) {
+            Logger.w("Interactive work on", mDatabase.getName(), "queued for", TimeUnit.NANOSECONDS.toMillis(nanos)+"ms");
+        }
+    }
+
+    /**
+     * Queueing statistics for a priority class.
+     */
+    public static class Stats {
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        Stats(long count, long totalNanos, long maxNanos) {
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        /**
+         * Get the number of tasks which have started.
+         * @return Number of tasks.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * Get the average time tasks spent queued.
+         * @return Average delay, in milliseconds.
+         */
+        public double getAverageDelayMillis() {
+            return mCount == 0 ? 0 : mTotalNanos / (double) mCount / 1000000.0;
+        }
+
+        /**
+         * Get the longest time a task spent queued.
+         * @return Maximum delay, in milliseconds.
+         */
+        public double getMaxDelayMillis() {
+            return mMaxNanos / 1000000.0;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{count="+mCount+", avgDelayMs="+getAverageDelayMillis()+", maxDelayMs="+getMaxDelayMillis()+"}";
+        }
+    }
+
+    /**
+     * A unit of work, ordered by priority and then by the order it was scheduled in.
+     */
+    private final class ScheduledTask<T> extends FutureTask<T> implements Comparable<ScheduledTask<?>> {
+        private final int mPriority;
+        private final long mSequence;
+        private final long mEnqueuedNanos;
+
+        ScheduledTask(int priority, Callable<T> work) {
+            super(work);
+            mPriority = priority;
+            mSequence = QueryScheduler.this.mSequence.getAndIncrement();
+            mEnqueuedNanos = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            recordQueued(mPriority, System.nanoTime() - mEnqueuedNanos);
+            super.run();
+        }
+
+        @Override
+        public int compareTo(ScheduledTask<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Future for a chunked batch, completed by its last chunk (or the first one to fail).
+     * Cancelling it stops any chunks which haven't started yet from running.
+     */
+    private static final class BatchResult implements Future<Integer> {
+        private static final int STATE_RUNNING = 0;
+        private static final int STATE_FINISHED = 1;
+        private static final int STATE_FAILED = 2;
+        private static final int STATE_CANCELLED = 3;
+
+        private final AtomicInteger mState = new AtomicInteger(STATE_RUNNING);
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final AtomicInteger mRows = new AtomicInteger();
+        private volatile Throwable mFailure;
+
+        void addRows(int rows) {
+            mRows.addAndGet(rows);
+        }
+
+        void finish() {
+            complete(STATE_FINISHED);
+        }
+
+        void fail(Throwable t) {
+            mFailure = t;
+            complete(STATE_FAILED);
+        }
+
+        private boolean complete(int state) {
+            if (mState.compareAndSet(STATE_RUNNING, state)) {
+                mDone.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // a chunk which is already running still commits, but no more are started.
+            return complete(STATE_CANCELLED);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mState.get() != STATE_RUNNING;
+        }
+
+        @Override
+        public Integer get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return getResult();
+        }
+
+        @Override
+        public Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mDone.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResult();
+        }
+
+        private Integer getResult() throws ExecutionException {
+            switch (mState.get()) {
+                case STATE_CANCELLED:
+                    throw new CancellationException();
+                case STATE_FAILED:
+                    throw new ExecutionException(mFailure);
+                default:
+                    return mRows.get();
+            }
+        }
+    }
+}
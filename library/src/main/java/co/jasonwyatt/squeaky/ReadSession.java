@@ -0,0 +1,110 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.Closeable;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * A read-only session which sees a single, consistent point-in-time view of a {@link Database}.
+ * Obtain one with {@link Database#readSession()} and close it when you're done:
+ * </p>
+ *
+ * <pre>
+ *     ReadSession session = db.readSession();
+ *     try {
+ *         Cursor todos = session.query("SELECT * FROM todos");
+ *         Cursor counts = session.query("SELECT COUNT(*) FROM todos WHERE finished_date IS NULL");
+ *         // ...
+ *     } finally {
+ *         session.close();
+ *     }
+ * </pre>
+ *
+ * <p>
+ * The session holds a dedicated reader connection in a read transaction for its lifetime.  When the
+ * database uses write-ahead logging (see {@link TuningProfile#writeAheadLogging(boolean)}), this
+ * doesn't block writers: they keep committing, and the session keeps seeing its snapshot. Without
+ * WAL, writers can't commit until the session is closed.
+ * </p>
+ *
+ * <p>
+ * Cursors returned by the session should be read before the session is closed.
+ * </p>
+ */
+public class ReadSession implements Closeable {
+    // BEGIN always starts an IMMEDIATE/EXCLUSIVE transaction through Android's APIs, a SAVEPOINT
+    // outside of a transaction is the only way to start a deferred (read) transaction.
+    private static final String SAVEPOINT = "squeaky_read_session";
+
+    private final ReaderPool mPool;
+    private SQLiteDatabase mConnection;
+
+    ReadSession(ReaderPool pool) {
+        mPool = pool;
+        mConnection = pool.acquire();
+        try {
+            mConnection.execSQL("SAVEPOINT "+SAVEPOINT);
+            // the read transaction (and so the snapshot) only starts once something is read.
+            Cursor c = mConnection.rawQuery("SELECT COUNT(*) FROM sqlite_master", null);
+            c.moveToFirst();
+            c.close();
+        } catch (RuntimeException e) {
+            mPool.release(mConnection);
+            mConnection = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Query the session's snapshot of the database.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return An instance of {@link android.database.Cursor} giving you access to the results of
+     *          the query.
+     */
+    public Cursor query(String stmt, Object... bindArgs) {
+        if (mConnection == null) {
+            throw new DatabaseException("ReadSession is closed.");
+        }
+        String[] args = Database.toQueryArgs(bindArgs);
+        Cursor result = mConnection.rawQuery(stmt, args);
+        Logger.i(stmt+";", args);
+        return result;
+    }
+
+    /**
+     * Get the connection held by the session.
+     * @return The session's connection.
+     */
+    SQLiteDatabase getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Returns whether or not the session is still open.
+     * @return True if the session hasn't been closed.
+     */
+    public boolean isOpen() {
+        return mConnection != null;
+    }
+
+    /**
+     * End the session's read transaction and give up its connection.
+     */
+    @Override
+    public void close() {
+        if (mConnection == null) {
+            return;
+        }
+        try {
+            mConnection.execSQL("RELEASE "+SAVEPOINT);
+        } finally {
+            mPool.release(mConnection);
+            mConnection = null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Pool of dedicated, read-only connections to a {@link Database}'s file.  Unlike the connections
+ * managed by {@link android.database.sqlite.SQLiteDatabase}'s own pool, each of these belongs to a
+ * single user at a time, so it can be held in a read transaction across several queries.  Idle
+ * connections are kept open so their compiled statement caches survive between uses.
+ */
+final class ReaderPool {
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    private final String mPath;
+    private final TuningProfile mTuningProfile;
+    private final Deque<SQLiteDatabase> mIdle = new ArrayDeque<>();
+    private boolean mClosed;
+
+    ReaderPool(String path, TuningProfile tuningProfile) {
+        mPath = path;
+        mTuningProfile = tuningProfile;
+    }
+
+    /**
+     * Get a connection for exclusive use by the caller. Return it with {@link #release(SQLiteDatabase)}.
+     * @return Read-only connection.
+     */
+    SQLiteDatabase acquire() {
+        synchronized (this) {
+            if (mClosed) {
+                throw new DatabaseException("Reader connections for "+mPath+" are closed.");
+            }
+            if (!mIdle.isEmpty()) {
+                return mIdle.pop();
+            }
+        }
+        Logger.d("Opening reader connection to", mPath);
+        SQLiteDatabase connection = SQLiteDatabase.openDatabase(mPath, null, SQLiteDatabase.OPEN_READONLY);
+        if (mTuningProfile != null) {
+            mTuningProfile.apply(connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Return a connection to the pool.
+     * @param connection Connection obtained from {@link #acquire()}.
+     */
+    void release(SQLiteDatabase connection) {
+        synchronized (this) {
+            if (!mClosed && mIdle.size() < MAX_IDLE_CONNECTIONS) {
+                mIdle.push(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Close all idle connections. Connections which are in use are closed when released.
+     */
+    synchronized void close() {
+        mClosed = true;
+        while (!mIdle.isEmpty()) {
+            mIdle.pop().close();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Tracks the {@link Cursor}s returned by {@link Database#query(String, Object...)} to find the
+ * ones which are never closed.  Attach one with
+ * {@link Database#setResourceTracker(ResourceTracker)}:
+ * </p>
+ *
+ * <pre>
+ *     ResourceTracker tracker = new ResourceTracker();
+ *     db.setResourceTracker(tracker);
+ *     // ... exercise the app ...
+ *     for (Map.Entry&lt;String, Integer&gt; entry : tracker.getLeakCounts().entrySet()) {
+ *         Log.w("Leaks", entry.getValue()+" cursors leaked from "+entry.getKey());
+ *     }
+ * </pre>
+ *
+ * <p>
+ * Each cursor is wrapped, and when the app lets go of a wrapper without closing it, a background
+ * thread reports the leak and (by default) closes the underlying cursor right away, freeing its
+ * native CursorWindow rather than leaving it for the cursor's finalizer.  Finding call sites walks
+ * the stack for every query; turn it off with {@link #captureCallSites(boolean)} in production
+ * builds to only count and reclaim leaks.
+ * </p>
+ */
+public class ResourceTracker {
+    public static final String KIND_CURSOR = "cursor";
+
+    private static final int MAX_LEAKS = 100;
+    private static final String UNKNOWN_CALL_SITE = "unknown";
+
+    private volatile boolean mCaptureCallSites = true;
+    private volatile boolean mCloseLeaked = true;
+    private volatile Listener mListener;
+
+    private final ReferenceQueue<Object> mQueue = new ReferenceQueue<>();
+    // keeps the references themselves reachable until their owners are closed or collected.
+    private final Set<Tracked> mOpen = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+    private final ConcurrentHashMap<String, AtomicInteger> mLeakCounts = new ConcurrentHashMap<>();
+    private final LinkedList<Allocation> mLeaks = new LinkedList<>();
+    private final AtomicInteger mLeakCount = new AtomicInteger();
+    private Thread mReaper;
+
+    /**
+     * Enable or disable recording where each resource was allocated.  Defaults to enabled.
+     * @param enabled Whether or not to capture call sites.
+     * @return This tracker, for chaining.
+     */
+    public ResourceTracker captureCallSites(boolean enabled) {
+        mCaptureCallSites = enabled;
+        return this;
+    }
+
+    /**
+     * Enable or disable closing leaked resources as soon as their owners are collected.  Defaults
+     * to enabled.
+     * @param enabled Whether or not to close leaked resources.
+     * @return This tracker, for chaining.
+     */
+    public ResourceTracker closeLeaked(boolean enabled) {
+        mCloseLeaked = enabled;
+        return this;
+    }
+
+    /**
+     * Set a listener to be told about each leak, on the tracker's background thread.
+     * @param listener Listener, or null.
+     * @return This tracker, for chaining.
+     */
+    public ResourceTracker listener(Listener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    /**
+     * Get the resources which are currently open, oldest first.  Long-lived entries are likely
+     * leaks which are still reachable.
+     * @return Open resources.
+     */
+    public List<Allocation> getOpenResources() {
+        long now = SystemClock.elapsedRealtime();
+        List<Allocation> result = new ArrayList<>();
+        for (Tracked tracked : mOpen) {
+            result.add(new Allocation(tracked.mKind, tracked.mStatement, tracked.mCallSite, now - tracked.mAllocatedMillis));
+        }
+        Collections.sort(result, new Comparator<Allocation>() {
+            @Override
+            public int compare(Allocation a, Allocation b) {
+                return a.mAgeMillis < b.mAgeMillis ? 1 : (a.mAgeMillis == b.mAgeMillis ? 0 : -1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Get the number of resources which were leaked.
+     * @return Number of leaks.
+     */
+    public int getLeakCount() {
+        return mLeakCount.get();
+    }
+
+    /**
+     * Get the number of leaks from each call site.
+     * @return Mapping from call site to number of leaks.
+     */
+    public Map<String, Integer> getLeakCounts() {
+        Map<String, Integer> result = new HashMap<>();
+        for (Map.Entry<String, AtomicInteger> entry : mLeakCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * Get the most recent leaks, oldest first.  Only the last 100 are kept.
+     * @return Recent leaks, with their ages when they were found.
+     */
+    public List<Allocation> getLeaks() {
+        synchronized (mLeaks) {
+            return new ArrayList<>(mLeaks);
+        }
+    }
+
+    /**
+     * Process the leaks found so far right away, instead of waiting for the background thread.
+     * @return Number of leaks processed.
+     */
+    public int reap() {
+        int reaped = 0;
+        Reference<?> ref;
+        while ((ref = mQueue.poll()) != null) {
+            if (onCollected((Tracked) ref)) {
+                reaped++;
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Start tracking a cursor.
+     * @param cursor Cursor to track.
+     * @param statement Statement which produced the cursor.
+     * @return Wrapper for the cursor, to hand out in its place.
+     */
+    Cursor track(Cursor cursor, String statement) {
+        TrackedCursor wrapper = new TrackedCursor(cursor, this);
+        Tracked tracked = new Tracked(wrapper, mQueue, cursor, KIND_CURSOR, statement,
+                mCaptureCallSites ? ContentionProfiler.callSite() : UNKNOWN_CALL_SITE);
+        wrapper.setTracked(tracked);
+        mOpen.add(tracked);
+        startReaper();
+        return wrapper;
+    }
+
+    void onClosed(Tracked tracked) {
+        if (tracked != null && mOpen.remove(tracked)) {
+            tracked.clear();
+        }
+    }
+
+    private boolean onCollected(Tracked tracked) {
+        if (!mOpen.remove(tracked)) {
+            return false;
+        }
+        Allocation leak = new Allocation(tracked.mKind, tracked.mStatement, tracked.mCallSite,
+                SystemClock.elapsedRealtime() - tracked.mAllocatedMillis);
+        mLeakCount.incrementAndGet();
+        AtomicInteger count = mLeakCounts.get(tracked.mCallSite);
+        if (count == null) {
+            AtomicInteger existing = mLeakCounts.putIfAbsent(tracked.mCallSite, count = new AtomicInteger());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        count.incrementAndGet();
+        synchronized (mLeaks) {
+            mLeaks.addLast(leak);
+            if (mLeaks.size() > MAX_LEAKS) {
+                mLeaks.removeFirst();
+            }
+        }
+        Logger.w("Leaked", leak);
+
+        if (mCloseLeaked) {
+            try {
+                tracked.mResource.close();
+            } catch (RuntimeException e) {
+                Logger.e(e, "Unable to close leaked", tracked.mKind);
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onLeak(leak);
+        }
+        return true;
+    }
+
+    private synchronized void startReaper() {
+        if (mReaper != null) {
+            return;
+        }
+        mReaper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        onCollected((Tracked) mQueue.remove());
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        Logger.e(e, "Error handling leaked resource");
+                    }
+                }
+            }
+        }, "Squeaky-ResourceReaper");
+        mReaper.setDaemon(true);
+        mReaper.start();
+    }
+
+    /**
+     * A resource tracked by a {@link ResourceTracker}: either still open, or leaked.
+     */
+    public static final class Allocation {
+        private final String mKind;
+        private final String mStatement;
+        private final String mCallSite;
+        private final long mAgeMillis;
+
+        Allocation(String kind, String statement, String callSite, long ageMillis) {
+            mKind = kind;
+            mStatement = statement;
+            mCallSite = callSite;
+            mAgeMillis = ageMillis;
+        }
+
+        /**
+         * Get the kind of the resource, e.g. {@link #KIND_CURSOR}.
+         * @return Kind of resource.
+         */
+        public String getKind() {
+            return mKind;
+        }
+
+        /**
+         * Get the SQL statement which allocated the resource.
+         * @return SQL statement.
+         */
+        public String getStatement() {
+            return mStatement;
+        }
+
+        /**
+         * Get the app code which allocated the resource.
+         * @return Stack frame, or "unknown" if call sites weren't being captured.
+         */
+        public String getCallSite() {
+            return mCallSite;
+        }
+
+        /**
+         * Get how long the resource had been open, when it was found to be leaked or when the
+         * allocation was listed.
+         * @return Age, in milliseconds.
+         */
+        public long getAgeMillis() {
+            return mAgeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return mKind+" for \""+mStatement+"\" from "+mCallSite+", open for "+mAgeMillis+"ms";
+        }
+    }
+
+    /**
+     * Receives the leaks found by a {@link ResourceTracker}.
+     */
+    public interface Listener {
+        /**
+         * Called, on the tracker's background thread, when a resource's owner was collected
+         * without closing it.
+         * @param leak The leaked resource.
+         */
+        void onLeak(Allocation leak);
+    }
+
+    /**
+     * Reference to the object handed out for a resource, holding on to the resource itself so it
+     * can still be closed once the object is collected.
+     */
+    static final class Tracked extends PhantomReference<Object> {
+        final Cursor mResource;
+        final String mKind;
+        final String mStatement;
+        final String mCallSite;
+        final long mAllocatedMillis = SystemClock.elapsedRealtime();
+
+        Tracked(Object owner, ReferenceQueue<Object> queue, Cursor resource, String kind, String statement, String callSite) {
+            super(owner, queue);
+            mResource = resource;
+            mKind = kind;
+            mStatement = statement;
+            mCallSite = callSite;
+        }
+    }
+}
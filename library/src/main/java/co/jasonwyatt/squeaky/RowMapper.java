@@ -0,0 +1,16 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+
+/**
+ * Maps the row a {@link Cursor} is currently positioned on to an object.
+ * @param <T> Type of object produced for each row.
+ */
+public interface RowMapper<T> {
+    /**
+     * Map the current row of the cursor. Implementations should not move the cursor.
+     * @param cursor Cursor positioned on the row to map.
+     * @return Object for the row.
+     */
+    T map(Cursor cursor);
+}
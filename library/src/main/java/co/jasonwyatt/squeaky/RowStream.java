@@ -0,0 +1,79 @@
+package co.jasonwyatt.squeaky;
+
+/**
+ * <p>
+ * Reactive-streams style interfaces used by {@link Database#stream(String, Object[], RowMapper)}.
+ * They mirror <code>java.util.concurrent.Flow</code>, which isn't available until Android 11, so
+ * adapting them to RxJava, Reactor or <code>Flow</code> itself is a matter of forwarding calls.
+ * </p>
+ *
+ * <p>
+ * A {@link Publisher} emits nothing until its {@link Subscriber} requests rows through the
+ * {@link Subscription}, and never emits more rows than have been requested.
+ * </p>
+ */
+public final class RowStream {
+    private RowStream() {
+        // not instantiable.
+    }
+
+    /**
+     * Produces rows for any number of subscribers. Each subscriber gets its own run of the query.
+     * @param <T> Type of the rows.
+     */
+    public interface Publisher<T> {
+        /**
+         * Subscribe to the rows. {@link Subscriber#onSubscribe(Subscription)} is called before
+         * this method returns.
+         * @param subscriber Subscriber to receive the rows.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * Receives rows from a {@link Publisher}.  Calls to a subscriber are never concurrent.
+     * @param <T> Type of the rows.
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called once, before any other method, with the subscription used to request rows.
+         * @param subscription Subscription for requesting rows or cancelling.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called for each row, at most as many times as rows have been requested.
+         * @param item The row.
+         */
+        void onNext(T item);
+
+        /**
+         * Called once if the query or mapper fails. No more calls follow.
+         * @param throwable The failure.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called once after the last row. No more calls follow.
+         */
+        void onComplete();
+    }
+
+    /**
+     * Link between a {@link Publisher} and a {@link Subscriber}.
+     */
+    public interface Subscription {
+        /**
+         * Request more rows.
+         * @param n Number of additional rows to deliver. Must be positive.
+         *          {@link Long#MAX_VALUE} requests all remaining rows.
+         */
+        void request(long n);
+
+        /**
+         * Stop receiving rows and release the query's resources. May be called at any time, from
+         * any thread.
+         */
+        void cancel();
+    }
+}
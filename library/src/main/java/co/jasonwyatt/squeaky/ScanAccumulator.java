@@ -0,0 +1,35 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+
+/**
+ * Accumulates the rows of a partitioned scan run by
+ * {@link Database#parallelScan(String, String, String, Object[], ScanAccumulator)}. Each partition
+ * gets its own accumulator from {@link #create()}, which is only ever touched by a single thread,
+ * and the partitions' accumulators are combined with {@link #merge(Object, Object)} at the end.
+ * @param <A> Type of the accumulated result.
+ */
+public interface ScanAccumulator<A> {
+    /**
+     * Create an empty accumulator for a partition.
+     * @return New accumulator.
+     */
+    A create();
+
+    /**
+     * Add a row to a partition's accumulator.
+     * @param accumulator The partition's accumulator.
+     * @param row Cursor positioned on the row. Implementations should not move the cursor.
+     */
+    void accumulate(A accumulator, Cursor row);
+
+    /**
+     * Combine the accumulators of two partitions. Partitions are merged in order of their range
+     * of the partition column, so <code>left</code> always covers lower values than
+     * <code>right</code>.
+     * @param left Accumulator for the lower partition(s).
+     * @param right Accumulator for the next partition.
+     * @return Combined accumulator (may be <code>left</code>, modified).
+     */
+    A merge(A left, A right);
+}
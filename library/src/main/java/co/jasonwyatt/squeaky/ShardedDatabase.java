@@ -0,0 +1,385 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MergeCursor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * ShardedDatabase hash-partitions data across several SQLite files, each managed by its own
+ * {@link Database} with the same set of {@link Table}s.  Since every file has its own writer lock,
+ * writes to different shards can proceed in parallel.
+ * </p>
+ *
+ * <p>
+ * Writes are routed to a shard by a shard key (the key's {@link Object#hashCode()} must be stable
+ * across processes, as it is for {@link String} and {@link Long}). Queries can target the shard
+ * for a key, or fan out to all shards in parallel and have their results merged.
+ * </p>
+ */
+public class ShardedDatabase {
+    private final Database[] mShards;
+    private ExecutorService mExecutor;
+
+    /**
+     * Creates a new {@link ShardedDatabase} using the default {@link DatabaseHelper} class.
+     * @param context Android context.
+     * @param name Base name of the database. Shards are named <code>name_shard0</code>,
+     *             <code>name_shard1</code>, etc.
+     * @param shardCount Number of shards. Must not change once data has been written.
+     */
+    public ShardedDatabase(Context context, String name, int shardCount) {
+        this(context, name, shardCount, DatabaseHelper.class);
+    }
+
+    /**
+     * Creates a new {@link ShardedDatabase}, allowing for a customized {@link DatabaseHelper} class.
+     * @param context Android context.
+     * @param name Base name of the database.
+     * @param shardCount Number of shards. Must not change once data has been written.
+     * @param helper Helper class used by each shard's {@link Database}.
+     */
+    public ShardedDatabase(Context context, String name, int shardCount, Class<? extends DatabaseHelper> helper) {
+        if (shardCount < 1) {
+            throw new DatabaseException("shardCount must be at least 1");
+        }
+        mShards = new Database[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            mShards[i] = new Database(context, name+"_shard"+i, helper);
+        }
+    }
+
+    /**
+     * Add a {@link Table} to every shard.
+     * @param t Table to add.
+     */
+    public void addTable(Table t) {
+        for (Database shard : mShards) {
+            shard.addTable(t);
+        }
+    }
+
+    /**
+     * Set the {@link TuningProfile} used by every shard.
+     * @param profile Profile to use.
+     */
+    public void setTuningProfile(TuningProfile profile) {
+        for (Database shard : mShards) {
+            shard.setTuningProfile(profile);
+        }
+    }
+
+    /**
+     * Prepare every shard, running migrations on the shards in parallel.
+     * @see Database#prepare()
+     */
+    public void prepare() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(Math.min(mShards.length, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Squeaky-Shard-"+threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (final Database shard : mShards) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.prepare();
+                    return null;
+                }
+            });
+        }
+        invokeAll(tasks);
+    }
+
+    /**
+     * Close every shard.
+     */
+    public void close() {
+        for (Database shard : mShards) {
+            if (shard.isPrepared()) {
+                shard.close();
+            }
+        }
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Get the number of shards.
+     * @return Number of shards.
+     */
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    /**
+     * Get a single shard.
+     * @param index Index of the shard.
+     * @return The shard's {@link Database}.
+     */
+    public Database getShard(int index) {
+        return mShards[index];
+    }
+
+    /**
+     * Get the shard responsible for a shard key.
+     * @param shardKey Shard key.
+     * @return The shard's {@link Database}.
+     */
+    public Database getShardFor(Object shardKey) {
+        return mShards[shardIndex(shardKey, mShards.length)];
+    }
+
+    /**
+     * Insert a record in to the shard responsible for the shard key.
+     * @param shardKey Shard key.
+     * @param stmt Insert query.
+     * @param bindArgs Arguments to bind to '?'s in the query.
+     * @return Value of the new record's <code>rowid</code> within its shard.
+     * @see Database#insert(String, Object...)
+     */
+    public long insert(Object shardKey, String stmt, Object... bindArgs) {
+        return getShardFor(shardKey).insert(stmt, bindArgs);
+    }
+
+    /**
+     * Run an update/delete query on the shard responsible for the shard key.
+     * @param shardKey Shard key.
+     * @param stmt Query to execute.
+     * @param bindArgs Arguments to bind to '?'s in the query.
+     * @return Number of affected rows.
+     * @see Database#update(String, Object...)
+     */
+    public int update(Object shardKey, String stmt, Object... bindArgs) {
+        return getShardFor(shardKey).update(stmt, bindArgs);
+    }
+
+    /**
+     * Run an update/delete query on every shard, in parallel.
+     * @param stmt Query to execute.
+     * @param bindArgs Arguments to bind to '?'s in the query.
+     * @return Total number of affected rows.
+     */
+    public int updateAll(final String stmt, final Object... bindArgs) {
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (final Database shard : mShards) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return shard.update(stmt, bindArgs);
+                }
+            });
+        }
+        int rows = 0;
+        for (Integer shardRows : invokeAll(tasks)) {
+            rows += shardRows;
+        }
+        return rows;
+    }
+
+    /**
+     * Query the shard responsible for the shard key.
+     * @param shardKey Shard key.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return Cursor over the shard's results.
+     */
+    public Cursor query(Object shardKey, String stmt, Object... bindArgs) {
+        return getShardFor(shardKey).query(stmt, bindArgs);
+    }
+
+    /**
+     * Run a query on every shard in parallel, and concatenate the results in shard order.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @return Cursor over the results of every shard.
+     */
+    public Cursor queryAll(final String stmt, final Object... bindArgs) {
+        List<Callable<Cursor>> tasks = new ArrayList<>();
+        for (final Database shard : mShards) {
+            tasks.add(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    Cursor c = shard.query(stmt, bindArgs);
+                    try {
+                        // fill the first window now, so the work happens in parallel.
+                        c.getCount();
+                    } catch (RuntimeException e) {
+                        c.close();
+                        throw e;
+                    }
+                    return c;
+                }
+            });
+        }
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            invokeAll(tasks, cursors);
+        } catch (RuntimeException e) {
+            // don't leak the cursors of the shards which succeeded.
+            for (Cursor c : cursors) {
+                c.close();
+            }
+            throw e;
+        }
+        return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+    }
+
+    /**
+     * Run a query on every shard in parallel, map the rows, and merge them in to a single ordered
+     * list.  The query must return each shard's rows in the order defined by {@param order} (i.e.
+     * use a matching <code>ORDER BY</code>), and should include a <code>LIMIT</code> of
+     * {@param limit} so that no shard returns more rows than can be used.
+     * @param stmt SQL Query
+     * @param bindArgs Parameters mapping to '?'s in the stmt.
+     * @param mapper Maps each row to an object.
+     * @param order Order of the merged results.
+     * @param limit Maximum number of results to return, or a negative number for no limit.
+     * @param <T> Type of the mapped rows.
+     * @return Merged and ordered results.
+     */
+    public <T> List<T> queryAll(final String stmt, final Object[] bindArgs, final RowMapper<T> mapper, final Comparator<? super T> order, int limit) {
+        List<Callable<List<T>>> tasks = new ArrayList<>();
+        for (final Database shard : mShards) {
+            tasks.add(new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    List<T> rows = new ArrayList<>();
+                    Cursor c = shard.query(stmt, bindArgs);
+                    try {
+                        while (c.moveToNext()) {
+                            rows.add(mapper.map(c));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    return rows;
+                }
+            });
+        }
+        return merge(invokeAll(tasks), order, limit);
+    }
+
+    /**
+     * K-way merge of individually-sorted lists.
+     */
+    static <T> List<T> merge(final List<List<T>> sorted, final Comparator<? super T> order, int limit) {
+        int total = 0;
+        for (List<T> rows : sorted) {
+            total += rows.size();
+        }
+        if (limit >= 0 && limit < total) {
+            total = limit;
+        }
+
+        List<T> result = new ArrayList<>(total);
+        final int[] positions = new int[sorted.size()];
+        PriorityQueue<Integer> heads = new PriorityQueue<>(Math.max(1, sorted.size()), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int cmp = order.compare(sorted.get(a).get(positions[a]), sorted.get(b).get(positions[b]));
+                // break ties by shard, so the merge is stable.
+                return cmp != 0 ? cmp : a.compareTo(b);
+            }
+        });
+        for (int i = 0; i < sorted.size(); i++) {
+            if (!sorted.get(i).isEmpty()) {
+                heads.add(i);
+            }
+        }
+        while (result.size() < total && !heads.isEmpty()) {
+            int shard = heads.poll();
+            result.add(sorted.get(shard).get(positions[shard]));
+            positions[shard]++;
+            if (positions[shard] < sorted.get(shard).size()) {
+                heads.add(shard);
+            }
+        }
+        return result;
+    }
+
+    static int shardIndex(Object shardKey, int shardCount) {
+        long h;
+        if (shardKey instanceof Number && !(shardKey instanceof Double) && !(shardKey instanceof Float)) {
+            h = ((Number) shardKey).longValue();
+        } else {
+            h = shardKey == null ? 0 : shardKey.hashCode();
+        }
+        // murmur3 finalizer, so sequential keys spread evenly.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) ((h & Long.MAX_VALUE) % shardCount);
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>();
+        invokeAll(tasks, results);
+        return results;
+    }
+
+    /**
+     * Run the tasks in parallel and wait for all of them to finish, even if some fail or the
+     * calling thread is interrupted, so the results of every successful task end up in
+     * <code>results</code> and can be released by the caller when this throws.
+     */
+    private <T> void invokeAll(List<Callable<T>> tasks, List<T> results) {
+        if (mExecutor == null) {
+            throw new DatabaseException("ShardedDatabase not prepared yet.");
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (Callable<T> task : tasks) {
+            futures.add(mExecutor.submit(task));
+        }
+
+        RuntimeException failure = null;
+        InterruptedException interruption = null;
+        for (Future<T> future : futures) {
+            while (true) {
+                try {
+                    results.add(future.get());
+                    break;
+                } catch (InterruptedException e) {
+                    interruption = e;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException
+                                ? (RuntimeException) e.getCause()
+                                : new DatabaseException("Error running shard operation.", e.getCause());
+                    }
+                    break;
+                }
+            }
+        }
+        if (interruption != null) {
+            Thread.currentThread().interrupt();
+            if (failure == null) {
+                failure = new DatabaseException("Interrupted while waiting for shards.", interruption);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
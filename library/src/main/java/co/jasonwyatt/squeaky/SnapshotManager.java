@@ -0,0 +1,274 @@
+package co.jasonwyatt.squeaky;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Restores and persists the contents of an in-memory {@link Database} to a snapshot file on disk.
+ * <p>
+ * Android doesn't expose SQLite's online backup API, so snapshots are taken by attaching a fresh
+ * database file, re-creating the schema in it, copying every table's rows, and then atomically
+ * renaming it over the previous snapshot.  Restoring does the same in the other direction.
+ */
+final class SnapshotManager implements ComponentCallbacks2 {
+    private static final String SCHEMA = "squeaky_snapshot";
+    private static final String ANDROID_METADATA = "android_metadata";
+    private static final Pattern CREATE_PREFIX = Pattern.compile("(?is)^(\\s*CREATE\\s+(?:UNIQUE\\s+|VIRTUAL\\s+)?(?:TABLE|INDEX|VIEW|TRIGGER)\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?)");
+
+    private final Database mDatabase;
+    private final File mFile;
+    private final long mIntervalMillis;
+    private ScheduledExecutorService mExecutor;
+    private long mSnapshotWriteCount = -1;
+
+    SnapshotManager(Database database, File file, long intervalMillis) {
+        mDatabase = database;
+        mFile = file;
+        mIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Start taking periodic snapshots and listening for lifecycle signals.
+     */
+    void start() {
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Squeaky-Snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (mIntervalMillis > 0) {
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotQuietly();
+                }
+            }, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        mDatabase.getContext().getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    /**
+     * Stop taking snapshots.
+     */
+    void stop() {
+        mDatabase.getContext().getApplicationContext().unregisterComponentCallbacks(this);
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Restore the snapshot (if one exists) in to an empty in-memory database.
+     * @param db In-memory database connection.
+     */
+    void restore(SQLiteDatabase db) {
+        if (!mFile.exists()) {
+            Logger.d("No snapshot to restore at", mFile);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        db.execSQL("ATTACH DATABASE ? AS "+SCHEMA, new Object[] {mFile.getPath()});
+        try {
+            copy(db, SCHEMA, "main");
+        } finally {
+            db.execSQL("DETACH DATABASE "+SCHEMA);
+        }
+        Logger.d("Restored snapshot", mFile, "in", (System.currentTimeMillis() - start)+"ms");
+    }
+
+    /**
+     * Write a snapshot of the in-memory database, if anything has been written since the last one.
+     * Must be called while holding the {@link Database}'s lock.
+     * @param db In-memory database connection.
+     * @param writeCount Number of writes the database has seen.
+     * @return True if a snapshot was written.
+     */
+    boolean snapshot(SQLiteDatabase db, long writeCount) {
+        if (writeCount == mSnapshotWriteCount && mFile.exists()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        File temp = new File(mFile.getPath()+"-tmp");
+        deleteFile(temp);
+        deleteFile(new File(temp.getPath()+"-journal"));
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new DatabaseException("Unable to create snapshot directory "+parent);
+        }
+
+        db.execSQL("ATTACH DATABASE ? AS "+SCHEMA, new Object[] {temp.getPath()});
+        try {
+            copy(db, "main", SCHEMA);
+        } finally {
+            db.execSQL("DETACH DATABASE "+SCHEMA);
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new DatabaseException("Unable to move snapshot in to place at "+mFile);
+        }
+        mSnapshotWriteCount = writeCount;
+        Logger.d("Wrote snapshot", mFile, "in", (System.currentTimeMillis() - start)+"ms");
+        return true;
+    }
+
+    private void snapshotQuietly() {
+        try {
+            mDatabase.snapshot();
+        } catch (RuntimeException e) {
+            Logger.e(e, "Unable to write snapshot of", mDatabase.getName());
+        }
+    }
+
+    /**
+     * Copy the schema and contents of one attached database in to another (empty) one.  Tables are
+     * created and filled before indexes, views and triggers are created, so triggers don't fire for
+     * the copied rows.
+     */
+    private static void copy(SQLiteDatabase db, String from, String to) {
+        List<String[]> objects = new ArrayList<>();
+        // android_metadata is created by Android itself whenever it opens a database.
+        Cursor c = db.rawQuery("SELECT type, name, sql FROM "+from+".sqlite_master WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%' AND name != '"+ANDROID_METADATA+"' ORDER BY CASE type WHEN 'table' THEN 0 WHEN 'index' THEN 1 WHEN 'view' THEN 2 ELSE 3 END, rowid", null);
+        try {
+            while (c.moveToNext()) {
+                objects.add(new String[] {c.getString(0), c.getString(1), c.getString(2)});
+            }
+        } finally {
+            c.close();
+        }
+
+        List<String> virtualTables = new ArrayList<>();
+        for (String[] object : objects) {
+            if (object[2].toUpperCase(Locale.US).startsWith("CREATE VIRTUAL TABLE")) {
+                virtualTables.add(object[1]);
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            List<String[]> tables = new ArrayList<>();
+            List<String> shadowTables = new ArrayList<>();
+            for (String[] object : objects) {
+                if (!object[0].equals("table")) {
+                    continue;
+                }
+                // shadow tables are created along with their virtual table, but still need copying.
+                if (isShadowTable(object[1], virtualTables)) {
+                    shadowTables.add(object[1]);
+                } else {
+                    db.execSQL(qualify(object[2], to));
+                    if (!virtualTables.contains(object[1])) {
+                        tables.add(object);
+                    }
+                }
+            }
+            for (String[] table : tables) {
+                // copy rowids explicitly, since they aren't included in SELECT * for most tables.
+                String columns = getColumns(db, from, table[1]);
+                if (!table[2].toUpperCase(Locale.US).contains("WITHOUT ROWID")) {
+                    columns = "rowid, "+columns;
+                }
+                db.execSQL("INSERT INTO "+to+"."+table[1]+" ("+columns+") SELECT "+columns+" FROM "+from+"."+table[1]);
+            }
+            for (String table : shadowTables) {
+                // some modules seed their shadow tables when the virtual table is created.
+                db.execSQL("INSERT OR REPLACE INTO "+to+"."+table+" SELECT * FROM "+from+"."+table);
+            }
+            if (hasTable(db, from, "sqlite_sequence") && hasTable(db, to, "sqlite_sequence")) {
+                db.execSQL("DELETE FROM "+to+".sqlite_sequence");
+                db.execSQL("INSERT INTO "+to+".sqlite_sequence SELECT * FROM "+from+".sqlite_sequence");
+            }
+            for (String[] object : objects) {
+                if (!object[0].equals("table")) {
+                    db.execSQL(qualify(object[2], to));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean isShadowTable(String name, List<String> virtualTables) {
+        for (String virtualTable : virtualTables) {
+            if (name.startsWith(virtualTable+"_")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getColumns(SQLiteDatabase db, String schema, String table) {
+        StringBuilder sb = new StringBuilder();
+        Cursor c = db.rawQuery("PRAGMA "+schema+".table_info("+table+")", null);
+        try {
+            int nameIndex = c.getColumnIndex("name");
+            while (c.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append('`').append(c.getString(nameIndex)).append('`');
+            }
+        } finally {
+            c.close();
+        }
+        return sb.toString();
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String schema, String table) {
+        Cursor c = db.rawQuery("SELECT 1 FROM "+schema+".sqlite_master WHERE type = 'table' AND name = ?", new String[] {table});
+        try {
+            return c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String qualify(String createSql, String schema) {
+        return CREATE_PREFIX.matcher(createSql).replaceFirst("$1"+schema+".");
+    }
+
+    private static void deleteFile(File f) {
+        if (f.exists() && !f.delete()) {
+            throw new DatabaseException("Unable to delete "+f);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN && mExecutor != null) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotQuietly();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // nothing to do.
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+}
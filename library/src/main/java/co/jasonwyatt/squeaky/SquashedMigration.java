@@ -0,0 +1,161 @@
+package co.jasonwyatt.squeaky;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * A migration which takes a {@link Table} from any version in a range directly to a later version,
+ * skipping the intermediate steps provided by {@link Table#getMigration(int)}.  Return instances of
+ * {@link SquashedMigration} from {@link Table#getSquashedMigrations()}.
+ * </p>
+ *
+ * <p>
+ * When a table is several versions behind, {@link Database} picks the cheapest combination of
+ * single-step and squashed migrations to reach the table's current version.  Each single step costs
+ * 1, and each squashed migration costs 1 unless a different cost is given.
+ * </p>
+ */
+public class SquashedMigration {
+    private static final String NEW_TABLE_SUFFIX = "_squeaky_new";
+
+    private final int mMinFromVersion;
+    private final int mMaxFromVersion;
+    private final int mToVersion;
+    private final String[] mStatements;
+    private int mCost = 1;
+
+    /**
+     * Creates a squashed migration which applies to any version up to and including
+     * {@param maxFromVersion}.
+     * @param maxFromVersion Highest version the migration can be applied to.
+     * @param toVersion Version of the table after the migration.
+     * @param statements SQL statements used to migrate the table.
+     */
+    public SquashedMigration(int maxFromVersion, int toVersion, String... statements) {
+        this(1, maxFromVersion, toVersion, statements);
+    }
+
+    /**
+     * Creates a squashed migration which applies to versions in the range
+     * [{@param minFromVersion}, {@param maxFromVersion}].
+     * @param minFromVersion Lowest version the migration can be applied to.
+     * @param maxFromVersion Highest version the migration can be applied to.
+     * @param toVersion Version of the table after the migration.
+     * @param statements SQL statements used to migrate the table.
+     */
+    public SquashedMigration(int minFromVersion, int maxFromVersion, int toVersion, String... statements) {
+        if (minFromVersion > maxFromVersion || maxFromVersion >= toVersion) {
+            throw new DatabaseException("Invalid squashed migration: ["+minFromVersion+", "+maxFromVersion+"] -> "+toVersion);
+        }
+        mMinFromVersion = minFromVersion;
+        mMaxFromVersion = maxFromVersion;
+        mToVersion = toVersion;
+        mStatements = statements;
+    }
+
+    /**
+     * Creates a squashed migration which rebuilds the table with a single create-copy-swap, in the
+     * order SQLite's documentation prescribes: the new version of the table is created under a
+     * temporary name, the existing rows are copied in to it, the existing table is dropped, and the
+     * new one is renamed in to place.  Foreign keys, views and triggers in other tables which refer
+     * to the table keep referring to it by name.  Triggers on the table itself are dropped along
+     * with it.  Foreign key enforcement must be off while migrating, as it is by default.
+     * @param maxFromVersion Highest version the migration can be applied to.
+     * @param toVersion Version of the table after the migration.
+     * @param tableName Name of the table.
+     * @param createStatements Statements which create the new version of the table. These should
+     *                         only define the table; seed data would be duplicated by the copy, and
+     *                         indexes should be declared with {@link Table#getIndexes()}.
+     * @param insertColumns Comma-separated columns of the new table to copy data in to.
+     * @param selectExpressions Comma-separated expressions over the old table's columns which
+     *                          produce the values for {@param insertColumns}.
+     * @return Squashed migration.
+     */
+    public static SquashedMigration copySwap(int maxFromVersion, int toVersion, String tableName, String[] createStatements, String insertColumns, String selectExpressions) {
+        String newTable = tableName + NEW_TABLE_SUFFIX;
+        Pattern createTable = Pattern.compile("(?is)^(\\s*CREATE\\s+TABLE\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?[`\"\\[]?)"
+                +Pattern.quote(tableName)+"(?=[`\"\\]]?\\s*\\()");
+        List<String> statements = new ArrayList<>();
+        boolean created = false;
+        for (String stmt : createStatements) {
+            Matcher m = createTable.matcher(stmt);
+            if (m.find()) {
+                stmt = m.replaceFirst("$1"+Matcher.quoteReplacement(newTable));
+                created = true;
+            }
+            statements.add(stmt);
+        }
+        if (!created) {
+            throw new DatabaseException("copySwap's createStatements must create "+tableName);
+        }
+        statements.add("INSERT INTO "+newTable+" ("+insertColumns+") SELECT "+selectExpressions+" FROM "+tableName);
+        statements.add("DROP TABLE "+tableName);
+        // since SQLite 3.26.0 a rename checks every view, and fails on those of the dropped table.
+        statements.add("PRAGMA legacy_alter_table = ON");
+        statements.add("ALTER TABLE "+newTable+" RENAME TO "+tableName);
+        statements.add("PRAGMA legacy_alter_table = OFF");
+        return new SquashedMigration(maxFromVersion, toVersion, statements.toArray(new String[statements.size()]));
+    }
+
+    /**
+     * Set the cost of the migration, relative to single-step migrations (which each cost 1).
+     * @param cost Cost of the migration.
+     * @return This migration, for chaining.
+     */
+    public SquashedMigration cost(int cost) {
+        mCost = cost;
+        return this;
+    }
+
+    /**
+     * Get the lowest version the migration can be applied to.
+     * @return Lowest applicable version.
+     */
+    public int getMinFromVersion() {
+        return mMinFromVersion;
+    }
+
+    /**
+     * Get the highest version the migration can be applied to.
+     * @return Highest applicable version.
+     */
+    public int getMaxFromVersion() {
+        return mMaxFromVersion;
+    }
+
+    /**
+     * Get the version of the table after the migration.
+     * @return Resulting version.
+     */
+    public int getToVersion() {
+        return mToVersion;
+    }
+
+    /**
+     * Get the SQL statements used to migrate the table.
+     * @return SQL statements.
+     */
+    public String[] getStatements() {
+        return mStatements;
+    }
+
+    /**
+     * Get the cost of the migration, relative to single-step migrations.
+     * @return Cost of the migration.
+     */
+    public int getCost() {
+        return mCost;
+    }
+
+    /**
+     * Whether or not the migration can be applied to a table at the given version.
+     * @param version Current version of the table.
+     * @return True if the migration applies.
+     */
+    public boolean appliesTo(int version) {
+        return version >= mMinFromVersion && version <= mMaxFromVersion;
+    }
+}
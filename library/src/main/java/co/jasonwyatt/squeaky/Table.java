@@ -1,5 +1,10 @@
 package co.jasonwyatt.squeaky;
 
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * SQLite table definition class.  Extend {@link Table} for each of your project's models.
  */
@@ -44,4 +49,70 @@ public abstract class Table {
      * @return SQL statements used to migrate the table.
      */
     public abstract String[] getMigration(int nextVersion);
+
+    /**
+     * Get migrations which take the table from a range of old versions directly to a newer version,
+     * so that databases which are far behind don't need to replay every intermediate migration.
+     * When the table needs migrating, Squeaky chooses the cheapest combination of these and the
+     * single-step migrations from {@link #getMigration(int)}.
+     * @return Squashed migrations for the table, or null if there are none (the default).
+     * @see SquashedMigration#copySwap(int, int, String, String[], String, String)
+     */
+    public SquashedMigration[] getSquashedMigrations() {
+        return null;
+    }
+
+    /**
+     * Get the indexes which should exist on the table.  When this returns a non-null value, Squeaky
+     * owns all of the table's explicitly-created indexes: every time the {@link Database} is
+     * prepared, missing indexes are created, indexes whose definitions have changed are rebuilt,
+     * and indexes which are no longer declared are dropped.
+     * <p>
+     * By default this returns null, leaving index management to {@link #getCreateTable()} and
+     * {@link #getMigration(int)}.
+     * @return Indexes for the table, or null if Squeaky shouldn't manage the table's indexes.
+     */
+    public Index[] getIndexes() {
+        return null;
+    }
+
+    /**
+     * Get the materialized aggregates which should be maintained for the table.  Squeaky creates a
+     * side table for each, keeps it up to date with triggers, and rebuilds it whenever its
+     * definition changes.  Aggregates which are no longer declared are dropped.
+     * <p>
+     * By default this returns null: the table has no aggregates.
+     * @return Aggregates for the table, or null.
+     */
+    public Aggregate[] getAggregates() {
+        return null;
+    }
+
+    /**
+     * Called while the {@link Database} is being prepared, after the table has been created,
+     * migrated or dropped.
+     * @param db SQLiteDatabase connection.
+     * @param previousVersion Version of the table before it was migrated, or -1 if it was just
+     *                        created.
+     */
+    void onPrepare(SQLiteDatabase db, int previousVersion) {
+        // nothing to do by default.
+    }
+
+    /**
+     * Get the statements used to drop the table when {@link #getVersion()} returns
+     * {@link #DROP_TABLE}.
+     * @return SQL statements used to drop the table.
+     */
+    String[] getDropStatements() {
+        List<String> stmts = new ArrayList<>();
+        stmts.add("DROP TABLE "+getName());
+        Aggregate[] aggregates = getAggregates();
+        if (aggregates != null) {
+            for (Aggregate aggregate : aggregates) {
+                stmts.add("DROP TABLE IF EXISTS "+aggregate.getName());
+            }
+        }
+        return stmts.toArray(new String[stmts.size()]);
+    }
 }
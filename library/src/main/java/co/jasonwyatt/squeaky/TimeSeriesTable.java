@@ -0,0 +1,494 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Definition of an append-only, time-partitioned table, for event logs and telemetry.  Rows are
+ * stored in one physical table per period of {@link #getPartitionMillis()} milliseconds (named
+ * <code>&lt;name&gt;_p&lt;period&gt;</code>), and {@link #getName()} is a read-only view over all
+ * of them:
+ * </p>
+ *
+ * <pre>
+ *     public class EventsTable extends TimeSeriesTable {
+ *         public String getName() { return "events"; }
+ *         public int getVersion() { return 1; }
+ *         public String[] getColumnDefinitions() {
+ *             return new String[] {"ts INTEGER NOT NULL", "name TEXT NOT NULL", "value REAL"};
+ *         }
+ *         public long getPartitionMillis() { return 24 * 60 * 60 * 1000; }
+ *         public long getRetentionMillis() { return 7 * 24 * 60 * 60 * 1000; }
+ *     }
+ *
+ *     events.insert(db, new String[] {"ts", "name", "value"}, System.currentTimeMillis(), "launch", 1.0);
+ *     Cursor c = db.query("SELECT name, value FROM events WHERE ts >= ?", since);
+ * </pre>
+ *
+ * <p>
+ * Write with {@link #insert(Database, String[], Object...)} and
+ * {@link #insertBatch(Database, String[], List)}, which create partitions as time moves on.  Data
+ * older than {@link #getRetentionMillis()} is expired by dropping whole partitions whenever the
+ * {@link Database} is prepared or a new partition is created, which costs the same no matter how
+ * many rows are expired and doesn't grow the WAL.
+ * </p>
+ *
+ * <p>
+ * The view can combine at most {@link #MAX_PARTITIONS} partitions, SQLite's limit on the number of
+ * <code>SELECT</code>s in a compound query.  Preparing the database fails if the retention time
+ * spans more periods than that, and writes which would need another partition beyond the limit
+ * (e.g. when rows are kept forever) throw a {@link DatabaseException}.
+ * </p>
+ */
+public abstract class TimeSeriesTable extends Table {
+    public static final int MAX_PARTITIONS = 500;
+
+    private static final String PARTITION_INFIX = "_p";
+    private static final Pattern TABLE_CONSTRAINT = Pattern.compile("^(CONSTRAINT|PRIMARY|UNIQUE|CHECK|FOREIGN)\\b", Pattern.CASE_INSENSITIVE);
+
+    private final SortedSet<Long> mPartitions = new TreeSet<>();
+
+    /**
+     * Get the column definitions of each partition, e.g. <code>"ts INTEGER NOT NULL"</code>.
+     * @return Column definitions, including {@link #getTimestampColumn()}.
+     */
+    public abstract String[] getColumnDefinitions();
+
+    /**
+     * Get the length of each partition's period.
+     * @return Length of a period, in milliseconds.
+     */
+    public abstract long getPartitionMillis();
+
+    /**
+     * Get how long rows are kept.  A partition is dropped once all of its period is older than
+     * this.  Must span fewer than {@link #MAX_PARTITIONS} periods.
+     * @return Retention time, in milliseconds, or 0 (the default) to keep rows forever, until
+     *         there are {@link #MAX_PARTITIONS} partitions.
+     */
+    public long getRetentionMillis() {
+        return 0;
+    }
+
+    /**
+     * Get the column holding each row's timestamp, in milliseconds since the epoch.
+     * @return Name of the timestamp column. Defaults to <code>"ts"</code>.
+     */
+    public String getTimestampColumn() {
+        return "ts";
+    }
+
+    /**
+     * Get the indexes to create on every partition.  The name of each index is prefixed with the
+     * name of the partition.
+     * @return Indexes for each partition, or null (the default).
+     */
+    public Index[] getPartitionIndexes() {
+        return null;
+    }
+
+    /**
+     * Get the SQL statements used to migrate a single partition to another version.  Partitions
+     * created after the migration use {@link #getColumnDefinitions()}.
+     * @param nextVersion Next version of the table.
+     * @param partition Name of the partition to migrate.
+     * @return SQL statements used to migrate the partition.
+     */
+    public String[] getPartitionMigration(int nextVersion, String partition) {
+        return new String[0];
+    }
+
+    /**
+     * Partitions and the view are created while preparing the database, so this returns no
+     * statements.
+     */
+    @Override
+    public final String[] getCreateTable() {
+        return new String[0];
+    }
+
+    /**
+     * Partitions are migrated with {@link #getPartitionMigration(int, String)}, so this returns no
+     * statements.
+     */
+    @Override
+    public final String[] getMigration(int nextVersion) {
+        return new String[0];
+    }
+
+    /**
+     * Use {@link #getPartitionIndexes()} instead: the view can't be indexed.
+     */
+    @Override
+    public final Index[] getIndexes() {
+        return null;
+    }
+
+    @Override
+    String[] getDropStatements() {
+        return new String[] {"DROP VIEW IF EXISTS "+getName()};
+    }
+
+    @Override
+    void onPrepare(SQLiteDatabase db, int previousVersion) {
+        synchronized (mPartitions) {
+            mPartitions.clear();
+            mPartitions.addAll(getExistingPartitions(db));
+            if (getVersion() == DROP_TABLE) {
+                for (long period : mPartitions) {
+                    execute(db, "DROP TABLE IF EXISTS "+getPartitionNameForPeriod(period));
+                }
+                mPartitions.clear();
+                return;
+            }
+            long retention = getRetentionMillis();
+            if (retention > 0 && (retention + getPartitionMillis() - 1) / getPartitionMillis() + 1 > MAX_PARTITIONS) {
+                throw new DatabaseException("Retention time of "+getName()+" spans more than "+(MAX_PARTITIONS - 1)
+                        +" periods, but its view can only combine "+MAX_PARTITIONS+" partitions.");
+            }
+
+            // re-created below, once the partitions are up to date.
+            execute(db, "DROP VIEW IF EXISTS "+getName());
+            if (previousVersion > 0) {
+                for (int version = previousVersion + 1; version <= getVersion(); version++) {
+                    for (long period : mPartitions) {
+                        for (String stmt : getPartitionMigration(version, getPartitionNameForPeriod(period))) {
+                            execute(db, stmt);
+                        }
+                    }
+                }
+            }
+
+            long current = getPeriod(now());
+            pruneExpired(db, current);
+            if (!mPartitions.contains(current)) {
+                if (mPartitions.size() < MAX_PARTITIONS) {
+                    createPartition(db, current);
+                } else {
+                    // still open for reads; writes to the new period fail until partitions expire.
+                    Logger.w(getName(), "has", mPartitions.size(), "partitions, not creating another.");
+                }
+            }
+            createView(db);
+        }
+    }
+
+    /**
+     * Insert a row in to the partition for its timestamp, creating the partition if needed.
+     * @param db Database containing the table.
+     * @param columns Columns to insert, including {@link #getTimestampColumn()}.
+     * @param values Values for each column.
+     * @return Row id of the row within its partition, or -1 if the row is older than the retention
+     *         time and was discarded.
+     */
+    public long insert(Database db, String[] columns, Object... values) {
+        long period = getPeriod(getTimestamp(columns, values));
+        if (isExpired(period, getPeriod(now()))) {
+            return -1;
+        }
+        DatabaseLock lock = db.getLock();
+        lock.lock("insert "+getName());
+        try {
+            return db.insert(getInsertStatement(ensurePartition(db, period), columns), values);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Insert rows in to their partitions in a single transaction, creating partitions as needed.
+     * @param db Database containing the table.
+     * @param columns Columns to insert, including {@link #getTimestampColumn()}.
+     * @param rows Values for each row.
+     * @return Number of rows inserted. Rows older than the retention time are discarded.
+     */
+    public int insertBatch(Database db, String[] columns, List<Object[]> rows) {
+        long currentPeriod = getPeriod(now());
+        List<Long> periods = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            periods.add(getPeriod(getTimestamp(columns, row)));
+        }
+
+        DatabaseLock lock = db.getLock();
+        lock.lock("insertBatch "+getName());
+        try {
+            Map<Long, String> statements = new LinkedHashMap<>();
+            List<String> stmts = new ArrayList<>(rows.size());
+            List<Object[]> args = new ArrayList<>(rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                long period = periods.get(i);
+                if (isExpired(period, currentPeriod)) {
+                    continue;
+                }
+                String stmt = statements.get(period);
+                if (stmt == null) {
+                    stmt = getInsertStatement(ensurePartition(db, period), columns);
+                    statements.put(period, stmt);
+                }
+                stmts.add(stmt);
+                args.add(rows.get(i));
+            }
+            if (stmts.isEmpty()) {
+                return 0;
+            }
+            db.updateBatch(stmts.toArray(new String[stmts.size()]), args.toArray(new Object[args.size()][]), true);
+            return stmts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Create the partition for the current period, if it doesn't exist yet, and drop expired
+     * partitions.  Called whenever the database is prepared and whenever writes create a new
+     * partition, so calling it is only needed for long-running processes which don't write
+     * regularly.
+     * @param db Database containing the table.
+     * @return Number of partitions dropped.
+     */
+    public int rollover(Database db) {
+        DatabaseLock lock = db.getLock();
+        lock.lock("rollover "+getName());
+        try {
+            synchronized (mPartitions) {
+                long current = getPeriod(now());
+                SQLiteDatabase sqlite = db.getWritableDB();
+                sqlite.beginTransaction();
+                try {
+                    int dropped = pruneExpired(sqlite, current);
+                    boolean created = !mPartitions.contains(current);
+                    if (created) {
+                        createPartition(sqlite, current);
+                    }
+                    if (created || dropped > 0) {
+                        createView(sqlite);
+                    }
+                    sqlite.setTransactionSuccessful();
+                    return dropped;
+                } finally {
+                    sqlite.endTransaction();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the names of the partitions which currently exist, oldest first.  Querying a partition
+     * directly skips the others, when only a known period is needed.
+     * @return Names of the partitions.
+     */
+    public List<String> getPartitionNames() {
+        synchronized (mPartitions) {
+            List<String> names = new ArrayList<>(mPartitions.size());
+            for (long period : mPartitions) {
+                names.add(getPartitionNameForPeriod(period));
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Get the name of the partition holding rows with the given timestamp.
+     * @param timestampMillis Timestamp, in milliseconds since the epoch.
+     * @return Name of the partition, which might not exist.
+     */
+    public String getPartitionName(long timestampMillis) {
+        return getPartitionNameForPeriod(getPeriod(timestampMillis));
+    }
+
+    /**
+     * Get the current time. Overridden by tests.
+     */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // must be called while holding the database's lock.
+    private String ensurePartition(Database db, long period) {
+        synchronized (mPartitions) {
+            if (mPartitions.contains(period)) {
+                return getPartitionNameForPeriod(period);
+            }
+            SQLiteDatabase sqlite = db.getWritableDB();
+            sqlite.beginTransaction();
+            try {
+                pruneExpired(sqlite, getPeriod(now()));
+                createPartition(sqlite, period);
+                createView(sqlite);
+                sqlite.setTransactionSuccessful();
+            } finally {
+                sqlite.endTransaction();
+            }
+            return getPartitionNameForPeriod(period);
+        }
+    }
+
+    private void createPartition(SQLiteDatabase db, long period) {
+        String partition = getPartitionNameForPeriod(period);
+        if (mPartitions.size() >= MAX_PARTITIONS) {
+            throw new DatabaseException("Unable to create "+partition+": "+getName()+" already has "+mPartitions.size()
+                    +" partitions, the most its view can combine.  Shorten the retention time or lengthen the partitions.");
+        }
+        Logger.d("Creating partition", partition, "of", getName());
+        execute(db, "CREATE TABLE IF NOT EXISTS "+partition+" ("+join(getColumnDefinitions())+")");
+        Index[] indexes = getPartitionIndexes();
+        if (indexes != null) {
+            for (Index index : indexes) {
+                Index partitionIndex = new Index(partition+"_"+index.getName(), index.getColumns()).where(index.getWhere());
+                if (index.isUnique()) {
+                    partitionIndex.unique();
+                }
+                execute(db, partitionIndex.getCreateStatement(partition).replaceFirst("INDEX ", "INDEX IF NOT EXISTS "));
+            }
+        }
+        mPartitions.add(period);
+    }
+
+    private int pruneExpired(SQLiteDatabase db, long currentPeriod) {
+        int dropped = 0;
+        Iterator<Long> periods = mPartitions.iterator();
+        while (periods.hasNext()) {
+            long period = periods.next();
+            if (!isExpired(period, currentPeriod)) {
+                // partitions are sorted, so the rest are newer.
+                break;
+            }
+            Logger.d("Dropping expired partition", getPartitionNameForPeriod(period), "of", getName());
+            execute(db, "DROP TABLE IF EXISTS "+getPartitionNameForPeriod(period));
+            periods.remove();
+            dropped++;
+        }
+        return dropped;
+    }
+
+    private void createView(SQLiteDatabase db) {
+        // columns added to older partitions by migrations come last, so name them instead of *.
+        String columns = join(getColumnNames());
+        StringBuilder view = new StringBuilder("CREATE VIEW ").append(getName()).append(" AS ");
+        boolean first = true;
+        for (long period : mPartitions) {
+            if (!first) {
+                view.append(" UNION ALL ");
+            }
+            view.append("SELECT ").append(columns).append(" FROM ").append(getPartitionNameForPeriod(period));
+            first = false;
+        }
+        execute(db, "DROP VIEW IF EXISTS "+getName());
+        execute(db, view.toString());
+    }
+
+    /**
+     * Get the names of the columns declared by {@link #getColumnDefinitions()}, skipping table
+     * constraints.
+     */
+    String[] getColumnNames() {
+        List<String> names = new ArrayList<>();
+        for (String definition : getColumnDefinitions()) {
+            String trimmed = definition.trim();
+            if (trimmed.isEmpty() || TABLE_CONSTRAINT.matcher(trimmed).find()) {
+                continue;
+            }
+            char quote = trimmed.charAt(0);
+            int end;
+            if (quote == '"' || quote == '`' || quote == '[') {
+                end = trimmed.indexOf(quote == '[' ? ']' : quote, 1) + 1;
+                if (end == 0) {
+                    throw new DatabaseException("Unterminated column name in "+definition);
+                }
+            } else {
+                end = 0;
+                while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+                    end++;
+                }
+            }
+            names.add(trimmed.substring(0, end));
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    private boolean isExpired(long period, long currentPeriod) {
+        long retention = getRetentionMillis();
+        // the current period is never expired, whatever the retention time.
+        return retention > 0 && period < currentPeriod && (period + 1) * getPartitionMillis() <= now() - retention;
+    }
+
+    private long getPeriod(long timestampMillis) {
+        return timestampMillis / getPartitionMillis();
+    }
+
+    private String getPartitionNameForPeriod(long period) {
+        return getName()+PARTITION_INFIX+period;
+    }
+
+    private long getTimestamp(String[] columns, Object[] values) {
+        if (values.length != columns.length) {
+            throw new DatabaseException("values.length != columns.length");
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(getTimestampColumn())) {
+                if (!(values[i] instanceof Number) || ((Number) values[i]).longValue() < 0) {
+                    throw new DatabaseException("Timestamp of "+getName()+" must be a non-negative number, was "+values[i]);
+                }
+                return ((Number) values[i]).longValue();
+            }
+        }
+        throw new DatabaseException("Rows written to "+getName()+" must include "+getTimestampColumn());
+    }
+
+    private List<Long> getExistingPartitions(SQLiteDatabase db) {
+        List<Long> result = new ArrayList<>();
+        String prefix = getName()+PARTITION_INFIX;
+        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND substr(name, 1, ?) = ?", new String[] {Integer.toString(prefix.length()), prefix});
+        try {
+            while (c.moveToNext()) {
+                String suffix = c.getString(0).substring(prefix.length());
+                try {
+                    result.add(Long.parseLong(suffix));
+                } catch (NumberFormatException e) {
+                    // not one of ours.
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    private static String getInsertStatement(String partition, String[] columns) {
+        StringBuilder sb = new StringBuilder("INSERT INTO ").append(partition).append(" (").append(join(columns)).append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sb.append(i > 0 ? ", ?" : "?");
+        }
+        return sb.append(")").toString();
+    }
+
+    private static void execute(SQLiteDatabase db, String stmt) {
+        Logger.i(stmt+";");
+        db.execSQL(stmt);
+    }
+
+    private static String join(String[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,28 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Cursor handed out in place of a cursor tracked by a {@link ResourceTracker}, telling the tracker
+ * when it's closed.
+ */
+final class TrackedCursor extends CursorWrapper {
+    private final ResourceTracker mTracker;
+    private ResourceTracker.Tracked mTracked;
+
+    TrackedCursor(Cursor cursor, ResourceTracker tracker) {
+        super(cursor);
+        mTracker = tracker;
+    }
+
+    void setTracked(ResourceTracker.Tracked tracked) {
+        mTracked = tracked;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mTracker.onClosed(mTracked);
+    }
+}
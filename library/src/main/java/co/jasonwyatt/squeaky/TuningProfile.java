@@ -0,0 +1,269 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * A set of connection settings (journal mode and PRAGMAs) which Squeaky applies when it opens a
+ * {@link Database}.  Start from one of the presets and adjust as needed:
+ * </p>
+ *
+ * <pre>
+ *     db.setTuningProfile(TuningProfile.readHeavy().mmapSize(128 * 1024 * 1024));
+ * </pre>
+ *
+ * <p>
+ * Settings which are left unset keep SQLite's (or Android's) defaults.  Note that
+ * <code>page_size</code> only takes effect for databases which haven't been created yet.
+ * </p>
+ *
+ * <p>
+ * The journal mode and page size belong to the database file, but the other PRAGMAs only affect
+ * the connection they run on.  They are applied to the database's primary connection, which runs
+ * every write and transaction, and to the reader connections Squeaky opens itself for
+ * {@link Database#readSession()} and
+ * {@link Database#parallelScan(String, String, String, Object[], ScanAccumulator)}.  With
+ * write-ahead logging, Android may run other reads on extra connections from its own pool, which
+ * can't be reached from here and keep Android's defaults.
+ * </p>
+ */
+public class TuningProfile {
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+    public static final String TEMP_STORE_DEFAULT = "DEFAULT";
+    public static final String TEMP_STORE_FILE = "FILE";
+    public static final String TEMP_STORE_MEMORY = "MEMORY";
+
+    private static final String[] REPORTED_PRAGMAS = {
+            "journal_mode", "synchronous", "cache_size", "mmap_size", "page_size", "temp_store"
+    };
+
+    private Boolean mWriteAheadLogging;
+    private String mSynchronous;
+    private Integer mCacheSize;
+    private Long mMmapSize;
+    private Integer mPageSize;
+    private String mTempStore;
+    private final Map<String, String> mPragmas = new LinkedHashMap<>();
+
+    /**
+     * Preset for databases which are mostly read: WAL, a large page cache and memory-mapped I/O.
+     * @return New profile.
+     */
+    public static TuningProfile readHeavy() {
+        return new TuningProfile()
+                .writeAheadLogging(true)
+                .synchronous(SYNCHRONOUS_NORMAL)
+                .cacheSize(-8 * 1024)
+                .mmapSize(64L * 1024 * 1024)
+                .tempStore(TEMP_STORE_MEMORY);
+    }
+
+    /**
+     * Preset for databases with frequent writes: WAL with <code>synchronous=NORMAL</code>, so
+     * commits don't wait on an fsync, and a moderate page cache.
+     * @return New profile.
+     */
+    public static TuningProfile writeHeavy() {
+        return new TuningProfile()
+                .writeAheadLogging(true)
+                .synchronous(SYNCHRONOUS_NORMAL)
+                .cacheSize(-4 * 1024)
+                .mmapSize(32L * 1024 * 1024)
+                .pageSize(4096)
+                .tempStore(TEMP_STORE_MEMORY);
+    }
+
+    /**
+     * Preset for memory-constrained devices: a small page cache, no memory-mapped I/O and temporary
+     * tables on disk.
+     * @return New profile.
+     */
+    public static TuningProfile lowMemory() {
+        return new TuningProfile()
+                .writeAheadLogging(true)
+                .synchronous(SYNCHRONOUS_NORMAL)
+                .cacheSize(-512)
+                .mmapSize(0)
+                .tempStore(TEMP_STORE_FILE);
+    }
+
+    /**
+     * Enable or disable write-ahead logging.
+     * @param enabled Whether or not to use WAL.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile writeAheadLogging(boolean enabled) {
+        mWriteAheadLogging = enabled;
+        return this;
+    }
+
+    /**
+     * Set <code>PRAGMA synchronous</code>.
+     * @param mode One of {@link #SYNCHRONOUS_OFF}, {@link #SYNCHRONOUS_NORMAL}, or
+     *             {@link #SYNCHRONOUS_FULL}.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile synchronous(String mode) {
+        mSynchronous = mode;
+        return this;
+    }
+
+    /**
+     * Set <code>PRAGMA cache_size</code>.
+     * @param cacheSize Positive values are a number of pages, negative values are KiB.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile cacheSize(int cacheSize) {
+        mCacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Set <code>PRAGMA mmap_size</code>, the number of bytes of the database file to access through
+     * memory-mapped I/O.  Requires SQLite 3.7.17 (Android 5.0) or higher, and is ignored otherwise.
+     * @param bytes Number of bytes to map. 0 disables memory-mapped I/O.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile mmapSize(long bytes) {
+        mMmapSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set <code>PRAGMA page_size</code>. Only takes effect when the database is first created.
+     * @param bytes Page size, a power of two between 512 and 65536.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile pageSize(int bytes) {
+        mPageSize = bytes;
+        return this;
+    }
+
+    /**
+     * Set <code>PRAGMA temp_store</code>.
+     * @param mode One of {@link #TEMP_STORE_DEFAULT}, {@link #TEMP_STORE_FILE}, or
+     *             {@link #TEMP_STORE_MEMORY}.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile tempStore(String mode) {
+        mTempStore = mode;
+        return this;
+    }
+
+    /**
+     * Set an arbitrary PRAGMA on each connection.
+     * @param name Name of the PRAGMA.
+     * @param value Value to assign to it.
+     * @return This profile, for chaining.
+     */
+    public TuningProfile pragma(String name, String value) {
+        mPragmas.put(name, value);
+        return this;
+    }
+
+    /**
+     * Get whether or not the profile enables write-ahead logging.
+     * @return True if WAL is enabled, false if it is disabled, null if the profile doesn't care.
+     */
+    public Boolean getWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    /**
+     * Apply the profile to a connection.  Called by {@link DatabaseHelper#onConfigure(SQLiteDatabase)}
+     * for the primary connection, and by Squeaky for each reader connection it opens.
+     * @param db Connection to configure.
+     */
+    public void apply(SQLiteDatabase db) {
+        if (!db.isReadOnly()) {
+            // the page size can't change once the database is in WAL mode, so it goes first.
+            if (mPageSize != null) {
+                pragma(db, "page_size", mPageSize.toString());
+            }
+            if (Boolean.TRUE.equals(mWriteAheadLogging)) {
+                db.enableWriteAheadLogging();
+            } else if (Boolean.FALSE.equals(mWriteAheadLogging) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                db.disableWriteAheadLogging();
+            }
+        }
+        if (mSynchronous != null) {
+            pragma(db, "synchronous", mSynchronous);
+        }
+        if (mCacheSize != null) {
+            pragma(db, "cache_size", mCacheSize.toString());
+        }
+        if (mMmapSize != null) {
+            pragma(db, "mmap_size", mMmapSize.toString());
+        }
+        if (mTempStore != null) {
+            pragma(db, "temp_store", mTempStore);
+        }
+        for (Map.Entry<String, String> entry : mPragmas.entrySet()) {
+            pragma(db, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Read the values of the settings managed by the profile which are actually in effect on a
+     * connection.
+     * @param db Connection to inspect.
+     * @return Mapping from PRAGMA name to its current value.
+     */
+    public Map<String, String> report(SQLiteDatabase db) {
+        List<String> names = new ArrayList<>();
+        for (String name : REPORTED_PRAGMAS) {
+            names.add(name);
+        }
+        names.addAll(mPragmas.keySet());
+        return report(db, names);
+    }
+
+    /**
+     * Read the values of the standard tuning PRAGMAs on a connection.
+     * @param db Connection to inspect.
+     * @return Mapping from PRAGMA name to its current value.
+     */
+    static Map<String, String> reportDefaults(SQLiteDatabase db) {
+        List<String> names = new ArrayList<>();
+        for (String name : REPORTED_PRAGMAS) {
+            names.add(name);
+        }
+        return report(db, names);
+    }
+
+    private static Map<String, String> report(SQLiteDatabase db, List<String> names) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String name : names) {
+            Cursor c = db.rawQuery("PRAGMA "+name, null);
+            try {
+                result.put(name, c.moveToFirst() ? c.getString(0) : null);
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    private static void pragma(SQLiteDatabase db, String name, String value) {
+        String stmt = "PRAGMA "+name+" = "+value;
+        Logger.i(stmt+";");
+        // some PRAGMAs (e.g. mmap_size) return their new value, which execSQL doesn't allow.
+        Cursor c = db.rawQuery(stmt, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * Generates, caches, and runs the statements behind {@link Database#upsert(String, String[], Map)}.
+ * <p>
+ * On SQLite 3.24.0 (Android 11) and higher, each row is written with a single
+ * <code>INSERT ... ON CONFLICT (keys) DO UPDATE</code>.  On older versions, an
+ * <code>INSERT OR IGNORE</code> is tried first and an <code>UPDATE</code> by key is only run if the
+ * insert was ignored, both inside the caller's transaction.
+ * <p>
+ * The <code>rowid</code> of an inserted row comes straight from the insert.  An update leaves
+ * <code>last_insert_rowid()</code> unchanged, so a row which was updated (or whose insert returned
+ * the same value as the previous one) is looked up by key instead.
+ */
+final class Upserter {
+    private static final int[] NATIVE_UPSERT_VERSION = {3, 24, 0};
+
+    private final boolean mNative;
+    private final ConcurrentHashMap<String, Statements> mCache = new ConcurrentHashMap<>();
+
+    Upserter(String sqliteVersion) {
+        mNative = Database.compareVersions(sqliteVersion, NATIVE_UPSERT_VERSION) >= 0;
+        Logger.d("SQLite", sqliteVersion, mNative ? "supports" : "does not support", "ON CONFLICT DO UPDATE");
+    }
+
+    boolean isNative() {
+        return mNative;
+    }
+
+    /**
+     * Upsert rows, compiling each distinct statement once. Must be called inside a transaction.
+     * @return The <code>rowid</code> of each row.
+     */
+    long[] upsert(SQLiteDatabase db, String table, String[] keyColumns, List<? extends Map<String, ?>> rows) {
+        long[] rowids = new long[rows.size()];
+        Map<Statements, Compiled> compiled = new HashMap<>();
+        try {
+            long lastInsertRowid = mNative ? lastInsertRowid(db) : -1;
+            for (int i = 0; i < rows.size(); i++) {
+                Map<String, ?> values = rows.get(i);
+                Statements statements = getStatements(table, keyColumns, values);
+                Compiled c = compiled.get(statements);
+                if (c == null) {
+                    c = new Compiled(db, statements);
+                    compiled.put(statements, c);
+                }
+                Object[] keyArgs = getKeyArgs(statements, values);
+
+                long rowid = insert(c, statements, values);
+                if (mNative) {
+                    // an insert which turned in to an update doesn't change last_insert_rowid, so
+                    // only a new value means the row was inserted.
+                    boolean inserted = rowid != -1 && rowid != lastInsertRowid;
+                    if (rowid != -1) {
+                        lastInsertRowid = rowid;
+                    }
+                    rowids[i] = inserted ? rowid : lookup(c, statements, keyArgs);
+                } else if (rowid != -1) {
+                    rowids[i] = rowid;
+                } else {
+                    update(c, statements, values, keyArgs);
+                    rowids[i] = lookup(c, statements, keyArgs);
+                }
+            }
+        } finally {
+            for (Compiled c : compiled.values()) {
+                c.close();
+            }
+        }
+        return rowids;
+    }
+
+    private static Object[] getKeyArgs(Statements statements, Map<String, ?> values) {
+        Object[] keyArgs = new Object[statements.keyColumns.length];
+        for (int i = 0; i < keyArgs.length; i++) {
+            keyArgs[i] = values.get(statements.keyColumns[i]);
+            if (keyArgs[i] == null) {
+                throw new DatabaseException("Upsert key column "+statements.keyColumns[i]+" must not be null.");
+            }
+        }
+        return keyArgs;
+    }
+
+    private static long insert(Compiled c, Statements statements, Map<String, ?> values) {
+        Object[] columnArgs = new Object[statements.columns.length];
+        for (int i = 0; i < columnArgs.length; i++) {
+            columnArgs[i] = values.get(statements.columns[i]);
+        }
+        c.insert.clearBindings();
+        Database.bindArgs(c.insert, columnArgs);
+        long rowid = c.insert.executeInsert();
+        Logger.i(statements.insert+";", columnArgs);
+        return rowid;
+    }
+
+    private static void update(Compiled c, Statements statements, Map<String, ?> values, Object[] keyArgs) {
+        if (statements.update == null) {
+            return;
+        }
+        Object[] updateArgs = new Object[statements.updateColumns.length + keyArgs.length];
+        for (int i = 0; i < statements.updateColumns.length; i++) {
+            updateArgs[i] = values.get(statements.updateColumns[i]);
+        }
+        System.arraycopy(keyArgs, 0, updateArgs, statements.updateColumns.length, keyArgs.length);
+        SQLiteStatement update = c.getUpdate();
+        update.clearBindings();
+        Database.bindArgs(update, updateArgs);
+        update.executeUpdateDelete();
+        Logger.i(statements.update+";", updateArgs);
+    }
+
+    private static long lookup(Compiled c, Statements statements, Object[] keyArgs) {
+        SQLiteStatement lookup = c.getLookup();
+        lookup.clearBindings();
+        Database.bindArgs(lookup, keyArgs);
+        try {
+            return lookup.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // the insert was ignored for a reason other than a conflict on the keys.
+            throw new DatabaseException("Upsert in to "+statements.table+" neither inserted nor updated a row for keys "+Arrays.toString(keyArgs), e);
+        }
+    }
+
+    private static long lastInsertRowid(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement("SELECT last_insert_rowid()");
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private Statements getStatements(String table, String[] keyColumns, Map<String, ?> values) {
+        StringBuilder cacheKey = new StringBuilder(table).append('|');
+        for (String key : keyColumns) {
+            cacheKey.append(key).append(',');
+        }
+        cacheKey.append('|');
+        for (String column : values.keySet()) {
+            cacheKey.append(column).append(',');
+        }
+        String key = cacheKey.toString();
+        Statements statements = mCache.get(key);
+        if (statements == null) {
+            statements = new Statements(table, keyColumns, values.keySet().toArray(new String[values.size()]), mNative);
+            Statements existing = mCache.putIfAbsent(key, statements);
+            if (existing != null) {
+                statements = existing;
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Generated SQL for one combination of table, key columns and value columns.
+     */
+    private static final class Statements {
+        final String table;
+        final String[] keyColumns;
+        final String[] columns;
+        final String[] updateColumns;
+        final String insert;
+        final String update;
+        final String lookup;
+
+        Statements(String table, String[] keyColumns, String[] columns, boolean nativeUpsert) {
+            this.table = table;
+            this.keyColumns = keyColumns;
+            this.columns = columns;
+
+            List<String> keys = Arrays.asList(keyColumns);
+            List<String> updateColumns = new ArrayList<>();
+            for (String column : columns) {
+                if (!keys.contains(column)) {
+                    updateColumns.add(column);
+                }
+            }
+            for (String key : keyColumns) {
+                if (!Arrays.asList(columns).contains(key)) {
+                    throw new DatabaseException("Upsert values must include key column "+key);
+                }
+            }
+            this.updateColumns = updateColumns.toArray(new String[updateColumns.size()]);
+
+            StringBuilder sb = new StringBuilder(nativeUpsert ? "INSERT INTO " : "INSERT OR IGNORE INTO ");
+            sb.append(table).append(" (").append(join(columns, ", ", "")).append(") VALUES (");
+            for (int i = 0; i < columns.length; i++) {
+                sb.append(i == 0 ? "?" : ", ?");
+            }
+            sb.append(')');
+            if (nativeUpsert) {
+                sb.append(" ON CONFLICT (").append(join(keyColumns, ", ", "")).append(')');
+                if (this.updateColumns.length == 0) {
+                    sb.append(" DO NOTHING");
+                } else {
+                    sb.append(" DO UPDATE SET ");
+                    for (int i = 0; i < this.updateColumns.length; i++) {
+                        if (i > 0) {
+                            sb.append(", ");
+                        }
+                        sb.append(this.updateColumns[i]).append(" = excluded.").append(this.updateColumns[i]);
+                    }
+                }
+                update = null;
+            } else if (this.updateColumns.length > 0) {
+                update = "UPDATE "+table+" SET "+join(this.updateColumns, ", ", " = ?")+" WHERE "+join(keyColumns, " AND ", " = ?");
+            } else {
+                update = null;
+            }
+            insert = sb.toString();
+            lookup = "SELECT rowid FROM "+table+" WHERE "+join(keyColumns, " AND ", " = ?");
+        }
+
+        private static String join(String[] columns, String separator, String suffix) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sb.append(separator);
+                }
+                sb.append(columns[i]).append(suffix);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Statements compiled for the duration of a single upsert call.  The update and lookup are only
+     * compiled once a row needs them.
+     */
+    private static final class Compiled {
+        final SQLiteStatement insert;
+        private final SQLiteDatabase mDb;
+        private final Statements mStatements;
+        private SQLiteStatement mUpdate;
+        private SQLiteStatement mLookup;
+
+        Compiled(SQLiteDatabase db, Statements statements) {
+            mDb = db;
+            mStatements = statements;
+            insert = db.compileStatement(statements.insert);
+        }
+
+        SQLiteStatement getUpdate() {
+            if (mUpdate == null) {
+                mUpdate = mDb.compileStatement(mStatements.update);
+            }
+            return mUpdate;
+        }
+
+        SQLiteStatement getLookup() {
+            if (mLookup == null) {
+                mLookup = mDb.compileStatement(mStatements.lookup);
+            }
+            return mLookup;
+        }
+
+        void close() {
+            insert.close();
+            if (mUpdate != null) {
+                mUpdate.close();
+            }
+            if (mLookup != null) {
+                mLookup.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Speeds up the first queries after launch.  For a few seconds after {@link Database#prepare()},
+ * the profile records the distinct statements the database runs and then saves them to a file.
+ * On the next launch, a background thread reads that file and, one statement at a time:
+ * </p>
+ *
+ * <ul>
+ *     <li>compiles it, so it's already in the connection's prepared statement cache when the app
+ *     first runs it, and</li>
+ *     <li>for queries, reads the first rows of each table and index the query plan uses, so their
+ *     pages are in the page cache.</li>
+ * </ul>
+ *
+ * <p>
+ * Attach a profile with {@link Database#setWarmupProfile(WarmupProfile)} before preparing the
+ * database.  Warming up releases the database's lock between steps, so it never holds up the
+ * app's own queries for long.
+ * </p>
+ */
+public class WarmupProfile {
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int MAX_STATEMENT_LENGTH = 8192;
+    private static final Pattern RECORDED = Pattern.compile("^\\s*(SELECT|WITH|INSERT|REPLACE|UPDATE|DELETE)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern QUERY = Pattern.compile("^\\s*(SELECT|WITH)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PLAN_TABLE = Pattern.compile("\\b(?:SCAN|SEARCH)(?: TABLE)? (\\w+)");
+    private static final Pattern PLAN_INDEX = Pattern.compile("\\bUSING (COVERING )?INDEX (\\w+)");
+
+    private File mFile;
+    private long mRecordMillis = 5000;
+    private int mMaxStatements = 25;
+    private boolean mWarmPages = true;
+    private int mMaxWarmRows = 1000;
+
+    // guards mExecutor, mRecorded and mRecordUntil.
+    private final Object mLock = new Object();
+    private ScheduledExecutorService mExecutor;
+    private Set<String> mRecorded;
+    private long mRecordUntil;
+    private volatile List<String> mProfiledStatements = Collections.emptyList();
+    private volatile int mWarmedStatements = -1;
+    private volatile List<String> mWarmedObjects = Collections.emptyList();
+
+    /**
+     * Set the file the profile is saved to.  Defaults to a file next to the database named
+     * <code>&lt;database&gt;-warmup</code>.
+     * @param file File to save the profile to.
+     * @return This profile, for chaining.
+     */
+    public WarmupProfile file(File file) {
+        mFile = file;
+        return this;
+    }
+
+    /**
+     * Set how long after {@link Database#prepare()} statements are recorded. Defaults to 5 seconds.
+     * @param millis Recording window, in milliseconds.
+     * @return This profile, for chaining.
+     */
+    public WarmupProfile recordFor(long millis) {
+        mRecordMillis = millis;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of statements recorded.  Defaults to 25, the size of
+     * {@link SQLiteDatabase}'s default prepared statement cache: warming more statements than the
+     * cache holds only evicts the first ones again.
+     * @param count Maximum number of statements.
+     * @return This profile, for chaining.
+     */
+    public WarmupProfile maxStatements(int count) {
+        mMaxStatements = count;
+        return this;
+    }
+
+    /**
+     * Enable or disable reading the pages of the tables and indexes the recorded queries use.
+     * Defaults to enabled.
+     * @param enabled Whether or not to warm pages.
+     * @return This profile, for chaining.
+     */
+    public WarmupProfile warmPages(boolean enabled) {
+        mWarmPages = enabled;
+        return this;
+    }
+
+    /**
+     * Set how many rows of each table or index are read when warming pages. Defaults to 1000.
+     * @param rows Maximum number of rows to read.
+     * @return This profile, for chaining.
+     */
+    public WarmupProfile maxWarmRows(int rows) {
+        mMaxWarmRows = rows;
+        return this;
+    }
+
+    /**
+     * Get the statements loaded from the file when the database was prepared, i.e. the ones being
+     * warmed up.
+     * @return Statements, in the order they first ran.
+     */
+    public List<String> getProfiledStatements() {
+        return mProfiledStatements;
+    }
+
+    /**
+     * Get the number of statements which were compiled by the latest warm up.
+     * @return Number of statements, or -1 if the warm up hasn't finished yet.
+     */
+    public int getWarmedStatementCount() {
+        return mWarmedStatements;
+    }
+
+    /**
+     * Get the names of the tables and indexes whose pages were read by the latest warm up.
+     * @return Names of the tables and indexes.
+     */
+    public List<String> getWarmedObjects() {
+        return mWarmedObjects;
+    }
+
+    void start(final Database database, File defaultFile) {
+        synchronized (mLock) {
+            if (mExecutor != null) {
+                return;
+            }
+            if (mFile == null) {
+                mFile = defaultFile;
+            }
+            mRecorded = new LinkedHashSet<>();
+            mRecordUntil = SystemClock.elapsedRealtime() + mRecordMillis;
+            mWarmedStatements = -1;
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Squeaky-Warmup");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm(database);
+                }
+            });
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, mRecordMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop warming up, and save the statements recorded so far if still recording.
+     */
+    void stop() {
+        synchronized (mLock) {
+            if (mExecutor != null) {
+                mExecutor.shutdownNow();
+                mExecutor = null;
+            }
+        }
+        save();
+    }
+
+    void record(String stmt) {
+        synchronized (mLock) {
+            if (mRecorded == null || mRecorded.size() >= mMaxStatements) {
+                return;
+            }
+            if (SystemClock.elapsedRealtime() > mRecordUntil) {
+                return;
+            }
+            if (stmt.length() <= MAX_STATEMENT_LENGTH && RECORDED.matcher(stmt).find()) {
+                mRecorded.add(stmt.trim());
+            }
+        }
+    }
+
+    private void save() {
+        List<String> statements;
+        File file;
+        synchronized (mLock) {
+            if (mRecorded == null) {
+                return;
+            }
+            statements = new ArrayList<>(mRecorded);
+            mRecorded = null;
+            file = mFile;
+        }
+        if (statements.isEmpty()) {
+            // keep the previous profile rather than forgetting it.
+            return;
+        }
+        File temp = new File(file.getPath()+"-tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_FORMAT_VERSION);
+                out.writeInt(statements.size());
+                for (String stmt : statements) {
+                    out.writeUTF(stmt);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to move warmup profile in to place at "+file);
+            }
+            Logger.d("Saved warmup profile of", statements.size(), "statements to", file);
+        } catch (IOException e) {
+            Logger.e(e, "Unable to save warmup profile to", file);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+        }
+    }
+
+    private List<String> load() {
+        File file = mFile;
+        if (!file.exists()) {
+            return Collections.emptyList();
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_FORMAT_VERSION) {
+                    return Collections.emptyList();
+                }
+                int count = in.readInt();
+                List<String> statements = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    statements.add(in.readUTF());
+                }
+                return statements;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Logger.e(e, "Unable to read warmup profile from", file);
+            return Collections.emptyList();
+        }
+    }
+
+    private void warm(Database database) {
+        try {
+            warmUp(database);
+        } catch (IllegalStateException e) {
+            // the database was closed part-way through.
+            Logger.d("Warm up of", database.getName(), "stopped:", e.getMessage());
+        }
+    }
+
+    private void warmUp(Database database) {
+        long start = SystemClock.elapsedRealtime();
+        List<String> statements = load();
+        mProfiledStatements = Collections.unmodifiableList(statements);
+
+        int compiled = 0;
+        Set<String> objects = new LinkedHashSet<>();
+        for (String stmt : statements) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (compile(database, stmt)) {
+                compiled++;
+                if (mWarmPages && QUERY.matcher(stmt).find()) {
+                    objects.addAll(getPlannedObjects(database, stmt));
+                }
+            }
+        }
+
+        List<String> warmed = new ArrayList<>();
+        if (!objects.isEmpty()) {
+            // index name -> table name, and table name -> null.
+            Map<String, String> schema = getSchema(database);
+            for (String object : objects) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                if (!schema.containsKey(object)) {
+                    continue;
+                }
+                String table = schema.get(object);
+                String stmt = table == null
+                        ? "SELECT count(*) FROM (SELECT rowid FROM "+object+" NOT INDEXED LIMIT "+mMaxWarmRows+")"
+                        : "SELECT count(*) FROM (SELECT 1 FROM "+table+" INDEXED BY "+object+" LIMIT "+mMaxWarmRows+")";
+                if (readAll(database, stmt)) {
+                    warmed.add(object);
+                }
+            }
+        }
+        mWarmedObjects = Collections.unmodifiableList(warmed);
+        mWarmedStatements = compiled;
+        Logger.d("Warmed up", compiled, "statements and", warmed.size(), "tables/indexes of",
+                database.getName(), "in", (SystemClock.elapsedRealtime() - start)+"ms");
+    }
+
+    private static boolean compile(Database database, String stmt) {
+        DatabaseLock lock = database.getLock();
+        lock.lock(stmt);
+        try {
+            SQLiteStatement statement = database.getReadableDB().compileStatement(stmt);
+            statement.close();
+            return true;
+        } catch (SQLException e) {
+            // e.g. the table has since been dropped.
+            Logger.d("Not warming up", stmt, e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Set<String> getPlannedObjects(Database database, String stmt) {
+        Set<String> objects = new LinkedHashSet<>();
+        DatabaseLock lock = database.getLock();
+        lock.lock("EXPLAIN QUERY PLAN "+stmt);
+        try {
+            // unbound parameters are null, which is fine for planning.
+            Cursor c = database.getReadableDB().rawQuery("EXPLAIN QUERY PLAN "+stmt, null);
+            try {
+                int detail = c.getColumnIndex("detail");
+                while (detail >= 0 && c.moveToNext()) {
+                    String line = c.getString(detail);
+                    Matcher index = PLAN_INDEX.matcher(line);
+                    if (index.find()) {
+                        objects.add(index.group(2));
+                        if (index.group(1) != null) {
+                            // covering indexes don't need the table's pages.
+                            continue;
+                        }
+                    }
+                    Matcher table = PLAN_TABLE.matcher(line);
+                    if (table.find()) {
+                        // may be an alias rather than a table; those are filtered out later.
+                        objects.add(table.group(1));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            Logger.d("Unable to plan", stmt, e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+        return objects;
+    }
+
+    private static Map<String, String> getSchema(Database database) {
+        Map<String, String> schema = new HashMap<>();
+        DatabaseLock lock = database.getLock();
+        lock.lock("SELECT FROM sqlite_master");
+        try {
+            Cursor c = database.getReadableDB().rawQuery("SELECT type, name, tbl_name FROM sqlite_master WHERE type IN ('table', 'index')", null);
+            try {
+                while (c.moveToNext()) {
+                    schema.put(c.getString(1), "index".equals(c.getString(0)) ? c.getString(2) : null);
+                }
+            } finally {
+                c.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return schema;
+    }
+
+    private static boolean readAll(Database database, String stmt) {
+        DatabaseLock lock = database.getLock();
+        lock.lock(stmt);
+        try {
+            Cursor c = database.getReadableDB().rawQuery(stmt, null);
+            try {
+                c.moveToFirst();
+                return true;
+            } finally {
+                c.close();
+            }
+        } catch (SQLException e) {
+            Logger.d("Unable to warm", stmt, e.getMessage());
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "WarmupProfile{file=%s, recordFor=%dms, maxStatements=%d, warmPages=%b}",
+                mFile, mRecordMillis, mMaxStatements, mWarmPages);
+    }
+}
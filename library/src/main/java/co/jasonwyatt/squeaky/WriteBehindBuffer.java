@@ -0,0 +1,465 @@
+package co.jasonwyatt.squeaky;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import co.jasonwyatt.squeaky.util.Logger;
+
+/**
+ * <p>
+ * Buffers frequent updates to the same rows of a table in memory, and writes them in batches.
+ * Create one with {@link Database#writeBehind(String, String)}:
+ * </p>
+ *
+ * <pre>
+ *     WriteBehindBuffer progress = db.writeBehind("downloads", "rowid")
+ *             .flushInterval(500)
+ *             .maxPendingKeys(100);
+ *
+ *     progress.increment(downloadId, "bytes_read", chunk.length);
+ *     progress.put(downloadId, Collections.singletonMap("updated_at", now));
+ * </pre>
+ *
+ * <p>
+ * Updates to the same key are coalesced until the buffer is flushed: values written with
+ * {@link #put(Object, Map)} are combined by the buffer's {@link Merger} (the last write wins by
+ * default) and values added with {@link #increment(Object, String, Number)} are summed.  Pending
+ * updates are flushed in a single transaction every {@link #flushInterval(long)} milliseconds,
+ * as soon as {@link #maxPendingKeys(int)} keys are pending, before the {@link Database} reads the
+ * table (through its queries, streams and scans, or when a {@link ReadSession} starts), and when the
+ * {@link Database} is closed.  A crash loses at most the updates of the last flush interval.  A
+ * read session only sees updates flushed before it started.
+ * </p>
+ *
+ * <p>
+ * Flushing only updates existing rows, so insert rows before buffering updates to them.  Don't
+ * update buffered columns directly through the {@link Database} as well: a later flush would
+ * overwrite those updates.
+ * </p>
+ */
+public class WriteBehindBuffer {
+    /**
+     * Keeps the most recent value.
+     */
+    public static final Merger LAST_WRITE_WINS = new Merger() {
+        @Override
+        public Object merge(String column, Object buffered, Object update) {
+            return update;
+        }
+    };
+
+    /**
+     * Keeps the largest numeric value, e.g. for "last seen" timestamps which may arrive out of
+     * order.  Non-numeric values are treated as with {@link #LAST_WRITE_WINS}.
+     */
+    public static final Merger MAX = new Merger() {
+        @Override
+        public Object merge(String column, Object buffered, Object update) {
+            if (buffered instanceof Number && update instanceof Number
+                    && ((Number) buffered).doubleValue() > ((Number) update).doubleValue()) {
+                return buffered;
+            }
+            return update;
+        }
+    };
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_MAX_PENDING_KEYS = 1000;
+
+    private final Database mDatabase;
+    private final String mTable;
+    private final String mKeyColumn;
+    private final Pattern mTableReference;
+    private final Object mLifecycleLock = new Object();
+    private long mFlushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private int mMaxPendingKeys = DEFAULT_MAX_PENDING_KEYS;
+    private Merger mMerger = LAST_WRITE_WINS;
+    private Map<Object, Pending> mPending = new LinkedHashMap<>();
+    private ScheduledExecutorService mExecutor;
+
+    WriteBehindBuffer(Database database, String table, String keyColumn) {
+        mDatabase = database;
+        mTable = table;
+        mKeyColumn = keyColumn;
+        mTableReference = Pattern.compile("\\b"+Pattern.quote(table)+"\\b", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * Set the longest time an update may stay in memory before it is written. This bounds the
+     * updates lost if the process dies. Defaults to one second.
+     * @param millis Flush interval, in milliseconds.
+     * @return This buffer, for chaining.
+     */
+    public WriteBehindBuffer flushInterval(long millis) {
+        synchronized (mLifecycleLock) {
+            mFlushIntervalMillis = millis;
+            if (mExecutor != null) {
+                // re-schedule with the new interval.
+                stop();
+                start();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Set how many keys may have pending updates before the buffer is flushed on the writing
+     * thread. Defaults to 1000.
+     * @param keys Maximum number of pending keys.
+     * @return This buffer, for chaining.
+     */
+    public WriteBehindBuffer maxPendingKeys(int keys) {
+        mMaxPendingKeys = keys;
+        return this;
+    }
+
+    /**
+     * Set how a value written with {@link #put(Object, Map)} is combined with a pending value for
+     * the same column. Defaults to {@link #LAST_WRITE_WINS}.
+     * @param merger Merger to use.
+     * @return This buffer, for chaining.
+     */
+    public WriteBehindBuffer merger(Merger merger) {
+        mMerger = merger;
+        return this;
+    }
+
+    /**
+     * Get the name of the buffered table.
+     * @return Name of the table.
+     */
+    public String getTable() {
+        return mTable;
+    }
+
+    /**
+     * Buffer an update to a row.
+     * @param key Value of the key column of the row to update.
+     * @param values Mapping from column name to new value.
+     */
+    public void put(Object key, Map<String, ?> values) {
+        boolean full;
+        synchronized (this) {
+            Pending pending = getOrCreatePending(key);
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                pending.set(entry.getKey(), entry.getValue(), mMerger);
+            }
+            full = mPending.size() >= mMaxPendingKeys;
+        }
+        afterWrite(full);
+    }
+
+    /**
+     * Buffer an increment of a numeric column of a row. Increments of the same column are summed,
+     * and written as <code>column = column + ?</code>.
+     * @param key Value of the key column of the row to update.
+     * @param column Column to increment.
+     * @param delta Amount to add.
+     */
+    public void increment(Object key, String column, Number delta) {
+        boolean full;
+        synchronized (this) {
+            getOrCreatePending(key).add(column, delta);
+            full = mPending.size() >= mMaxPendingKeys;
+        }
+        afterWrite(full);
+    }
+
+    /**
+     * Read columns of a row, as they will be once pending updates are flushed.
+     * @param key Value of the key column of the row.
+     * @param columns Columns to read.
+     * @return Mapping from column name to value, or null if the row doesn't exist.
+     */
+    public Map<String, Object> read(Object key, String... columns) {
+        key = normalizeKey(key);
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock("read "+mTable);
+        try {
+            if (!mDatabase.isPrepared()) {
+                throw new DatabaseException("Database "+mDatabase.getName()+" not prepared yet.");
+            }
+            StringBuilder sql = new StringBuilder("SELECT ");
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", " : "").append(columns[i]);
+            }
+            sql.append(" FROM ").append(mTable).append(" WHERE ").append(mKeyColumn).append(" = ?");
+            Map<String, Object> row = new LinkedHashMap<>();
+            // not Database#query(), which would flush this buffer.
+            Cursor c = mDatabase.getReadableDB().rawQuery(sql.toString(), Database.toQueryArgs(new Object[] {key}));
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    row.put(columns[i], getValue(c, i));
+                }
+            } finally {
+                c.close();
+            }
+            synchronized (this) {
+                Pending pending = mPending.get(key);
+                if (pending != null) {
+                    pending.applyTo(row);
+                }
+            }
+            return row;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of keys with pending updates.
+     * @return Number of pending keys.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Write all pending updates in a single transaction.
+     * @return Number of rows updated.
+     */
+    public int flush() {
+        DatabaseLock lock = mDatabase.getLock();
+        lock.lock("flush "+mTable);
+        try {
+            if (!mDatabase.isPrepared()) {
+                return 0;
+            }
+            Map<Object, Pending> flushing;
+            synchronized (this) {
+                if (mPending.isEmpty()) {
+                    return 0;
+                }
+                flushing = mPending;
+                mPending = new LinkedHashMap<>();
+            }
+
+            List<String> stmts = new ArrayList<>(flushing.size());
+            List<Object[]> args = new ArrayList<>(flushing.size());
+            for (Map.Entry<Object, Pending> entry : flushing.entrySet()) {
+                List<Object> stmtArgs = new ArrayList<>();
+                stmts.add(entry.getValue().getUpdate(mTable, mKeyColumn, stmtArgs));
+                stmtArgs.add(entry.getKey());
+                args.add(stmtArgs.toArray());
+            }
+            try {
+                int rows = mDatabase.updateBatch(stmts.toArray(new String[stmts.size()]), args.toArray(new Object[args.size()][]), true);
+                Logger.d("Flushed", flushing.size(), "buffered updates to", mTable);
+                return rows;
+            } catch (RuntimeException e) {
+                restore(flushing);
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush pending updates and stop buffering. The buffer can't be used afterwards.
+     */
+    public void close() {
+        mDatabase.removeWriteBehindBuffer(this);
+        stop();
+        flush();
+    }
+
+    /**
+     * Whether or not a query could read the buffered table.
+     */
+    boolean isReadBy(String stmt) {
+        return mTableReference.matcher(stmt).find();
+    }
+
+    void stop() {
+        synchronized (mLifecycleLock) {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+                mExecutor = null;
+            }
+        }
+    }
+
+    private void start() {
+        synchronized (mLifecycleLock) {
+            if (mExecutor != null) {
+                return;
+            }
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Squeaky-WriteBehind-"+mTable);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            mExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        Logger.e(e, "Error flushing buffered updates to", mTable);
+                    }
+                }
+            }, mFlushIntervalMillis, mFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void afterWrite(boolean full) {
+        start();
+        if (full) {
+            flush();
+        }
+    }
+
+    private Pending getOrCreatePending(Object key) {
+        if (key == null) {
+            throw new DatabaseException("Buffered updates to "+mTable+" need a key.");
+        }
+        key = normalizeKey(key);
+        Pending pending = mPending.get(key);
+        if (pending == null) {
+            pending = new Pending();
+            mPending.put(key, pending);
+        }
+        return pending;
+    }
+
+    /**
+     * Put updates which failed to flush back, underneath any made since.
+     */
+    private synchronized void restore(Map<Object, Pending> failed) {
+        Map<Object, Pending> newer = mPending;
+        mPending = failed;
+        for (Map.Entry<Object, Pending> entry : newer.entrySet()) {
+            Pending pending = getOrCreatePending(entry.getKey());
+            for (Map.Entry<String, Object> value : entry.getValue().mValues.entrySet()) {
+                pending.set(value.getKey(), value.getValue(), mMerger);
+            }
+            for (Map.Entry<String, Number> increment : entry.getValue().mIncrements.entrySet()) {
+                pending.add(increment.getKey(), increment.getValue());
+            }
+        }
+    }
+
+    /**
+     * Integer keys refer to the same rows whatever their boxed type.
+     */
+    private static Object normalizeKey(Object key) {
+        if (key instanceof Integer || key instanceof Short || key instanceof Byte) {
+            return ((Number) key).longValue();
+        }
+        return key;
+    }
+
+    private static Object getValue(Cursor c, int i) {
+        switch (c.getType(i)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.getLong(i);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.getDouble(i);
+            case Cursor.FIELD_TYPE_BLOB:
+                return c.getBlob(i);
+            default:
+                return c.getString(i);
+        }
+    }
+
+    private static Number sum(Number a, Number b) {
+        if (a == null) {
+            return b;
+        }
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float) {
+            return a.doubleValue() + b.doubleValue();
+        }
+        return a.longValue() + b.longValue();
+    }
+
+    /**
+     * Combines a buffered value with a newer one for the same column.
+     */
+    public interface Merger {
+        /**
+         * Combine two values.
+         * @param column Column the values are for.
+         * @param buffered Value waiting to be written.
+         * @param update Newer value.
+         * @return Value to buffer instead.
+         */
+        Object merge(String column, Object buffered, Object update);
+    }
+
+    /**
+     * Pending updates of a single row.
+     */
+    private static final class Pending {
+        final Map<String, Object> mValues = new LinkedHashMap<>();
+        final Map<String, Number> mIncrements = new LinkedHashMap<>();
+
+        void set(String column, Object value, Merger merger) {
+            // a new absolute value replaces any pending increment.
+            mIncrements.remove(column);
+            if (mValues.containsKey(column)) {
+                value = merger.merge(column, mValues.get(column), value);
+            }
+            mValues.put(column, value);
+        }
+
+        void add(String column, Number delta) {
+            Object value = mValues.get(column);
+            if (value instanceof Number) {
+                mValues.put(column, sum((Number) value, delta));
+            } else if (mValues.containsKey(column)) {
+                // NULL + delta is NULL, as in SQL.
+                return;
+            } else {
+                mIncrements.put(column, sum(mIncrements.get(column), delta));
+            }
+        }
+
+        void applyTo(Map<String, Object> row) {
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                if (row.containsKey(entry.getKey())) {
+                    row.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Number> entry : mIncrements.entrySet()) {
+                Object value = row.get(entry.getKey());
+                if (value instanceof Number) {
+                    row.put(entry.getKey(), sum((Number) value, entry.getValue()));
+                }
+            }
+        }
+
+        String getUpdate(String table, String keyColumn, List<Object> args) {
+            StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+            boolean first = true;
+            for (Map.Entry<String, Object> entry : mValues.entrySet()) {
+                sql.append(first ? "" : ", ").append(entry.getKey()).append(" = ?");
+                args.add(entry.getValue());
+                first = false;
+            }
+            for (Map.Entry<String, Number> entry : mIncrements.entrySet()) {
+                sql.append(first ? "" : ", ").append(entry.getKey()).append(" = ").append(entry.getKey()).append(" + ?");
+                args.add(entry.getValue());
+                first = false;
+            }
+            return sql.append(" WHERE ").append(keyColumn).append(" = ?").toString();
+        }
+    }
+}